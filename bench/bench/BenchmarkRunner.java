@@ -0,0 +1,363 @@
+package bench;
+
+import database.BatchResult;
+import database.FileSystem;
+import database.StorageMode;
+import database.SyncPolicy;
+import model.DBConstants;
+import model.Product;
+import model.ProductQuery;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+//Бенчмарк операций FileSystem на синтетическом каталоге.
+//Результат - по строке JSON на каждую пару (операция, размер, сценарий, режим хранения), см. README.
+//Пример: java -cp out bench.BenchmarkRunner --sizes 10000,1000000 --ops findRecordById,open --out results.jsonl
+public class BenchmarkRunner {
+    private static final String[] ALL_OPS = {
+            "addRecord", "addRecords", "findRecordById", "findRecordsByField.brandId", "findRecordsByField.name",
+            "findRecordsByField.categoryId", "findRecordsByField.scan", "findRecords", "deleteRecordsByField", "getAllRecords",
+            "aggregate", "open", "openRebuild"
+    };
+    private static final int LOAD_CHUNK = 100_000;
+    private static final int BATCH_SIZE = 1000;
+
+    private final Map<String, String> options;
+    private final CatalogGenerator catalog;
+    private final Path dir;
+    private final SyncPolicy sync;
+    private final int samples;
+    private final int warmup;
+    private final boolean dropCaches;
+    private final int cacheRecords;
+    private final PrintStream out;
+    private boolean osCacheDropped;
+    private int parallelism;
+
+    public BenchmarkRunner(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.catalog = new CatalogGenerator(Long.parseLong(options.getOrDefault("seed", "42")));
+        this.dir = Paths.get(options.getOrDefault("dir", "bench-data"));
+        this.sync = SyncPolicy.valueOf(options.getOrDefault("sync", "EVERY_OP"));
+        this.samples = Integer.parseInt(options.getOrDefault("samples", "10000"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "2000"));
+        this.dropCaches = Boolean.parseBoolean(options.getOrDefault("drop-caches", "false"));
+        this.cacheRecords = Integer.parseInt(options.getOrDefault("cache", "0"));
+        String file = options.get("out");
+        this.out = file == null ? System.out : new PrintStream(new FileOutputStream(file, true), true, "UTF-8");
+        Files.createDirectories(dir);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Неизвестный аргумент: " + args[i]);
+            String key = args[i].substring(2);
+            options.put(key, i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true");
+        }
+        new BenchmarkRunner(options).run();
+    }
+
+    public void run() throws Exception {
+        String[] ops = "all".equals(options.getOrDefault("ops", "all")) ? ALL_OPS : options.get("ops").split(",");
+        String cores = String.valueOf(Runtime.getRuntime().availableProcessors());
+        for (String size : options.getOrDefault("sizes", "10000,100000").split(",")) {
+            for (String mode : options.getOrDefault("mode", "FILE").split(",")) {
+                parallelism = Integer.parseInt(cores);
+                Path db = prepare(Integer.parseInt(size.trim()), StorageMode.valueOf(mode.trim()));
+                //масштабирование: те же замеры для каждого числа потоков
+                for (String threads : options.getOrDefault("parallelism", cores).split(",")) {
+                    parallelism = Integer.parseInt(threads.trim());
+                    for (String scenario : options.getOrDefault("scenario", "hot,cold").split(",")) {
+                        for (String op : ops) {
+                            measure(op.trim(), db, Integer.parseInt(size.trim()), StorageMode.valueOf(mode.trim()),
+                                    "cold".equals(scenario.trim()));
+                        }
+                    }
+                }
+            }
+        }
+        if (out != System.out) out.close();
+    }
+
+    //Каталог нужного размера; готовый файл переиспользуется между запусками
+    private Path prepare(int size, StorageMode mode) throws IOException {
+        Path db = dir.resolve("catalog-" + size + "-" + options.getOrDefault("seed", "42") + ".db");
+        FileSystem fs = newFileSystem();
+        if (Files.exists(db) && fs.open(db.toString(), mode) == DBConstants.SUCCESS && fs.getRecordCount() == size) {
+            fs.close();
+            return db;
+        }
+        fs.close();
+        Files.deleteIfExists(db);
+        Files.deleteIfExists(Paths.get(db + ".wal"));
+        Files.deleteIfExists(Paths.get(db + ".heap"));
+        fs.create(db.toString(), mode);
+        fs.setDurability(SyncPolicy.OS, 0);
+        long start = System.nanoTime();
+        List<Product> chunk = new ArrayList<>(LOAD_CHUNK);
+        for (int id = 1; id <= size; id++) {
+            chunk.add(catalog.product(id));
+            if (chunk.size() == LOAD_CHUNK || id == size) {
+                BatchResult result = fs.addRecords(chunk);
+                if (!result.isSuccess()) throw new IOException("Не удалось загрузить каталог");
+                chunk.clear();
+            }
+        }
+        fs.close();
+        System.err.printf(Locale.ROOT, "каталог %d записей создан за %.1f с%n", size, (System.nanoTime() - start) / 1e9);
+        return db;
+    }
+
+    private void measure(String op, Path db, int size, StorageMode mode, boolean cold) throws Exception {
+        Random random = new Random(size * 7L + op.hashCode());
+        LatencyRecorder recorder;
+        switch (op) {
+            case "findRecordById": {
+                FileSystem fs = openForRead(db, mode, cold);
+                if (!cold) for (int i = 0; i < warmup; i++) fs.findRecordById(random.nextInt(size) + 1);
+                recorder = new LatencyRecorder(samples);
+                recorder.start();
+                for (int i = 0; i < samples; i++) {
+                    int id = random.nextInt(size) + 1;
+                    long t = System.nanoTime();
+                    if (fs.findRecordById(id) == null) throw new IllegalStateException("нет записи " + id);
+                    recorder.record(System.nanoTime() - t);
+                }
+                recorder.stop();
+                fs.close();
+                break;
+            }
+            case "findRecordsByField.brandId":
+            case "findRecordsByField.name":
+            case "findRecordsByField.categoryId":
+            case "findRecordsByField.scan":
+            case "findRecords": {
+                String field = op.indexOf('.') < 0 ? "query" : op.substring(op.indexOf('.') + 1);
+                FileSystem fs = openForRead(db, mode, cold);
+                //запрос по бренду или категории возвращает тысячи записей, scan - полный проход по файлу,
+                //поэтому и замеров меньше
+                int n = switch (field) {
+                    case "name", "query" -> samples;
+                    case "brandId", "categoryId" -> Math.max(20, samples / 100);
+                    default -> Math.max(5, Math.min(20, samples / 100));
+                };
+                if (!cold) for (int i = 0; i < Math.min(warmup, n); i++) fieldQuery(fs, field, random, size);
+                recorder = new LatencyRecorder(n);
+                recorder.start();
+                for (int i = 0; i < n; i++) {
+                    long t = System.nanoTime();
+                    fieldQuery(fs, field, random, size);
+                    recorder.record(System.nanoTime() - t);
+                }
+                recorder.stop();
+                fs.close();
+                break;
+            }
+            case "getAllRecords": {
+                FileSystem fs = openForRead(db, mode, cold);
+                int n = Math.max(3, samples / 2000);
+                if (!cold) fs.getAllRecords();
+                recorder = new LatencyRecorder(n);
+                recorder.start();
+                for (int i = 0; i < n; i++) {
+                    long t = System.nanoTime();
+                    if (fs.getAllRecords().size() != size) throw new IllegalStateException("не все записи");
+                    recorder.record(System.nanoTime() - t);
+                }
+                recorder.stop();
+                fs.close();
+                break;
+            }
+            case "aggregate": {
+                //первый запрос строит агрегаты по индексам (в hot - при прогреве), дальше они готовы
+                FileSystem fs = openForRead(db, mode, cold);
+                if (!cold) fs.aggregateByBrand();
+                int n = Math.max(20, samples / 100);
+                recorder = new LatencyRecorder(n);
+                recorder.start();
+                for (int i = 0; i < n; i++) {
+                    long t = System.nanoTime();
+                    if ((i % 2 == 0 ? fs.aggregateByBrand() : fs.aggregateByCategory()).isEmpty())
+                        throw new IllegalStateException("нет групп");
+                    recorder.record(System.nanoTime() - t);
+                }
+                recorder.stop();
+                fs.close();
+                break;
+            }
+            case "addRecord":
+            case "addRecords":
+            case "deleteRecordsByField": {
+                //изменения делаются на копии, исходный каталог остаётся нетронутым
+                FileSystem fs = openCopy(db, mode, cold);
+                boolean batch = op.equals("addRecords");
+                int n = batch ? Math.max(5, samples / BATCH_SIZE) : samples;
+                int nextId = size + 1;
+                if (!cold && !op.equals("deleteRecordsByField")) {
+                    for (int i = 0; i < Math.min(warmup, n); i++, nextId += batch ? BATCH_SIZE : 1) write(fs, op, nextId, random, size);
+                }
+                recorder = new LatencyRecorder(n);
+                recorder.start();
+                for (int i = 0; i < n; i++, nextId += batch ? BATCH_SIZE : 1) {
+                    long t = System.nanoTime();
+                    write(fs, op, nextId, random, size);
+                    recorder.record(System.nanoTime() - t);
+                }
+                recorder.stop();
+                fs.close();
+                break;
+            }
+            case "open":
+            case "openRebuild": {
+                boolean rebuild = op.equals("openRebuild");
+                Path source = db;
+                if (rebuild) {
+                    //backup не содержит снимка индексов - открытие копии перестраивает их проходом по файлу
+                    source = dir.resolve("rebuild-source.db");
+                    FileSystem fs = newFileSystem();
+                    fs.open(db.toString(), mode);
+                    fs.backup(source.toString());
+                    fs.close();
+                }
+                Path target = dir.resolve("open-target.db");
+                int n = Math.max(3, Math.min(10, samples / 1000));
+                recorder = new LatencyRecorder(n);
+                recorder.start();
+                for (int i = 0; i < n; i++) {
+                    if (rebuild) {
+                        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                        Files.copy(Paths.get(source + ".heap"), Paths.get(target + ".heap"),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    if (cold) dropOsCache();
+                    FileSystem fs = newFileSystem();
+                    long t = System.nanoTime();
+                    fs.open((rebuild ? target : db).toString(), mode);
+                    recorder.record(System.nanoTime() - t);
+                    if (fs.getRecordCount() != size) throw new IllegalStateException("открыто не всё");
+                    fs.close();
+                }
+                recorder.stop();
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(Paths.get(target + ".heap"));
+                if (rebuild) {
+                    Files.deleteIfExists(source);
+                    Files.deleteIfExists(Paths.get(source + ".heap"));
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Неизвестная операция: " + op + ", доступны " + Arrays.toString(ALL_OPS));
+        }
+        report(op, size, mode, cold, recorder);
+    }
+
+    private void fieldQuery(FileSystem fs, String field, Random random, int size) {
+        switch (field) {
+            case "brandId":
+                fs.findRecordsByField("brandId", random.nextInt(CatalogGenerator.BRANDS) + 1);
+                break;
+            case "categoryId":
+                fs.findRecordsByField("categoryId", random.nextInt(CatalogGenerator.CATEGORIES) + 1);
+                break;
+            case "scan":
+                //строковое значение идёт мимо индекса - линейный (параллельный) проход по файлу
+                fs.findRecordsByField("categoryId", String.valueOf(random.nextInt(CatalogGenerator.CATEGORIES) + 1));
+                break;
+            case "query":
+                //бренд и категория с ценой до 2000: пересечение трёх списков слотов
+                fs.findRecords(new ProductQuery()
+                        .brandId(random.nextInt(CatalogGenerator.BRANDS) + 1)
+                        .categoryId(random.nextInt(CatalogGenerator.CATEGORIES) + 1)
+                        .price(0, 2000));
+                break;
+            default:
+                fs.findRecordsByField("name", catalog.product(random.nextInt(size) + 1).getName());
+        }
+    }
+
+    private FileSystem newFileSystem() {
+        FileSystem fs = new FileSystem();
+        fs.setParallelism(parallelism);
+        fs.setCacheCapacity(cacheRecords);
+        return fs;
+    }
+
+    private void write(FileSystem fs, String op, int nextId, Random random, int size) {
+        switch (op) {
+            case "addRecord":
+                fs.addRecord(catalog.product(nextId));
+                break;
+            case "addRecords": {
+                List<Product> batch = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < BATCH_SIZE; i++) batch.add(catalog.product(nextId + i));
+                fs.addRecords(batch);
+                break;
+            }
+            default:
+                fs.deleteRecordsByField("name", catalog.product(random.nextInt(size) + 1).getName());
+        }
+    }
+
+    //hot - бд открыта заранее и прогрета; cold - свежий экземпляр FileSystem (и сброс кэша ОС, если разрешён)
+    private FileSystem openForRead(Path db, StorageMode mode, boolean cold) throws IOException {
+        if (cold) dropOsCache();
+        FileSystem fs = newFileSystem();
+        if (fs.open(db.toString(), mode) != DBConstants.SUCCESS) throw new IOException("Не открывается " + db);
+        return fs;
+    }
+
+    private FileSystem openCopy(Path db, StorageMode mode, boolean cold) throws IOException {
+        Path copy = dir.resolve("write-copy.db");
+        FileSystem source = openForRead(db, mode, false);
+        source.backup(copy.toString());
+        source.close();
+        Files.deleteIfExists(Paths.get(copy + ".wal"));
+        FileSystem fs = openForRead(copy, mode, cold);
+        fs.setDurability(sync, DBConstants.WAL_SYNC_INTERVAL_MS);
+        return fs;
+    }
+
+    //Сброс страничного кэша ОС (Linux, нужны права root); без прав холодный сценарий холоден только для JVM
+    private void dropOsCache() {
+        osCacheDropped = false;
+        if (!dropCaches) return;
+        try {
+            Process p = new ProcessBuilder("sh", "-c", "sync && echo 3 > /proc/sys/vm/drop_caches")
+                    .redirectErrorStream(true).start();
+            osCacheDropped = p.waitFor() == 0;
+        } catch (IOException e) {
+            osCacheDropped = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report(String op, int size, StorageMode mode, boolean cold, LatencyRecorder r) {
+        out.println(String.format(Locale.ROOT,
+                "{\"timestamp\":\"%s\",\"op\":\"%s\",\"size\":%d,\"scenario\":\"%s\",\"mode\":\"%s\",\"sync\":\"%s\","
+                        + "\"samples\":%d,\"opsPerSec\":%.1f,\"meanUs\":%.2f,\"p50Us\":%.2f,\"p90Us\":%.2f,"
+                        + "\"p99Us\":%.2f,\"p999Us\":%.2f,\"maxUs\":%.2f,\"allocBytesPerOp\":%d,"
+                        + "\"osCacheDropped\":%b,\"parallelism\":%d,\"cacheRecords\":%d,\"java\":\"%s\",\"cpus\":%d}",
+                Instant.now(), op, size, cold ? "cold" : "hot", mode, sync, r.count(), r.opsPerSecond(),
+                r.meanMicros(), r.percentileMicros(0.5), r.percentileMicros(0.9), r.percentileMicros(0.99),
+                r.percentileMicros(0.999), r.percentileMicros(1.0), r.allocatedBytesPerOp(),
+                cold && osCacheDropped, parallelism, cacheRecords, System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors()));
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import model.Product;
+
+import java.util.Random;
+
+//Генератор синтетического каталога косметики.
+//Один и тот же seed даёт один и тот же каталог, поэтому результаты разных запусков сравнимы.
+public class CatalogGenerator {
+    private static final String[] KINDS = {
+            "Крем", "Помада", "Тушь", "Гель для душа", "Шампунь", "Бальзам", "Маска", "Сыворотка",
+            "Тоник", "Пудра", "Тени", "Лак для ногтей", "Парфюмерная вода", "Скраб", "Мицеллярная вода"
+    };
+    private static final String[] TRAITS = {
+            "увлажняющий", "питательный", "матовая", "стойкая", "восстанавливающий", "освежающий",
+            "для сухой кожи", "для жирной кожи", "для рук", "для лица", "для губ", "для волос", "SPF 30"
+    };
+    private static final String[] VOLUMES = {"15 мл", "30 мл", "50 мл", "100 мл", "250 мл", "3,5 г", "10 г"};
+    public static final int BRANDS = 400;
+    public static final int CATEGORIES = 60;
+
+    private final long seed;
+
+    public CatalogGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    //Товар с данным id; id идут с 1
+    public Product product(int id) {
+        Random random = new Random(seed * 31 + id);
+        String kind = KINDS[random.nextInt(KINDS.length)];
+        String trait = TRAITS[random.nextInt(TRAITS.length)];
+        Product p = new Product();
+        p.setId(id);
+        p.setName(kind + " " + trait + " " + (random.nextInt(900) + 100));
+        //цены с копейками, чаще дешёвые
+        double price = Math.round(Math.pow(random.nextDouble(), 2) * 15000 * 100 + 4900) / 100.0;
+        p.setPrice(price);
+        p.setBrandId(brandOf(random));
+        p.setCategoryId(random.nextInt(CATEGORIES) + 1);
+        p.setVolumeWeight(VOLUMES[random.nextInt(VOLUMES.length)]);
+        p.setDescription(kind + " " + trait + ", " + TRAITS[random.nextInt(TRAITS.length)]
+                + ". Подходит для ежедневного использования, партия " + random.nextInt(10000));
+        return p;
+    }
+
+    //Бренды распределены неравномерно: несколько крупных и длинный хвост
+    private static int brandOf(Random random) {
+        double u = random.nextDouble();
+        return (int) (Math.pow(u, 3) * BRANDS) + 1;
+    }
+}
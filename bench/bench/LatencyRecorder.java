@@ -0,0 +1,79 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+//Замер одной серии операций: задержка каждой операции, пропускная способность, выделение памяти на операцию.
+//Память считается по счётчику выделений текущего потока (com.sun.management.ThreadMXBean), поэтому
+//операции серии должны выполняться в потоке, который вызывает start/stop.
+public class LatencyRecorder {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private long[] latencies;
+    private int count;
+    private long startNanos;
+    private long elapsedNanos;
+    private long startAllocated;
+    private long allocated = -1;
+
+    public LatencyRecorder(int expected) {
+        latencies = new long[Math.max(16, expected)];
+    }
+
+    public void start() {
+        count = 0;
+        startAllocated = allocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    public void record(long nanos) {
+        if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = nanos;
+    }
+
+    public void stop() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        long end = allocatedBytes();
+        allocated = (end < 0 || startAllocated < 0) ? -1 : end - startAllocated;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public double opsPerSecond() {
+        return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+    }
+
+    //Перцентиль задержки в микросекундах, q от 0 до 1
+    public double percentileMicros(double q) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(q * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1000.0;
+    }
+
+    public double meanMicros() {
+        if (count == 0) return 0;
+        long sum = 0;
+        for (int i = 0; i < count; i++) sum += latencies[i];
+        return sum / 1000.0 / count;
+    }
+
+    //Байт выделено на операцию; -1 - JVM не умеет считать выделения потока
+    public long allocatedBytesPerOp() {
+        return (allocated < 0 || count == 0) ? -1 : allocated / count;
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
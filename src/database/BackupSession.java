@@ -0,0 +1,214 @@
+package database;
+
+import model.DBConstants;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+
+//Копирование слотов в файл backup на момент начала копии (copy-on-write).
+//Слоты по порядку переносит копирующий поток (copyChunk), а запись в ещё не скопированный слот
+//сначала сохраняет в backup его прежний образ (preserve), поэтому копия соответствует моменту начала,
+//хотя изменения в бд во время копирования не останавливаются.
+//Слоты нумеруются рангом: у полной копии ранг - сам номер слота, у инкрементальной - номер в списке слотов.
+//Куча строк только дописывается, а пока идёт копия, не уплотняется, поэтому её начало [0, heapEnd)
+//копируется без copy-on-write: полная копия - в <копия>.heap после слотов, инкрементальная при завершении
+//дописывает за образами только записи кучи, на которые они ссылаются.
+class BackupSession {
+    private final String path;
+    private final RecordStorage target;
+    private final long sourceOffset;  //позиция слота 0 в файле бд
+    private final long targetOffset;  //позиция ранга 0 в файле backup
+    private final int[] slots;        //копируемые слоты по возрастанию; null - все слоты [0, count)
+    private final int count;
+    private final byte[] header;      //начало файла копии, пишется последним
+    private final RecordStorage heap;       //куча строк бд
+    private final RecordStorage heapTarget; //куча строк полной копии; null - инкрементальная копия
+    private final long heapEnd;             //конец кучи на момент начала копии
+    private long heapNext;
+    private final BitSet copied;      //guarded by this
+    private boolean closed;           //guarded by this
+    private volatile boolean complete;
+    private int next;                 //ранг, с которого продолжит копирующий поток
+
+    private BackupSession(String path, RecordStorage target, long sourceOffset, long targetOffset,
+                          int[] slots, int count, byte[] header, RecordStorage heap, RecordStorage heapTarget,
+                          long heapEnd) {
+        this.path = path;
+        this.target = target;
+        this.sourceOffset = sourceOffset;
+        this.targetOffset = targetOffset;
+        this.slots = slots;
+        this.count = count;
+        this.header = header;
+        this.copied = new BitSet(count);
+        this.heap = heap;
+        this.heapTarget = heapTarget;
+        this.heapEnd = heapEnd;
+    }
+
+    //Полная копия: слоты [0, count) на те же позиции, что и в бд, куча [0, heapEnd) - в heapTarget
+    static BackupSession full(String path, RecordStorage target, long dataOffset, int count, byte[] header,
+                              RecordStorage heap, RecordStorage heapTarget, long heapEnd) {
+        return new BackupSession(path, target, dataOffset, dataOffset, null, count, header, heap, heapTarget, heapEnd);
+    }
+
+    //Копия выбранных слотов (по возрастанию) подряд с позиции targetOffset
+    static BackupSession of(String path, RecordStorage target, long dataOffset, long targetOffset, int[] slots,
+                            byte[] header, RecordStorage heap) {
+        return new BackupSession(path, target, dataOffset, targetOffset, slots, slots.length, header, heap, null, 0);
+    }
+
+    //Сохранение прежнего образа слота перед записью в него; вызывается под блокировкой записи слота
+    void preserve(RecordStorage source, int slot) throws IOException {
+        int rank = rankOf(slot);
+        if (rank < 0) return;
+        synchronized (this) {
+            if (closed || copied.get(rank)) return;
+            byte[] data = new byte[DBConstants.RECORD_SIZE];
+            readSlots(source, slot, data, 1);
+            target.write(positionOf(rank), data, 0, data.length);
+            copied.set(rank);
+        }
+    }
+
+    //То же для серии слотов (по возрастанию)
+    void preserve(RecordStorage source, int[] written, int writtenCount) throws IOException {
+        for (int k = 0; k < writtenCount; k++) preserve(source, written[k]);
+    }
+
+    //Число копируемых слотов
+    int size() {
+        return count;
+    }
+
+    boolean hasMore() {
+        return next < count;
+    }
+
+    //Конец следующей порции рангов (не больше maxSlots слотов бд подряд)
+    int chunkEnd(int maxSlots) {
+        int first = slotAt(next);
+        int end = next + 1;
+        while (end < count && slotAt(end) - first < maxSlots) end++;
+        return end;
+    }
+
+    int nextRank() {
+        return next;
+    }
+
+    int slotAt(int rank) {
+        return slots == null ? rank : slots[rank];
+    }
+
+    //Копирование рангов [next, end): ещё не сохранённые слоты читаются сериями соседних слотов.
+    //Вызывающий держит блокировки чтения полос этих слотов, так что preserve им не мешает.
+    void copyChunk(RecordStorage source, int end, byte[] buffer) throws IOException {
+        int rank = next;
+        while (rank < end) {
+            int runEnd = rank + 1;
+            while (runEnd < end && slotAt(runEnd) == slotAt(runEnd - 1) + 1) runEnd++;
+            int length = runEnd - rank;
+            readSlots(source, slotAt(rank), buffer, length);
+            synchronized (this) {
+                for (int r = rank; r < runEnd; ) {
+                    if (copied.get(r)) {
+                        r++;
+                        continue;
+                    }
+                    int stop = copied.nextSetBit(r);
+                    if (stop < 0 || stop > runEnd) stop = runEnd;
+                    target.write(positionOf(r), buffer, (r - rank) * DBConstants.RECORD_SIZE,
+                            (stop - r) * DBConstants.RECORD_SIZE);
+                    copied.set(r, stop);
+                    r = stop;
+                }
+            }
+            rank = runEnd;
+        }
+        next = end;
+    }
+
+    boolean hasMoreHeap() {
+        return heapTarget != null && heapNext < heapEnd;
+    }
+
+    long heapSize() {
+        return heapEnd;
+    }
+
+    //Копирование следующей порции кучи (не больше buffer.length байт); возвращает, сколько кучи уже скопировано
+    long copyHeap(byte[] buffer) throws IOException {
+        int length = (int) Math.min(buffer.length, heapEnd - heapNext);
+        int read = Math.max(0, heap.read(heapNext, buffer, 0, length));
+        //несостоявшаяся запись в конце кучи - нули
+        if (read < length) Arrays.fill(buffer, read, length, (byte) 0);
+        heapTarget.write(heapNext, buffer, 0, length);
+        heapNext += length;
+        return heapNext;
+    }
+
+    //Копирование всего оставшегося (под монопольной блокировкой бд - перед закрытием или очисткой)
+    void drain(RecordStorage source) throws IOException {
+        byte[] buffer = new byte[DBConstants.CURSOR_CHUNK_SLOTS * DBConstants.RECORD_SIZE];
+        while (hasMore()) copyChunk(source, chunkEnd(DBConstants.CURSOR_CHUNK_SLOTS), buffer);
+        byte[] strings = new byte[(int) Math.min(DBConstants.COPY_CHUNK_BYTES, Math.max(1, heapEnd))];
+        while (hasMoreHeap()) copyHeap(strings);
+    }
+
+    //Завершение: данные на диск, затем заголовок - копия без заголовка не откроется
+    synchronized void finish() throws IOException {
+        closed = true;
+        if (heapTarget != null) {
+            heapTarget.force();
+            heapTarget.close();
+        } else {
+            IncrementalBackup.appendEntries(target, targetOffset, count, heap);
+            IncrementalBackup.seal(target, header);
+        }
+        target.force();
+        target.write(0, header, 0, header.length);
+        target.force();
+        target.close();
+        complete = true;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    //Отмена: незаконченный файл удаляется
+    synchronized void abort() {
+        closed = true;
+        try {
+            target.close();
+            Files.deleteIfExists(Paths.get(path));
+            if (heapTarget != null) {
+                heapTarget.close();
+                Files.deleteIfExists(Paths.get(StringHeap.pathFor(path)));
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    //Ранг слота или -1, если слот в копию не входит
+    private int rankOf(int slot) {
+        if (slots == null) return slot < count ? slot : -1;
+        int rank = Arrays.binarySearch(slots, slot);
+        return rank >= 0 ? rank : -1;
+    }
+
+    private long positionOf(int rank) {
+        return targetOffset + (long) rank * DBConstants.RECORD_SIZE;
+    }
+
+    //Чтение слотов; за концом файла (после уплотнения) - нули
+    private void readSlots(RecordStorage source, int first, byte[] dst, int slotCount) throws IOException {
+        int length = slotCount * DBConstants.RECORD_SIZE;
+        int read = Math.max(0, source.read(sourceOffset + (long) first * DBConstants.RECORD_SIZE, dst, 0, length));
+        if (read < length) Arrays.fill(dst, read, length, (byte) 0);
+    }
+}
@@ -0,0 +1,40 @@
+package database;
+
+import model.DBConstants;
+
+//Результат пакетного добавления: код для каждой записи в порядке входной коллекции
+public class BatchResult {
+    private final int[] codes;
+
+    public BatchResult(int size) {
+        this.codes = new int[size];
+    }
+
+    void setCode(int index, int code) {
+        codes[index] = code;
+    }
+
+    public int getCode(int index) {
+        return codes[index];
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    public int getAddedCount() {
+        int added = 0;
+        for (int code : codes) {
+            if (code == DBConstants.SUCCESS) added++;
+        }
+        return added;
+    }
+
+    public int getFailedCount() {
+        return codes.length - getAddedCount();
+    }
+
+    public boolean isSuccess() {
+        return getFailedCount() == 0;
+    }
+}
@@ -0,0 +1,35 @@
+package database;
+
+//Счётчики кэша записей на момент запроса
+public class CacheStats {
+    private final int capacity;
+    private final int size;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    public CacheStats(int capacity, int size, long hits, long misses, long evictions) {
+        this.capacity = capacity;
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public int getCapacity() { return capacity; }
+    public int getSize() { return size; }
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("кэш %d/%d, попаданий %d, промахов %d (%.1f%%), вытеснено %d",
+                size, capacity, hits, misses, getHitRate() * 100, evictions);
+    }
+}
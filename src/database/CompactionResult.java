@@ -0,0 +1,44 @@
+package database;
+
+//Итог уплотнения (одного шага или всего прохода)
+public class CompactionResult {
+    private final int movedRecords;
+    private final long bytesReclaimed;
+    private final int steps;
+    private final boolean finished;
+    private final int movedEntries;
+
+    public CompactionResult(int movedRecords, long bytesReclaimed, int steps, boolean finished) {
+        this(movedRecords, bytesReclaimed, steps, finished, 0);
+    }
+
+    public CompactionResult(int movedRecords, long bytesReclaimed, int steps, boolean finished, int movedEntries) {
+        this.movedRecords = movedRecords;
+        this.bytesReclaimed = bytesReclaimed;
+        this.steps = steps;
+        this.finished = finished;
+        this.movedEntries = movedEntries;
+    }
+
+    public int getMovedRecords() { return movedRecords; }
+    public long getBytesReclaimed() { return bytesReclaimed; }
+    public int getSteps() { return steps; }
+
+    //Записей кучи строк, сдвинутых при её уплотнении
+    public int getMovedEntries() { return movedEntries; }
+
+    //true - дыр ниже последней записи не осталось, файл обрезан по ней, куча строк уплотнена
+    public boolean isFinished() { return finished; }
+
+    //Сложение итогов шагов
+    CompactionResult plus(CompactionResult step) {
+        return new CompactionResult(movedRecords + step.movedRecords, bytesReclaimed + step.bytesReclaimed,
+                steps + step.steps, step.finished, movedEntries + step.movedEntries);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("перенесено записей %d, строк в куче %d, освобождено %d байт, шагов %d%s",
+                movedRecords, movedEntries, bytesReclaimed, steps, finished ? "" : " (не завершено)");
+    }
+}
@@ -0,0 +1,208 @@
+package database;
+
+import model.SlotCodec;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Строки CSV в байтах UTF-8, собираются прямо из образов слотов и записей кучи строк (без Product, String.format и String).
+//Разделитель ';', конец строки CRLF; поле с ';', '"' или переводом строки берётся в кавычки,
+//кавычки внутри удваиваются (RFC 4180). Цена - всегда с точкой и двумя знаками, как %.2f с Locale.ROOT.
+class CsvFormatter {
+    static final byte SEPARATOR = ';';
+    static final String HEADER = "ID;Название;Цена;Бренд ID;Категория ID;Объём;Описание";
+
+    private static final double MAX_FAST_PRICE = 1e15; //до этого значения цена в копейках точно помещается в long
+
+    private byte[] bytes;
+    private int size;
+
+    CsvFormatter(int capacity) {
+        bytes = new byte[Math.max(64, capacity)];
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void header() {
+        byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+        ensure(header.length + 2);
+        System.arraycopy(header, 0, bytes, size, header.length);
+        size += header.length;
+        newLine();
+    }
+
+    //Строка для слота из buffer по offset и его записи кучи (heap с entry, -1 - записи нет);
+    //false - пустой слот или запись, которую не показывает getAllRecords
+    boolean appendRecord(ByteBuffer buffer, int offset, byte[] heap, int entry) {
+        int id = SlotCodec.decodeId(buffer, offset);
+        double price = SlotCodec.price(buffer, offset);
+        if (id <= 0 || !(price > 0) || entry < 0) return false;
+        //длины строк - как в SlotCodec.decode: не дальше длины записи из слота
+        int end = entry + Math.max(SlotCodec.ENTRY_HEADER, SlotCodec.heapLength(buffer, offset));
+        int namePos = entry + SlotCodec.ENTRY_HEADER;
+        int name = Math.min(u16(heap, entry + 4), end - namePos);
+        int volumePos = namePos + name;
+        int volume = Math.min(u16(heap, entry + 6), end - volumePos);
+        int descPos = volumePos + volume;
+        int description = Math.min(u16(heap, entry + 8), end - descPos);
+        if (blank(heap, namePos, name)) return false;
+        appendLong(id);
+        separator();
+        appendField(heap, namePos, name);
+        separator();
+        appendPrice(price);
+        separator();
+        appendLong(SlotCodec.brandId(buffer, offset));
+        separator();
+        appendLong(SlotCodec.categoryId(buffer, offset));
+        separator();
+        appendField(heap, volumePos, volume);
+        separator();
+        appendField(heap, descPos, description);
+        newLine();
+        return true;
+    }
+
+    void appendLong(long value) {
+        ensure(20);
+        if (value < 0) {
+            bytes[size++] = '-';
+            if (value == Long.MIN_VALUE) {
+                appendAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        int pos = size + digits;
+        do {
+            bytes[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        size += digits;
+    }
+
+    //Два знака после точки с округлением половины вверх по десятичной записи числа, как у Formatter
+    void appendPrice(double price) {
+        double scaled = price * 100;
+        double fraction = Math.abs(scaled - Math.floor(scaled));
+        if (Double.isNaN(price) || Double.isInfinite(price) || Math.abs(price) >= MAX_FAST_PRICE
+                || Math.abs(fraction - 0.5) < 1e-6) {
+            //редкий случай: половина копейки на грани двоичного округления или огромное число
+            appendAscii(Double.isFinite(price)
+                    ? new BigDecimal(Double.toString(price)).setScale(2, RoundingMode.HALF_UP).toPlainString()
+                    : Double.toString(price));
+            return;
+        }
+        long cents = Math.round(scaled);
+        if (cents < 0) {
+            ensure(1);
+            bytes[size++] = '-';
+            cents = -cents;
+        }
+        appendLong(cents / 100);
+        ensure(3);
+        long rest = cents % 100;
+        bytes[size++] = '.';
+        bytes[size++] = (byte) ('0' + rest / 10);
+        bytes[size++] = (byte) ('0' + rest % 10);
+    }
+
+    //Строка UTF-8 длиной length как поле CSV
+    void appendField(byte[] data, int offset, int length) {
+        boolean quote = false;
+        int quotes = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = data[offset + i];
+            if (b == '"') quotes++;
+            if (b == SEPARATOR || b == '"' || b == '\n' || b == '\r') quote = true;
+        }
+        if (!validUtf8(data, offset, length)) {
+            //битые байты - как при чтении в String (заменяются на U+FFFD)
+            byte[] fixed = new String(data, offset, length, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+            appendField(fixed, 0, fixed.length);
+            return;
+        }
+        ensure(length + quotes + 2);
+        if (!quote) {
+            System.arraycopy(data, offset, bytes, size, length);
+            size += length;
+            return;
+        }
+        bytes[size++] = '"';
+        for (int i = 0; i < length; i++) {
+            byte b = data[offset + i];
+            if (b == '"') bytes[size++] = '"';
+            bytes[size++] = b;
+        }
+        bytes[size++] = '"';
+    }
+
+    private void separator() {
+        ensure(1);
+        bytes[size++] = SEPARATOR;
+    }
+
+    private void newLine() {
+        ensure(2);
+        bytes[size++] = '\r';
+        bytes[size++] = '\n';
+    }
+
+    private void appendAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) bytes[size++] = (byte) s.charAt(i);
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+    }
+
+    //Пустая после trim() строка: только байты <= ' ' (многобайтовые символы больше пробела)
+    private static boolean blank(byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if ((data[offset + i] & 0xFF) > ' ') return false;
+        }
+        return true;
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    //Корректный ли UTF-8 (строки в куче хранятся целиком, оборванный символ - это повреждение)
+    private static boolean validUtf8(byte[] data, int offset, int length) {
+        int i = 0;
+        while (i < length) {
+            int b = data[offset + i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int n;
+            if (b >= 0xC2 && b <= 0xDF) n = 2;
+            else if (b >= 0xE0 && b <= 0xEF) n = 3;
+            else if (b >= 0xF0 && b <= 0xF4) n = 4;
+            else return false;
+            if (i + n > length) return false;
+            for (int k = 1; k < n; k++) {
+                if ((data[offset + i + k] & 0xC0) != 0x80) return false;
+            }
+            int second = data[offset + i + 1] & 0xFF;
+            if ((b == 0xE0 && second < 0xA0) || (b == 0xED && second > 0x9F)
+                    || (b == 0xF0 && second < 0x90) || (b == 0xF4 && second > 0x8F)) return false;
+            i += n;
+        }
+        return true;
+    }
+}
@@ -12,6 +12,7 @@ public class DBHeader {
     private long dataOffset;
     private long indexOffset;
     private long freeSpaceOffset;
+    private long backupId; //у файла backup - номер копии для проверки цепочки инкрементальных копий, иначе 0
 
     //Конструктор
     public DBHeader() {
@@ -34,6 +35,7 @@ public class DBHeader {
         buffer.putLong(dataOffset);
         buffer.putLong(indexOffset);
         buffer.putLong(freeSpaceOffset);
+        buffer.putLong(backupId);
         while (buffer.position() < DBConstants.HEADER_SIZE) buffer.put((byte) 0);
         return buffer.array();
     }
@@ -51,6 +53,7 @@ public class DBHeader {
         dataOffset = buffer.getLong();
         indexOffset = buffer.getLong();
         freeSpaceOffset = buffer.getLong();
+        backupId = buffer.getLong();
     }
 
     //Валидация заголовка
@@ -60,8 +63,20 @@ public class DBHeader {
                 dataOffset >= DBConstants.HEADER_SIZE;
     }
 
+    //Файл бд прежнего формата (та же сигнатура, версия ниже текущей) - открывается только миграцией
+    public boolean isOlderVersion() {
+        return signature.equals(DBConstants.SIGNATURE) && version >= 1 && version < DBConstants.VERSION;
+    }
+
     //Геттеры и сеттеры
+    public int getVersion() { return version; }
     public int getRecordCount() { return recordCount; }
     public void setRecordCount(int count) { this.recordCount = count; }
     public long getDataOffset() { return dataOffset; }
+    public long getIndexOffset() { return indexOffset; }
+    public void setIndexOffset(long offset) { this.indexOffset = offset; }
+    public long getFreeSpaceOffset() { return freeSpaceOffset; }
+    public void setFreeSpaceOffset(long offset) { this.freeSpaceOffset = offset; }
+    public long getBackupId() { return backupId; }
+    public void setBackupId(long id) { this.backupId = id; }
 }
\ No newline at end of file
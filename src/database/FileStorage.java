@@ -0,0 +1,60 @@
+package database;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//Хранилище поверх RandomAccessFile.
+//Чтение и запись позиционные (FileChannel.read/write с позицией), общего указателя файла нет,
+//поэтому обращения из разных потоков не мешают друг другу.
+public class FileStorage implements RecordStorage {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    public FileStorage(String filename) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(src, offset, length);
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += channel.write(buffer, position + total);
+        }
+    }
+
+    @Override
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        file.setLength(newLength);
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -2,29 +2,106 @@ package database;
 import java.util.ArrayList;
 import model.Product;
 import model.DBConstants;
+import model.PriceRange;
+import model.ProductQuery;
+import model.SlotCodec;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class FileSystem {
     private String filename;
-    private RandomAccessFile file;
+    private RecordStorage storage;
+    private StorageMode storageMode = StorageMode.FILE;
     private DBHeader header;
-    private boolean isOpen = false;
+    private volatile boolean isOpen = false;
+    //строки записей (формат v2): в слоте - числовые поля и ссылка на запись в <бд>.heap
+    private StringHeap heap;
+    private long heapLive; //байт в куче, на которые ссылаются слоты (остальное - мусор); guarded by indexLock
+    //уплотнение кучи между шагами compact: смещения живых записей по возрастанию, следующая из них,
+    //куда сдвигается следующая запись и до какой позиции куча уже просмотрена; null - уплотнение не идёт
+    private long[] heapMoves;
+    private int heapMoveNext;
+    private long heapWrite;
+    private long heapScanned;
 
-    private final Map<Integer, Long> idIndex = new HashMap<>();
-    private final Map<Integer, Set<Long>> brandIndex = new HashMap<>();
-    private final Map<Double, Set<Long>> priceIndex = new HashMap<>();
-    private final Map<String, Set<Long>> nameIndex = new HashMap<>();
-    private final Map<String, Set<Long>> descriptionIndex = new HashMap<>();
-    private final Map<String, Set<Long>> volumeWeightIndex = new HashMap<>();
-    private BitSet freeSpaceMap;
-    private int totalSlots;
+    //Индексы хранят номера слотов (позиция = dataOffset + slot * RECORD_SIZE)
+    private static final int NO_SLOT = -1;
+    private final IntIntHashMap idIndex = new IntIntHashMap();
+    //у бренда и категории мало различных значений и длинные списки - они хранятся сжатыми битовыми картами
+    private final LongPostingMap<RoaringBitmap> brandIndex = new LongPostingMap<>(RoaringBitmap::new);
+    private final LongPostingMap<RoaringBitmap> categoryIndex = new LongPostingMap<>(RoaringBitmap::new);
+    private final PriceIndex priceIndex = new PriceIndex();
+    private final Map<String, SlotList> nameIndex = new HashMap<>();
+    private final Map<String, SlotList> descriptionIndex = new HashMap<>();
+    private final Map<String, SlotList> volumeWeightIndex = new HashMap<>();
+    private final TextIndex textIndex = new TextIndex();
+    //цены по брендам и категориям: строятся при первом запросе и дальше ведутся вместе с индексами;
+    //null - не построены; guarded by indexLock
+    private GroupStats brandStats;
+    private GroupStats categoryStats;
+    //карта свободного места: занятые слоты и конец данных
+    private final SlotAllocator freeSpace = new SlotAllocator();
+
+    //Журнал упреждающей записи: каждое изменение слота сначала попадает в <бд>.wal
+    private WriteAheadLog wal;
+    private SyncPolicy syncPolicy = SyncPolicy.EVERY_OP;
+    private long syncIntervalMillis = DBConstants.WAL_SYNC_INTERVAL_MS;
+
+    //Потоки для перестроения индексов и линейного поиска; 1 - всё в вызывающем потоке
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool scanPool;
+
+    //Кэш прочитанных записей по номеру слота; null - кэш выключен (по умолчанию)
+    private volatile RecordCache cache;
+
+    //Поколение уплотнения: растёт при каждом переносе записей между слотами (под dbLock записи).
+    //Курсор, открытый в другом поколении, мог бы пропустить перенесённые записи - он останавливается
+    private volatile long compactionGeneration;
+
+    //Резервное копирование: идущая копия (прежние образы ещё не скопированных слотов сохраняются в неё
+    //перед записью), номер последней копии в этом сеансе и слоты, изменённые после неё
+    private volatile BackupSession backupSession;
+    private volatile long lastBackupId;
+    private final BitSet changedSlots = new BitSet(); //guarded by itself
+
+    //Блокировки:
+    //dbLock - открытие/закрытие/очистка (запись) против всех остальных операций (чтение);
+    //indexLock - индексы, карта свободного места и счётчик записей, держится без ввода-вывода;
+    //slotLocks - содержимое слота в файле. Порядок захвата: dbLock -> slotLocks -> indexLock.
+    private final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final SlotLocks slotLocks = new SlotLocks(DBConstants.LOCK_STRIPES);
+    private final Object headerLock = new Object();
+
+    //буфер записи на поток: чтение и запись слота без новых массивов
+    private static final ThreadLocal<ByteBuffer> RECORD_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(DBConstants.RECORD_SIZE));
+    private static final ThreadLocal<HeapChunk> RECORD_STRINGS = ThreadLocal.withInitial(() -> new HeapChunk(1));
+    private static final ThreadLocal<ByteBuffer> ENTRY_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+    private static final byte[] EMPTY_RECORD = new byte[DBConstants.RECORD_SIZE];
+    //буфер порции для параллельного обхода и записи кучи к ней, по одному на поток пула
+    private static final ThreadLocal<ByteBuffer> SCAN_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(DBConstants.CURSOR_CHUNK_SLOTS * DBConstants.RECORD_SIZE));
+    private static final ThreadLocal<HeapChunk> SCAN_STRINGS =
+            ThreadLocal.withInitial(() -> new HeapChunk(DBConstants.CURSOR_CHUNK_SLOTS));
+    //номера подошедших по числовому условию слотов порции
+    private static final ThreadLocal<int[]> SCAN_WANTED =
+            ThreadLocal.withInitial(() -> new int[DBConstants.CURSOR_CHUNK_SLOTS]);
 
     public FileSystem() {
         this.header = new DBHeader();
@@ -32,469 +109,2418 @@ public class FileSystem {
 
     //Создание бд
     public int create(String dbname) {
+        return create(dbname, StorageMode.FILE);
+    }
+
+    public int create(String dbname, StorageMode mode) {
+        dbLock.writeLock().lock();
         try {
             close();
             this.filename = dbname;
-            file = new RandomAccessFile(filename, "rw");
+            storage = openStorage(mode);
             header = new DBHeader();
             byte[] headerData = header.serialize();
-            file.write(headerData);
+            storage.write(0, headerData, 0, headerData.length);
+            storage.force();
+            //журнал и куча прежней бд с тем же именем не должны достаться новой
+            Files.deleteIfExists(Paths.get(WriteAheadLog.pathFor(filename)));
+            Files.deleteIfExists(Paths.get(StringHeap.pathFor(filename)));
+            heap = openHeap(mode);
+            heapLive = 0;
+            wal = openWal();
             initializeFreeSpaceMap();
             isOpen = true;
             return DBConstants.SUCCESS;
         } catch (IOException e) {
             return DBConstants.ERROR_INVALID_FORMAT;
+        } finally {
+            dbLock.writeLock().unlock();
         }
     }
 
-    //Открытие бд
+    //Открытие бд; файл формата v1 не открывается (ERROR_OLD_FORMAT) - его переводит FormatMigration
     public int open(String dbname) {
+        return open(dbname, StorageMode.FILE);
+    }
+
+    //Открытие с ходом перестроения индексов; отмена (ERROR_CANCELLED) оставляет бд закрытой,
+    //при следующем открытии перестроение начнётся заново
+    public int open(String dbname, Progress progress) {
+        return open(dbname, StorageMode.FILE, progress);
+    }
+
+    public int open(String dbname, StorageMode mode) {
+        return open(dbname, mode, Progress.NONE);
+    }
+
+    public int open(String dbname, StorageMode mode, Progress progress) {
+        dbLock.writeLock().lock();
         try {
             close();
             this.filename = dbname;
             if (!Files.exists(Paths.get(filename)))
                 return DBConstants.ERROR_FILE_NOT_FOUND;
-            file = new RandomAccessFile(filename, "rw");
+            storage = openStorage(mode);
             byte[] headerData = new byte[DBConstants.HEADER_SIZE];
-            int read = file.read(headerData);
+            int read = storage.read(0, headerData, 0, headerData.length);
             if (read != DBConstants.HEADER_SIZE) {
                 close();
                 return DBConstants.ERROR_INVALID_FORMAT;
             }
             header.deserialize(headerData);
             if (!header.isValid()) {
+                int result = header.isOlderVersion() ? DBConstants.ERROR_OLD_FORMAT : DBConstants.ERROR_INVALID_FORMAT;
+                close();
+                return result;
+            }
+            //без кучи у записей нет строк
+            if (!Files.exists(Paths.get(StringHeap.pathFor(filename))) && storage.length() > header.getDataOffset()) {
                 close();
                 return DBConstants.ERROR_INVALID_FORMAT;
             }
-            rebuildIndexes();
+            heap = openHeap(mode);
+            wal = openWal();
+            if (!recoverFromLog(progress) && !loadIndexSnapshot()) {
+                rebuildIndexes(progress);
+                updateHeader();
+            }
             isOpen = true;
             return DBConstants.SUCCESS;
+        } catch (InterruptedIOException e) {
+            close();
+            return DBConstants.ERROR_CANCELLED;
         } catch (IOException e) {
             return DBConstants.ERROR_INVALID_FORMAT;
+        } finally {
+            dbLock.writeLock().unlock();
         }
     }
 
-    //Закрытие бд
+    //Закрытие бд (индексы сохраняются в файл, чтобы не перестраивать их при следующем открытии)
     public void close() {
+        close(true);
+    }
+
+    //Закрытие с проверкой: false - данные не удалось сбросить на диск или закрыть файлы
+    //(миграция не выдаёт такую бд за готовую)
+    boolean closeChecked() {
+        return close(true);
+    }
+
+    //persist = false - содержимое бд больше не нужно (restore/удаление файла), журнал выбрасывается
+    private boolean close(boolean persist) {
+        boolean ok = true;
+        dbLock.writeLock().lock();
         try {
-            if (file != null) {
-                file.close();
-                file = null;
+            if (storage != null) {
+                if (isOpen) finishBackup();
+                if (isOpen && persist) {
+                    try {
+                        checkpoint();
+                        writeIndexSnapshot();
+                    } catch (IOException e) {
+                        //журнал повторится, а индексы перестроятся при открытии
+                        ok = false;
+                    }
+                }
+                if (wal != null) {
+                    wal.close();
+                    wal = null;
+                    if (!persist) Files.deleteIfExists(Paths.get(WriteAheadLog.pathFor(filename)));
+                }
+                storage.close();
+                storage = null;
+                if (heap != null) {
+                    heap.close();
+                    heap = null;
+                }
             }
             isOpen = false;
             clearIndexes();
-        } catch (IOException ignored) {}
+            resetBackupChain();
+        } catch (IOException e) {
+            ok = false;
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+        return ok;
+    }
+
+    //Политика сброса журнала на диск: EVERY_OP (по умолчанию), INTERVAL (раз в intervalMillis) или OS
+    public void setDurability(SyncPolicy policy, long intervalMillis) {
+        dbLock.writeLock().lock();
+        try {
+            syncPolicy = policy;
+            syncIntervalMillis = intervalMillis;
+            if (wal != null) wal.setPolicy(policy, intervalMillis);
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    public SyncPolicy getSyncPolicy() { return syncPolicy; }
+
+    //Число потоков параллельного обхода файла (перестроение индексов при открытии, поиск без индекса)
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1");
+        dbLock.writeLock().lock();
+        try {
+            this.parallelism = parallelism;
+            if (scanPool != null) {
+                scanPool.shutdown();
+                scanPool = null;
+            }
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    public int getParallelism() { return parallelism; }
+
+    //Размер кэша записей (в записях); 0 - кэш выключен
+    public void setCacheCapacity(int records) {
+        if (records < 0) throw new IllegalArgumentException("records < 0");
+        dbLock.writeLock().lock();
+        try {
+            cache = records == 0 ? null : new RecordCache(records);
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    //Счётчики кэша; null, если кэш выключен
+    public CacheStats getCacheStats() {
+        RecordCache current = cache;
+        return current == null ? null : current.stats();
+    }
+
+    //Выбор слота для новой записи: LOW_FIRST (по умолчанию) - самый младший свободный, LIFO - последний освобождённый
+    public void setAllocationPolicy(SlotAllocator.Policy policy) {
+        indexLock.writeLock().lock();
+        try {
+            freeSpace.setPolicy(policy);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    public SlotAllocator.Policy getAllocationPolicy() {
+        indexLock.readLock().lock();
+        try {
+            return freeSpace.getPolicy();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    //Число свободных слотов внутри файла (дыр после удалений)
+    public int getFreeSlotCount() {
+        indexLock.readLock().lock();
+        try {
+            return freeSpace.freeCount();
+        } finally {
+            indexLock.readLock().unlock();
+        }
     }
 
     //Добавление записи
     public int addRecord(Product record) {
-        if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
-        if (!record.isValid()) return DBConstants.ERROR_INVALID_FORMAT;
-        if (idIndex.containsKey(record.getId()))
-            return DBConstants.ERROR_DUPLICATE_ID;
-
-        try {
-            long position = findFreeSpace();
-            if (position == -1) position = file.length();
-            writeRecordAtPosition(record, position);
-            addToIndexes(record, position);
-            header.setRecordCount(header.getRecordCount() + 1);
-            updateHeader();
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
+            if (!record.isValid()) return DBConstants.ERROR_INVALID_FORMAT;
+
+            //слот выделяется и id резервируется сразу, чтобы параллельное добавление того же id получило отказ
+            int slot;
+            indexLock.writeLock().lock();
+            try {
+                if (idIndex.containsKey(record.getId()))
+                    return DBConstants.ERROR_DUPLICATE_ID;
+                slot = allocateSlot();
+                idIndex.put(record.getId(), slot);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+
+            Lock slotLock = slotLocks.forSlot(slot).writeLock();
+            slotLock.lock();
+            try {
+                int length = writeRecord(record, slot);
+                indexLock.writeLock().lock();
+                try {
+                    addToIndexes(record, slot);
+                    header.setRecordCount(header.getRecordCount() + 1);
+                    heapLive += length;
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                indexLock.writeLock().lock();
+                try {
+                    idIndex.remove(record.getId(), NO_SLOT);
+                    markSpaceAsFree(slot);
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+                return DBConstants.ERROR_INVALID_FORMAT;
+            } finally {
+                slotLock.unlock();
+            }
             return DBConstants.SUCCESS;
+        } finally {
+            dbLock.readLock().unlock();
+            checkpointIfNeeded();
+        }
+    }
+
+    //Пакетное добавление: проверка и отсев повторов id заранее, слоты выделяются сразу на всю порцию,
+    //соседние слоты пишутся одной записью, одна фиксация журнала на порцию, индексы обновляются за один проход.
+    //Ошибка одной записи не прерывает пакет - её код попадает в результат.
+    public BatchResult addRecords(Collection<Product> records) {
+        Product[] batch = records.toArray(new Product[0]);
+        BatchResult result = new BatchResult(batch.length);
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) {
+                for (int i = 0; i < batch.length; i++) result.setCode(i, DBConstants.ERROR_FILE_NOT_FOUND);
+                return result;
+            }
+            IntIntHashMap seen = new IntIntHashMap(batch.length);
+            for (int i = 0; i < batch.length; i++) {
+                Product p = batch[i];
+                if (p == null || !p.isValid()) result.setCode(i, DBConstants.ERROR_INVALID_FORMAT);
+                else if (seen.containsKey(p.getId())) result.setCode(i, DBConstants.ERROR_DUPLICATE_ID);
+                else seen.put(p.getId(), i);
+            }
+            int[] chunk = new int[Math.min(batch.length, DBConstants.BATCH_CHUNK)];
+            int count = 0;
+            for (int i = 0; i < batch.length; i++) {
+                if (batch[i] == null || result.getCode(i) != DBConstants.SUCCESS) continue;
+                chunk[count++] = i;
+                if (count == chunk.length) {
+                    addChunk(batch, chunk, count, result);
+                    count = 0;
+                }
+            }
+            if (count > 0) addChunk(batch, chunk, count, result);
+            return result;
+        } finally {
+            dbLock.readLock().unlock();
+            checkpointIfNeeded();
+        }
+    }
+
+    private void addChunk(Product[] batch, int[] chunk, int count, BatchResult result) {
+        //резервирование id и слотов
+        int[] slots = new int[count];
+        int[] items = new int[count];
+        int accepted = 0;
+        indexLock.writeLock().lock();
+        try {
+            int from = 0;
+            for (int k = 0; k < count; k++) {
+                int i = chunk[k];
+                if (idIndex.containsKey(batch[i].getId())) {
+                    result.setCode(i, DBConstants.ERROR_DUPLICATE_ID);
+                    continue;
+                }
+                int slot = freeSpace.allocateFrom(from);
+                from = slot + 1;
+                idIndex.put(batch[i].getId(), slot);
+                slots[accepted] = slot;
+                items[accepted] = i;
+                accepted++;
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        if (accepted == 0) return;
+
+        //слоты выделялись по возрастанию, поэтому соседние слоты идут подряд
+        List<Lock> locks = slotLocks.writeLocks(slots, accepted);
+        for (Lock lock : locks) lock.lock();
+        try {
+            Product[] records = new Product[accepted];
+            for (int k = 0; k < accepted; k++) records[k] = batch[items[k]];
+            byte[] data = new byte[accepted * DBConstants.RECORD_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int[] lengths = new int[accepted];
+            byte[] entries = encodeEntries(records, accepted, lengths);
+            long heapPosition = heap.reserve(entries.length);
+            encodeSlots(records, accepted, lengths, buffer, heapPosition);
+            writeRuns(slots, accepted, data, entries, heapPosition);
+            indexLock.writeLock().lock();
+            try {
+                for (int k = 0; k < accepted; k++) addToIndexes(records[k], slots[k]);
+                header.setRecordCount(header.getRecordCount() + accepted);
+                heapLive += entries.length;
+            } finally {
+                indexLock.writeLock().unlock();
+            }
         } catch (IOException e) {
-            return DBConstants.ERROR_INVALID_FORMAT;
+            indexLock.writeLock().lock();
+            try {
+                for (int k = 0; k < accepted; k++) {
+                    idIndex.remove(batch[items[k]].getId(), NO_SLOT);
+                    markSpaceAsFree(slots[k]);
+                    result.setCode(items[k], DBConstants.ERROR_INVALID_FORMAT);
+                }
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        } finally {
+            for (Lock lock : locks) lock.unlock();
         }
     }
 
+    //Записи кучи для records[0..count) подряд, в порядке records; их длины - в lengths
+    private static byte[] encodeEntries(Product[] records, int count, int[] lengths) {
+        int total = 0;
+        for (int k = 0; k < count; k++) {
+            lengths[k] = SlotCodec.entryLength(records[k]);
+            total += lengths[k];
+        }
+        ByteBuffer entries = ByteBuffer.allocate(total);
+        for (int k = 0, at = 0; k < count; at += lengths[k++]) SlotCodec.encodeEntry(records[k], entries, at);
+        return entries.array();
+    }
+
+    //Образы слотов records[0..count) в buffer со ссылками на их записи кучи, лежащие подряд с heapPosition
+    private static void encodeSlots(Product[] records, int count, int[] lengths, ByteBuffer buffer, long heapPosition) {
+        for (int k = 0, at = 0; k < count; at += lengths[k++]) {
+            SlotCodec.encodeSlot(records[k], heapPosition + at, lengths[k], buffer, k * DBConstants.RECORD_SIZE);
+        }
+    }
+
+    //Запись серий соседних слотов (slots по возрастанию, data - слот k со смещения k * RECORD_SIZE)
+    //и записей кучи к ним (entries с heapPosition, null - без кучи):
+    //одна запись журнала на всё, затем куча одной записью и по одной записи в файл на серию слотов
+    private void writeRuns(int[] slots, int count, byte[] data, byte[] entries, long heapPosition) throws IOException {
+        WriteAheadLog.Entry entry = new WriteAheadLog.Entry();
+        if (entries != null) entry.page(WriteAheadLog.HEAP_PAGE | heapPosition, entries, 0, entries.length);
+        for (int start = 0, end; start < count; start = end) {
+            end = runEnd(slots, start, count);
+            entry.page(positionOf(slots[start]), data, start * DBConstants.RECORD_SIZE,
+                    (end - start) * DBConstants.RECORD_SIZE);
+        }
+        wal.commit(wal.append(entry));
+        //куча - раньше слотов: слот не должен ссылаться на ещё не записанные строки
+        if (entries != null) heap.write(heapPosition, entries, 0, entries.length);
+        for (int k = 0; k < count; k++) beforeWrite(slots[k]);
+        for (int start = 0, end; start < count; start = end) {
+            end = runEnd(slots, start, count);
+            storage.write(positionOf(slots[start]), data, start * DBConstants.RECORD_SIZE,
+                    (end - start) * DBConstants.RECORD_SIZE);
+        }
+        RecordCache current = cache;
+        if (current != null) {
+            for (int k = 0; k < count; k++) current.invalidate(slots[k]);
+        }
+    }
+
+    private static int runEnd(int[] slots, int start, int count) {
+        int end = start + 1;
+        while (end < count && slots[end] == slots[end - 1] + 1) end++;
+        return end;
+    }
+
     //Поиск по id
     public Product findRecordById(int id) {
-        if (!isOpen) return null;
-        Long pos = idIndex.get(id);
-        if (pos == null) return null;
+        dbLock.readLock().lock();
         try {
-            Product p = readRecordAtPosition(pos);
-            return (p != null && p.isValid()) ? p : null;
+            if (!isOpen) return null;
+            int slot = lookupSlot(id);
+            if (slot == NO_SLOT) return null;
+            Product p = readRecordShared(slot);
+            return (p != null && p.isValid() && p.getId() == id) ? p : null;
         } catch (IOException e) {
             return null;
+        } finally {
+            dbLock.readLock().unlock();
         }
     }
 
     //Удаление по id
     public int deleteRecordById(int id) {
-        if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
-        Long pos = idIndex.get(id);
-        if (pos == null) return DBConstants.ERROR_RECORD_NOT_FOUND;
-        try {
-            Product p = readRecordAtPosition(pos);
-            if (p != null) {
-                removeFromIndexes(p, pos);
-                markSpaceAsFree(pos);
-                file.seek(pos);
-                file.write(new byte[DBConstants.RECORD_SIZE]);
-                header.setRecordCount(header.getRecordCount() - 1);
-                updateHeader();
-                return DBConstants.SUCCESS;
-            } else {
-                return DBConstants.ERROR_RECORD_NOT_FOUND;
-            }
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
+            int slot = lookupSlot(id);
+            if (slot == NO_SLOT) return DBConstants.ERROR_RECORD_NOT_FOUND;
+            if (!deleteSlot(slot, id)) return DBConstants.ERROR_RECORD_NOT_FOUND;
+            return DBConstants.SUCCESS;
         } catch (IOException e) {
             return DBConstants.ERROR_INVALID_FORMAT;
+        } finally {
+            dbLock.readLock().unlock();
+            checkpointIfNeeded();
         }
     }
 
-    //Получение всех записей
-    public List<Product> getAllRecords() {
-        if (!isOpen) return new ArrayList<>();
+    //Записи с порядковыми номерами [fromRow, fromRow + count) среди записей по возрастанию слотов -
+    //страница таблицы; соседние слоты читаются сериями
+    public List<Product> getRecordsPage(int fromRow, int count) {
         List<Product> records = new ArrayList<>();
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen || count <= 0) return records;
+            int[] slots = new int[count];
+            int found = 0;
+            indexLock.readLock().lock();
+            try {
+                for (int slot = freeSpace.select(fromRow); slot >= 0 && found < count; slot = freeSpace.nextUsed(slot + 1)) {
+                    slots[found++] = slot;
+                }
+            } finally {
+                indexLock.readLock().unlock();
+            }
+            if (found > 0) readSlots(Arrays.copyOf(slots, found), null, records);
+            return records;
+        } catch (IOException e) {
+            return records;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    //Порядковый номер записи с этим id в том же порядке (строка таблицы) или -1
+    public int getRowOf(int id) {
+        dbLock.readLock().lock();
         try {
-            long pos = header.getDataOffset();
-            long end = file.length();
-            while (pos + DBConstants.RECORD_SIZE <= end) {
-                Product p = readRecordAtPosition(pos);
-                if (p != null && p.isValid()) records.add(p);
-                pos += DBConstants.RECORD_SIZE;
+            if (!isOpen) return -1;
+            indexLock.readLock().lock();
+            try {
+                int slot = idIndex.get(id, NO_SLOT);
+                return slot == NO_SLOT ? -1 : freeSpace.rank(slot);
+            } finally {
+                indexLock.readLock().unlock();
+            }
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    //Получение всех записей (для больших бд лучше streamAll или openCursor - они не держат всё в памяти).
+    //Если во время чтения уплотнение перенесло записи, чтение начинается заново
+    public List<Product> getAllRecords() {
+        List<Product> records = new ArrayList<>();
+        while (isOpen) {
+            records.clear();
+            try (RecordCursor cursor = openCursor()) {
+                while (cursor.next()) {
+                    Product p = cursor.product();
+                    if (p.isValid()) records.add(p);
+                }
+                return records;
+            } catch (ConcurrentModificationException e) {
+                //записи перенесены уплотнением - повтор
+            } catch (IOException e) {
+                return records;
             }
-        } catch (IOException ignored) {}
+        }
         return records;
     }
 
+    //Курсор по всем записям в порядке слотов; читает файл большими порциями.
+    //Если между порциями уплотнение перенесёт записи, next() бросит ConcurrentModificationException
+    public RecordCursor openCursor() throws IOException {
+        if (!isOpen) throw new IOException("База не открыта");
+        return new RecordCursor(this, compactionGeneration);
+    }
+
+    //Поток всех записей; его нужно закрыть (try-with-resources), чтобы освободить курсор.
+    //Как и курсор, бросает ConcurrentModificationException, если уплотнение перенесло записи во время обхода
+    public Stream<Product> streamAll() throws IOException {
+        RecordCursor cursor = openCursor();
+        Spliterator<Product> records = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Product> action) {
+                try {
+                    while (cursor.next()) {
+                        Product p = cursor.product();
+                        if (p.isValid()) {
+                            action.accept(p);
+                            return true;
+                        }
+                    }
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(records, false).onClose(cursor::close);
+    }
+
+    //Порция слотов [from, from + CURSOR_CHUNK_SLOTS) для курсора: occupied - занятые слоты порции,
+    //байты занятого диапазона читаются одним обращением, записи кучи занятых слотов - в strings.
+    //Возвращает число слотов в порции, -1 - конец данных.
+    //generation - поколение уплотнения курсора; другое поколение значит, что записи уже сдвинуты
+    int readChunk(int from, long generation, byte[] dst, BitSet occupied, HeapChunk strings) throws IOException {
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) throw new IOException("База закрыта");
+            if (generation != compactionGeneration) {
+                throw new ConcurrentModificationException("Записи перенесены уплотнением, курсор нужно открыть заново");
+            }
+            int end;
+            BitSet bits;
+            indexLock.readLock().lock();
+            try {
+                end = Math.min(freeSpace.totalSlots(), from + DBConstants.CURSOR_CHUNK_SLOTS);
+                if (from >= end) return -1;
+                bits = freeSpace.occupied(from, end);
+            } finally {
+                indexLock.readLock().unlock();
+            }
+            occupied.clear();
+            occupied.or(bits);
+            if (bits.isEmpty()) return end - from;
+
+            int first = bits.nextSetBit(0);
+            int last = bits.length();
+            int offset = first * DBConstants.RECORD_SIZE;
+            int length = (last - first) * DBConstants.RECORD_SIZE;
+            List<Lock> locks = slotLocks.readLocks(from + first, from + last);
+            for (Lock lock : locks) lock.lock();
+            try {
+                int read = Math.max(0, storage.read(positionOf(from + first), dst, offset, length));
+                //слот выделен, но ещё не дописан в файл - читается как пустой
+                if (read < length) Arrays.fill(dst, offset + read, offset + length, (byte) 0);
+            } finally {
+                for (Lock lock : locks) lock.unlock();
+            }
+            //записи кучи не меняются на месте, а уплотнение кучи ждёт dbLock - их можно читать без блокировок слотов
+            int[] wanted = bits.stream().toArray();
+            strings.load(heap.storage(), 0, ByteBuffer.wrap(dst), wanted, wanted.length);
+            return end - from;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
 
-    private void addToIndex(Map<String, Set<Long>> index, String key, long pos) {
+
+    private void addToIndex(Map<String, SlotList> index, String key, int slot) {
         if (key == null || key.isEmpty()) return;
-        index.computeIfAbsent(key, k -> new HashSet<>()).add(pos);
+        SlotList slots = index.get(key);
+        if (slots == null) index.put(key, new SlotList(slot));
+        else slots.add(slot);
     }
 
-    private void removeFromIndex(Map<String, Set<Long>> index, String key, long pos) {
+    private void removeFromIndex(Map<String, SlotList> index, String key, int slot) {
         if (key == null || key.isEmpty()) return;
-        Set<Long> set = index.get(key);
-        if (set != null) {
-            set.remove(pos);
-            if (set.isEmpty()) {
+        SlotList slots = index.get(key);
+        if (slots != null) {
+            slots.remove(slot);
+            if (slots.isEmpty()) {
                 index.remove(key);
             }
         }
     }
 
-    //Поиск по полю (использует индексы, если они есть)
+    //Поиск по полю (использует индексы, если они есть).
+    //Слоты берутся из индекса, затем каждая запись перечитывается и проверяется: пока она читалась,
+    //другой поток мог её изменить.
     public List<Product> findRecordsByField(String field, Object value) {
-        if (!isOpen) return new ArrayList<>();
-        List<Product> results = new ArrayList<>();
+        dbLock.readLock().lock();
         try {
-            if ("id".equals(field) && value instanceof Integer) {
-                Product p = findRecordById((Integer) value);
-                if (p != null) results.add(p);
-                return results;
-            } else if ("brandId".equals(field) && value instanceof Integer) {
-                Set<Long> positions = brandIndex.get((Integer) value);
-                if (positions != null) {
-                    for (Long pos : positions) {
-                        Product p = readRecordAtPosition(pos);
-                        if (p != null && p.isValid()) results.add(p);
-                    }
-                }
-                return results;
-            } else if ("price".equals(field) && value instanceof Double) {
-                Set<Long> positions = priceIndex.get((Double) value);
-                if (positions != null) {
-                    for (Long pos : positions) {
-                        Product p = readRecordAtPosition(pos);
-                        if (p != null && p.isValid()) results.add(p);
-                    }
-                }
-                return results;
-            } else if ("name".equals(field) && value instanceof String) {
-                Set<Long> positions = nameIndex.get((String) value);
-                if (positions != null) {
-                    for (Long pos : positions) {
-                        Product p = readRecordAtPosition(pos);
-                        if (p != null && p.isValid()) results.add(p);
-                    }
+            if (!isOpen) return new ArrayList<>();
+            List<Product> results = new ArrayList<>();
+            try {
+                if ("id".equals(field) && value instanceof Integer) {
+                    Product p = findRecordById((Integer) value);
+                    if (p != null) results.add(p);
+                    return results;
+                } else if ("brandId".equals(field) && value instanceof Integer) {
+                    int brandId = (Integer) value;
+                    readSlots(indexedSlots(() -> brandIndex.get(brandId)), p -> p.getBrandId() == brandId, results);
+                    return results;
+                } else if ("categoryId".equals(field) && value instanceof Integer) {
+                    int categoryId = (Integer) value;
+                    readSlots(indexedSlots(() -> categoryIndex.get(categoryId)),
+                            p -> p.getCategoryId() == categoryId, results);
+                    return results;
+                } else if ("price".equals(field) && value instanceof Double) {
+                    double price = (Double) value;
+                    readSlots(indexedSlots(() -> priceIndex.get(price)),
+                            p -> Double.compare(p.getPrice(), price) == 0, results);
+                    return results;
+                } else if ("price".equals(field) && value instanceof PriceRange) {
+                    PriceRange range = (PriceRange) value;
+                    readSlots(priceSlots(range.getMin(), range.getMax(), true, 0),
+                            p -> range.contains(p.getPrice()), results);
+                    return results;
+                } else if ("name".equals(field) && value instanceof String) {
+                    readSlots(indexedSlots(() -> nameIndex.get(value)), p -> value.equals(p.getName()), results);
+                    return results;
+                } else if ("volumeWeight".equals(field) && value instanceof String) {
+                    readSlots(indexedSlots(() -> volumeWeightIndex.get(value)),
+                            p -> value.equals(p.getVolumeWeight()), results);
+                    return results;
+                } else if ("description".equals(field) && value instanceof String) {
+                    readSlots(indexedSlots(() -> descriptionIndex.get(value)),
+                            p -> value.equals(p.getDescription()), results);
+                    return results;
+                } else if ("text".equals(field) && value instanceof String) {
+                    readSlots(textSlots((String) value, 0), null, results);
+                    return results;
+                } else {
+                    return linearSearchByStringField(field, (value != null) ? value.toString() : "");
                 }
-                return results;
-            } else if ("volumeWeight".equals(field) && value instanceof String) {
-                Set<Long> positions = volumeWeightIndex.get((String) value);
-                if (positions != null) {
-                    for (Long pos : positions) {
-                        Product p = readRecordAtPosition(pos);
-                        if (p != null && p.isValid()) results.add(p);
-                    }
+            } catch (Exception ignored) {}
+            return results;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    //Поиск по нескольким условиям сразу. Списки слотов условий пересекаются в памяти, начиная с самого
+    //короткого, и с диска читаются только записи, прошедшие все условия (в порядке слотов)
+    public List<Product> findRecords(ProductQuery query) {
+        dbLock.readLock().lock();
+        try {
+            List<Product> results = new ArrayList<>();
+            if (!isOpen) return results;
+            try {
+                if (query.isEmpty()) {
+                    SlotScanner.scan(scanPool(), slotCount(), DBConstants.SCAN_RANGE_SLOTS,
+                            (from, to) -> readRange(from, to, null, null, true, false),
+                            part -> {
+                                for (int i = 0; i < part.size(); i++) results.add(part.record(i));
+                            });
+                } else {
+                    readSlots(querySlots(query), query::matches, results);
                 }
-                return results;
-            } else if ("description".equals(field) && value instanceof String) {
-                Set<Long> positions = descriptionIndex.get((String) value);
-                if (positions != null) {
-                    for (Long pos : positions) {
-                        Product p = readRecordAtPosition(pos);
-                        if (p != null && p.isValid()) results.add(p);
+            } catch (IOException ignored) {}
+            return results;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    //Поиск по словам и началам слов в названии и описании; результаты по убыванию релевантности
+    public List<Product> searchText(String query, int limit) {
+        dbLock.readLock().lock();
+        try {
+            List<Product> results = new ArrayList<>();
+            if (!isOpen) return results;
+            try {
+                readSlots(textSlots(query, limit), null, results);
+            } catch (IOException ignored) {}
+            return results;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    //Товары с ценой в [min, max] по возрастанию цены
+    public List<Product> findByPriceRange(double min, double max) {
+        return readByPrice(min, max, true, 0);
+    }
+
+    //n самых дешёвых товаров
+    public List<Product> findCheapest(int n) {
+        return readByPrice(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true, n);
+    }
+
+    //n самых дорогих товаров
+    public List<Product> findMostExpensive(int n) {
+        return readByPrice(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false, n);
+    }
+
+    //Обход товаров в порядке цены; записи читаются по мере продвижения итератора
+    public Iterator<Product> iterateByPrice(double min, double max, boolean ascending) {
+        int[] slots;
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) return Collections.emptyIterator();
+            slots = priceSlots(min, max, ascending, 0);
+        } finally {
+            dbLock.readLock().unlock();
+        }
+        return new Iterator<>() {
+            private int next = 0;
+            private Product pending = advance();
+
+            private Product advance() {
+                dbLock.readLock().lock();
+                try {
+                    while (isOpen && next < slots.length) {
+                        Product p = readRecordShared(slots[next++]);
+                        if (p != null && p.isValid() && p.getPrice() >= min && p.getPrice() <= max) return p;
                     }
+                    return null;
+                } catch (IOException e) {
+                    return null;
+                } finally {
+                    dbLock.readLock().unlock();
                 }
-                return results;
-            } else {
-                return linearSearchByStringField(field, (value != null) ? value.toString() : "");
             }
-        } catch (Exception ignored) {}
-        return results;
+
+            @Override
+            public boolean hasNext() { return pending != null; }
+
+            @Override
+            public Product next() {
+                if (pending == null) throw new NoSuchElementException();
+                Product p = pending;
+                pending = advance();
+                return p;
+            }
+        };
+    }
+
+    //Число товаров и цены (сумма, минимум, максимум, средняя) по брендам, по возрастанию id бренда
+    public Map<Integer, PriceStats> aggregateByBrand() {
+        return aggregate(true);
+    }
+
+    //То же по категориям
+    public Map<Integer, PriceStats> aggregateByCategory() {
+        return aggregate(false);
+    }
+
+    //Агрегаты строятся при первом запросе из индексов в памяти (без чтения файла) под блокировкой записи
+    //индексов и дальше ведутся вместе с ними; повторный запрос стоит O(групп).
+    //Блокировка бд берётся только на чтение (без повышения), так что метод можно звать и из-под неё
+    private Map<Integer, PriceStats> aggregate(boolean byBrand) {
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) return new TreeMap<>();
+            indexLock.writeLock().lock();
+            try {
+                if (brandStats == null) buildAggregates();
+                //понижение до чтения: снимок групп не мешает другим читателям
+                indexLock.readLock().lock();
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            try {
+                return byBrand ? brandStats.snapshot() : categoryStats.snapshot();
+            } finally {
+                indexLock.readLock().unlock();
+            }
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    private void buildAggregates() {
+        int slots = freeSpace.lastUsed() + 1;
+        brandStats = buildGroupStats(brandIndex, slots);
+        categoryStats = buildGroupStats(categoryIndex, slots);
     }
 
-    //Линейный поиск в строке
+    //Номер группы каждого слота - из битовой карты индекса, цены - из индекса цены
+    private GroupStats buildGroupStats(LongPostingMap<RoaringBitmap> index, int slots) {
+        int[] groupOf = new int[slots];
+        Arrays.fill(groupOf, -1);
+        int[] keys = new int[index.size()];
+        int[] count = {0};
+        index.forEach((key, set) -> {
+            int group = count[0]++;
+            keys[group] = (int) key;
+            for (int slot : set.toArray()) if (slot < slots) groupOf[slot] = group;
+        });
+        return GroupStats.build(keys, count[0], groupOf, priceIndex);
+    }
+
+    //Удаление всех товаров с ценой в [min, max]
+    public int deleteByPriceRange(double min, double max) {
+        return deleteRecordsByField("price", new PriceRange(min, max));
+    }
+
+    private List<Product> readByPrice(double min, double max, boolean ascending, int limit) {
+        dbLock.readLock().lock();
+        try {
+            List<Product> results = new ArrayList<>();
+            if (!isOpen) return results;
+            try {
+                readSlots(priceSlots(min, max, ascending, limit), p -> p.getPrice() >= min && p.getPrice() <= max, results);
+            } catch (IOException ignored) {}
+            return results;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    //Линейный поиск в строке (параллельно по диапазонам слотов, результат в порядке слотов)
     private List<Product> linearSearchByStringField(String field, String value) throws IOException {
         List<Product> results = new ArrayList<>();
-        long pos = header.getDataOffset();
-        long end = file.length();
         String target = value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
-        while (pos + DBConstants.RECORD_SIZE <= end) {
-            Product p = readRecordAtPosition(pos);
-            if (p != null && p.isValid()) {
-                String fieldValue = switch (field) {
-                    case "name" -> p.getName();
-                    case "volumeWeight" -> p.getVolumeWeight();
-                    case "description" -> p.getDescription();
-                    default -> "";
-                };
-                if (fieldValue != null && fieldValue.trim().toLowerCase(Locale.ROOT).equals(target)) {
-                    results.add(p);
+        //числовое поле сравнивается по слоту: строки из кучи читаются только у найденных записей
+        SlotFilter slotFilter = null;
+        if ("categoryId".equals(field)) {
+            Integer categoryId = parseCanonicalInt(target);
+            if (categoryId == null) return results; //String.valueOf(int) такой строкой не бывает
+            slotFilter = (slots, offset) -> SlotCodec.categoryId(slots, offset) == categoryId;
+        }
+        SlotFilter numeric = slotFilter;
+        Predicate<Product> filter = numeric != null ? null : p -> {
+            String fieldValue = switch (field) {
+                case "name" -> p.getName();
+                case "volumeWeight" -> p.getVolumeWeight();
+                case "description" -> p.getDescription();
+                case "categoryId" -> String.valueOf(p.getCategoryId());
+                default -> "";
+            };
+            return fieldValue != null && fieldValue.trim().toLowerCase(Locale.ROOT).equals(target);
+        };
+        SlotScanner.scan(scanPool(), slotCount(), DBConstants.SCAN_RANGE_SLOTS,
+                (from, to) -> readRange(from, to, numeric, filter, true, false),
+                part -> {
+                    for (int i = 0; i < part.size(); i++) results.add(part.record(i));
+                });
+        return results;
+    }
+
+    //Целое в том виде, в каком его пишет String.valueOf, иначе null
+    private static Integer parseCanonicalInt(String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            return String.valueOf(parsed).equals(value) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    //Чтение диапазона слотов [from, to) порциями; slotFilter - условие на числовые поля, проверяется
+    //по слотам до чтения кучи (записи кучи читаются только для подошедших слотов);
+    //shared - брать блокировки чтения слотов (при перестроении индексов бд заблокирована целиком и они не нужны);
+    //prepare - заранее, в потоке задачи, разобрать слова и посчитать хэши строк для индексов
+    private SlotScanner.Part readRange(int from, int to, SlotFilter slotFilter, Predicate<Product> filter,
+                                       boolean shared, boolean prepare) throws IOException {
+        SlotScanner.Part part = new SlotScanner.Part();
+        ByteBuffer buffer = SCAN_BUFFER.get();
+        HeapChunk strings = SCAN_STRINGS.get();
+        int[] wanted = slotFilter != null ? SCAN_WANTED.get() : null;
+        byte[] chunk = buffer.array();
+        for (int start = from; start < to; start += DBConstants.CURSOR_CHUNK_SLOTS) {
+            int end = Math.min(to, start + DBConstants.CURSOR_CHUNK_SLOTS);
+            readRun(start, end, chunk, shared);
+            int n = end - start;
+            if (slotFilter != null) {
+                n = 0;
+                for (int i = 0; i < end - start; i++) {
+                    int offset = i * DBConstants.RECORD_SIZE;
+                    if (SlotCodec.decodeId(buffer, offset) != 0 && slotFilter.test(buffer, offset)) wanted[n++] = i;
+                }
+                if (n == 0) continue;
+                strings.load(heap.storage(), 0, buffer, wanted, n);
+            } else {
+                strings.load(heap.storage(), 0, buffer, n);
+            }
+            for (int k = 0; k < n; k++) {
+                int i = wanted != null ? wanted[k] : k;
+                int offset = i * DBConstants.RECORD_SIZE;
+                if (SlotCodec.decodeId(buffer, offset) == 0) continue; //пустой слот
+                Product p = SlotCodec.decode(buffer, offset, strings.data(), strings.entryAt(i));
+                if (!p.isValid() || (filter != null && !filter.test(p))) continue;
+                if (prepare) {
+                    part.addHeapBytes(SlotCodec.heapLength(buffer, offset));
+                    //хэш String кэшируется в самой строке - HashMap при вставке его уже не считает
+                    p.getName().hashCode();
+                    p.getDescription().hashCode();
+                    p.getVolumeWeight().hashCode();
+                    part.add(start + i, p, TextIndex.terms(p.getName()), TextIndex.terms(p.getDescription()));
+                } else {
+                    part.add(start + i, p);
                 }
             }
-            pos += DBConstants.RECORD_SIZE;
         }
-        return results;
+        return part;
+    }
+
+    //Чтение слотов [start, end) в chunk; за концом файла - нули.
+    //Записи кучи к ним можно дочитать и после блокировок: они не меняются на месте, а уплотнение кучи
+    //ждёт монопольной блокировки бд, которую держит (на чтение) вызывающий
+    private void readRun(int start, int end, byte[] chunk, boolean shared) throws IOException {
+        int length = (end - start) * DBConstants.RECORD_SIZE;
+        List<Lock> locks = shared ? slotLocks.readLocks(start, end) : Collections.emptyList();
+        for (Lock lock : locks) lock.lock();
+        try {
+            int read = Math.max(0, storage.read(positionOf(start), chunk, 0, length));
+            if (read < length) Arrays.fill(chunk, read, length, (byte) 0);
+        } finally {
+            for (Lock lock : locks) lock.unlock();
+        }
+    }
+
+    //Ход операции и отмена между порциями: отменённая операция выходит через InterruptedIOException
+    private static void reportProgress(Progress progress, String stage, long done, long total)
+            throws InterruptedIOException {
+        progress.update(stage, done, total);
+        if (progress.isCancelled()) throw new InterruptedIOException("Операция отменена");
+    }
+
+    //Пул создаётся при первом параллельном обходе; при parallelism = 1 обход идёт в вызывающем потоке
+    private synchronized ForkJoinPool scanPool() {
+        if (parallelism <= 1) return null;
+        if (scanPool == null) scanPool = new ForkJoinPool(parallelism);
+        return scanPool;
     }
 
     //Удаление по полю (оптимизировано для индексированных полей)
     public int deleteRecordsByField(String field, Object value) {
-        if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
-        List<Product> toDelete = findRecordsByField(field, value);
-        if (toDelete.isEmpty()) return DBConstants.ERROR_RECORD_NOT_FOUND;
-
-        try {
-            for (Product p : toDelete) {
-                Long pos = idIndex.get(p.getId());
-                if (pos != null) {
-                    removeFromIndexes(p, pos);
-                    markSpaceAsFree(pos);
-                    file.seek(pos);
-                    file.write(new byte[DBConstants.RECORD_SIZE]);
+        return deleteRecordsByField(field, value, Progress.NONE);
+    }
+
+    //Удаление с ходом по порциям; отмена между порциями (ERROR_CANCELLED) - удалённые порции остаются удалены
+    public int deleteRecordsByField(String field, Object value, Progress progress) {
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
+            List<Product> toDelete = findRecordsByField(field, value);
+            if (toDelete.isEmpty()) return DBConstants.ERROR_RECORD_NOT_FOUND;
+
+            try {
+                for (int from = 0; from < toDelete.size(); from += DBConstants.BATCH_CHUNK) {
+                    int to = Math.min(toDelete.size(), from + DBConstants.BATCH_CHUNK);
+                    deleteChunk(toDelete.subList(from, to));
+                    reportProgress(progress, "Удаление", to, toDelete.size());
                 }
+                return DBConstants.SUCCESS;
+            } catch (InterruptedIOException e) {
+                return DBConstants.ERROR_CANCELLED;
+            } catch (Exception e) {
+                return DBConstants.ERROR_INVALID_FORMAT;
             }
-            header.setRecordCount(header.getRecordCount() - toDelete.size());
-            updateHeader();
-            return DBConstants.SUCCESS;
-        } catch (Exception e) {
-            return DBConstants.ERROR_INVALID_FORMAT;
+        } finally {
+            dbLock.readLock().unlock();
+            checkpointIfNeeded();
+        }
+    }
+
+    //Удаление порции записей: слоты по возрастанию под блокировками их полос, проверка одним проходом
+    //по сериям слотов, затирание - одна запись журнала (один fsync) и по одной записи в файл на серию
+    private void deleteChunk(List<Product> records) throws IOException {
+        int[] slots = new int[records.size()];
+        int[] ids = new int[records.size()];
+        int count = 0;
+        indexLock.readLock().lock();
+        try {
+            for (Product p : records) {
+                int slot = idIndex.get(p.getId(), NO_SLOT);
+                if (slot == NO_SLOT) continue;
+                slots[count] = slot;
+                ids[count] = p.getId();
+                count++;
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        sortBySlot(slots, ids, count);
+
+        List<Lock> locks = slotLocks.writeLocks(slots, count);
+        for (Lock lock : locks) lock.lock();
+        try {
+            Product[] current = new Product[count];
+            readCoalesced(Arrays.copyOf(slots, count), current, false);
+            int erased = 0;
+            indexLock.writeLock().lock();
+            try {
+                for (int k = 0; k < count; k++) {
+                    Product p = current[k];
+                    if (p == null || p.getId() != ids[k] || idIndex.get(ids[k], NO_SLOT) != slots[k]) continue;
+                    markSpaceAsFree(slots[k]);
+                    current[erased] = p;
+                    slots[erased++] = slots[k];
+                    heapLive -= SlotCodec.entryLength(p);
+                }
+                removeFromIndexes(current, slots, erased);
+                header.setRecordCount(header.getRecordCount() - erased);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            //слоты уже свободны в карте, но новые записи в них ждут блокировки полос
+            if (erased > 0) writeRuns(slots, erased, new byte[erased * DBConstants.RECORD_SIZE], null, 0);
+        } finally {
+            for (Lock lock : locks) lock.unlock();
+        }
+    }
+
+    //Сортировка пар (слот, id) по слоту; результаты поиска обычно уже идут по возрастанию слотов
+    private static void sortBySlot(int[] slots, int[] ids, int count) {
+        boolean sorted = true;
+        for (int k = 1; k < count && sorted; k++) sorted = slots[k - 1] <= slots[k];
+        if (sorted) return;
+        long[] pairs = new long[count];
+        for (int k = 0; k < count; k++) pairs[k] = ((long) slots[k] << 32) | (ids[k] & 0xFFFFFFFFL);
+        Arrays.sort(pairs);
+        for (int k = 0; k < count; k++) {
+            slots[k] = (int) (pairs[k] >>> 32);
+            ids[k] = (int) pairs[k];
         }
     }
 
     //Обновление записи
     public int updateRecord(Product updated) {
-        if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
-        if (!updated.isValid()) return DBConstants.ERROR_INVALID_FORMAT;
-        Long pos = idIndex.get(updated.getId());
-        if (pos == null) return DBConstants.ERROR_RECORD_NOT_FOUND;
-
+        dbLock.readLock().lock();
         try {
-            Product old = readRecordAtPosition(pos);
-            if (old != null) removeFromIndexes(old, pos);
-            writeRecordAtPosition(updated, pos);
-            addToIndexes(updated, pos);
-            return DBConstants.SUCCESS;
+            if (!isOpen) return DBConstants.ERROR_FILE_NOT_FOUND;
+            if (!updated.isValid()) return DBConstants.ERROR_INVALID_FORMAT;
+            int slot = lookupSlot(updated.getId());
+            if (slot == NO_SLOT) return DBConstants.ERROR_RECORD_NOT_FOUND;
+
+            Lock slotLock = slotLocks.forSlot(slot).writeLock();
+            slotLock.lock();
+            try {
+                Product old = readRecord(slot);
+                if (old == null || old.getId() != updated.getId()) return DBConstants.ERROR_RECORD_NOT_FOUND;
+                int length = writeRecord(updated, slot);
+                indexLock.writeLock().lock();
+                try {
+                    removeFromIndexes(old, slot);
+                    addToIndexes(updated, slot);
+                    //прежние строки остаются в куче мусором до уплотнения
+                    heapLive += length - SlotCodec.entryLength(old);
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+                return DBConstants.SUCCESS;
+            } finally {
+                slotLock.unlock();
+            }
         } catch (IOException e) {
             return DBConstants.ERROR_INVALID_FORMAT;
+        } finally {
+            dbLock.readLock().unlock();
+            checkpointIfNeeded();
         }
     }
 
     //Очистка бд
     public void clear() {
-        if (!isOpen) return;
+        dbLock.writeLock().lock();
         try {
+            if (!isOpen) return;
+            finishBackup();
             clearIndexes();
             header.setRecordCount(0);
-            file.setLength(DBConstants.HEADER_SIZE);
+            storage.setLength(DBConstants.HEADER_SIZE);
+            heap.truncate(0);
+            heapLive = 0;
             initializeFreeSpaceMap();
-            updateHeader();
-        } catch (IOException ignored) {}
+            checkpoint();
+        } catch (IOException ignored) {
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    //Сброс изменений на диск
+    public void force() throws IOException {
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) throw new IOException("База не открыта");
+            storage.force();
+            heap.force();
+        } finally {
+            dbLock.readLock().unlock();
+        }
     }
 
-    //Создание backup
+    //Создание backup на момент вызова. Изменения приостанавливаются только на контрольную точку;
+    //слоты копируются порциями, пока бд работает (copy-on-write). Затем копия открывается отдельно
+    //и закрывается, как обычная бд, - в ней остаётся снимок индексов, при восстановлении они не перестраиваются.
     public void backup(String backupPath) throws IOException {
-        if (!isOpen) throw new IOException("База не открыта");
-        Files.copy(Paths.get(filename), Paths.get(backupPath), StandardCopyOption.REPLACE_EXISTING);
+        backup(backupPath, Progress.NONE);
+    }
+
+    //backup с ходом копирования и построения индексов копии; при отмене (InterruptedIOException) файл копии удаляется
+    public void backup(String backupPath, Progress progress) throws IOException {
+        BackupSession session;
+        long id;
+        dbLock.writeLock().lock();
+        try {
+            if (!isOpen) throw new IOException("База не открыта");
+            finishBackup();
+            checkpoint();
+            id = newBackupId();
+            RecordStorage target = createBackupFile(backupPath);
+            RecordStorage heapTarget = createBackupFile(StringHeap.pathFor(backupPath));
+            session = BackupSession.full(backupPath, target, header.getDataOffset(), slotCount(), backupHeader(id),
+                    heap.storage(), heapTarget, heap.end());
+            startBackup(session, id);
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+        copyBackup(session, progress);
+        indexBackup(backupPath, id, progress);
+    }
+
+    //Инкрементальный backup: образы слотов, изменённых после предыдущей копии (полной или инкрементальной)
+    //этого сеанса. Применяется restoreFromBackup(полная копия, инкрементальные копии).
+    public void backupIncremental(String backupPath) throws IOException {
+        backupIncremental(backupPath, Progress.NONE);
+    }
+
+    public void backupIncremental(String backupPath, Progress progress) throws IOException {
+        BackupSession session;
+        dbLock.writeLock().lock();
+        try {
+            if (!isOpen) throw new IOException("База не открыта");
+            finishBackup();
+            long baseId = lastBackupId;
+            if (baseId == 0) throw new IOException("В этом сеансе не было полной копии");
+            checkpoint();
+            int slots = slotCount();
+            int[] changed;
+            synchronized (changedSlots) {
+                changed = changedSlots.get(0, slots).stream().toArray();
+            }
+            long id = newBackupId();
+            RecordStorage target = createBackupFile(backupPath);
+            session = BackupSession.of(backupPath, target, header.getDataOffset(),
+                    IncrementalBackup.dataOffset(changed.length), changed,
+                    IncrementalBackup.header(baseId, id, slots, changed), heap.storage());
+            startBackup(session, id);
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+        copyBackup(session, progress);
+    }
+
+    private RecordStorage createBackupFile(String backupPath) throws IOException {
+        Path path = Paths.get(backupPath).toAbsolutePath();
+        if (path.equals(Paths.get(filename).toAbsolutePath())
+                || path.equals(Paths.get(StringHeap.pathFor(filename)).toAbsolutePath()))
+            throw new IOException("Копия не может заменить файл бд");
+        Files.deleteIfExists(Paths.get(backupPath));
+        return new FileStorage(backupPath);
+    }
+
+    //Заголовок полной копии: без снимка индексов (он появится в indexBackup), с номером копии
+    private byte[] backupHeader(long id) throws IOException {
+        DBHeader copy = new DBHeader();
+        copy.deserialize(header.serialize());
+        copy.setIndexOffset(-1);
+        copy.setFreeSpaceOffset(-1);
+        copy.setBackupId(id);
+        return copy.serialize();
+    }
+
+    //Индексы готовой полной копии строятся проходом по её файлу в отдельном экземпляре,
+    //без блокировок этой бд, и сохраняются в копию при её закрытии
+    private void indexBackup(String backupPath, long id, Progress progress) throws IOException {
+        FileSystem copy = new FileSystem();
+        copy.setParallelism(parallelism);
+        int result;
+        try {
+            result = copy.open(backupPath, progress);
+        } finally {
+            copy.close();
+            copy.setParallelism(1); //останавливает пул потоков копии
+            Files.deleteIfExists(Paths.get(WriteAheadLog.pathFor(backupPath)));
+        }
+        if (result == DBConstants.ERROR_CANCELLED) {
+            Files.deleteIfExists(Paths.get(backupPath));
+            Files.deleteIfExists(Paths.get(StringHeap.pathFor(backupPath)));
+            dropBackupChain(id);
+            throw new InterruptedIOException("Backup отменён");
+        }
+        if (result != DBConstants.SUCCESS) throw new IOException("Копия не открывается: " + backupPath);
+    }
+
+    private static long newBackupId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    //Момент копии (под монопольной блокировкой): дальше изменения считаются для следующей копии
+    private void startBackup(BackupSession session, long id) {
+        synchronized (changedSlots) {
+            changedSlots.clear();
+        }
+        lastBackupId = id;
+        backupSession = session;
+    }
+
+    //Копирование слотов, затем кучи строк порциями; между порциями блокировки отпускаются
+    private void copyBackup(BackupSession session, Progress progress) throws IOException {
+        byte[] buffer = new byte[DBConstants.CURSOR_CHUNK_SLOTS * DBConstants.RECORD_SIZE];
+        byte[] strings = null;
+        while (true) {
+            dbLock.readLock().lock();
+            try {
+                //копию дописали (или не смогли дописать) при закрытии или очистке бд
+                if (backupSession != session) break;
+                if (!session.hasMore() && session.hasMoreHeap()) {
+                    if (strings == null) strings = new byte[1 << 20];
+                    reportProgress(progress, "Копирование строк", session.copyHeap(strings), session.heapSize());
+                    continue;
+                }
+                if (!session.hasMore()) {
+                    session.finish();
+                    backupSession = null;
+                    return;
+                }
+                int end = session.chunkEnd(DBConstants.CURSOR_CHUNK_SLOTS);
+                List<Lock> locks = slotLocks.readLocks(session.slotAt(session.nextRank()), session.slotAt(end - 1) + 1);
+                for (Lock lock : locks) lock.lock();
+                try {
+                    session.copyChunk(storage, end, buffer);
+                } finally {
+                    for (Lock lock : locks) lock.unlock();
+                }
+                reportProgress(progress, "Копирование", end, session.size());
+            } catch (IOException e) {
+                failBackup(session);
+                throw e;
+            } finally {
+                dbLock.readLock().unlock();
+            }
+        }
+        if (!session.isComplete()) throw new IOException("Копирование прервано");
+    }
+
+    //Дописывание идущей копии под монопольной блокировкой (закрытие, очистка, следующая копия)
+    private void finishBackup() {
+        BackupSession session = backupSession;
+        if (session == null) return;
+        try {
+            session.drain(storage);
+            session.finish();
+            backupSession = null;
+        } catch (IOException e) {
+            failBackup(session);
+        }
+    }
+
+    //Копия не удалась: файл удаляется, цепочка инкрементальных копий начинается заново с полной
+    private void failBackup(BackupSession session) {
+        session.abort();
+        if (backupSession == session) backupSession = null;
+        resetBackupChain();
+    }
+
+    //Отменённая полная копия не начинает цепочку; цепочку более новой копии не трогаем
+    private void dropBackupChain(long id) {
+        dbLock.writeLock().lock();
+        try {
+            if (lastBackupId == id) resetBackupChain();
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    private void resetBackupChain() {
+        lastBackupId = 0;
+        synchronized (changedSlots) {
+            changedSlots.clear();
+        }
+    }
+
+    //Уплотнение: записи из конца файла переносятся в младшие свободные слоты, файл обрезается по последней записи.
+    //Идёт шагами по COMPACT_STEP_MOVES записей; между шагами монопольная блокировка отпускается,
+    //так что остальные операции ждут не дольше одного шага.
+    public CompactionResult compact() throws IOException {
+        return compact(Progress.NONE);
+    }
+
+    //Уплотнение с ходом (перенесено записей из числа дыр на начало); при отмене между шагами
+    //возвращается итог сделанных шагов (isFinished() == false)
+    public CompactionResult compact(Progress progress) throws IOException {
+        long holes = getFreeSlotCount();
+        CompactionResult total = new CompactionResult(0, 0, 0, false);
+        while (!total.isFinished() && !progress.isCancelled()) {
+            CompactionResult step = compact(DBConstants.COMPACT_STEP_MOVES);
+            total = total.plus(step);
+            if (step.getMovedEntries() > 0) {
+                progress.update("Уплотнение кучи строк", total.getMovedEntries(), getRecordCount());
+            } else {
+                progress.update("Уплотнение", Math.min(holes, total.getMovedRecords()), holes);
+            }
+            Thread.yield();
+        }
+        return total;
+    }
+
+    //Один шаг уплотнения: не больше maxMoves переносов
+    public CompactionResult compact(int maxMoves) throws IOException {
+        if (maxMoves < 1) throw new IllegalArgumentException("maxMoves < 1");
+        dbLock.writeLock().lock();
+        try {
+            if (!isOpen) throw new IOException("База не открыта");
+            long before = storage.length() + heap.end();
+
+            //пары (старшая запись, младшая дыра), пока дыра ниже записи
+            int[] sources = new int[maxMoves];
+            int[] targets = new int[maxMoves];
+            int count = 0;
+            int source = freeSpace.lastUsed();
+            int target = freeSpace.nextFree(0);
+            while (count < maxMoves && target >= 0 && target < source) {
+                sources[count] = source;
+                targets[count] = target;
+                count++;
+                source = freeSpace.prevUsed(source);
+                target = freeSpace.nextFree(target + 1);
+            }
+            int moved = count == 0 ? 0 : moveRecords(sources, targets, count);
+
+            int end = freeSpace.truncate();
+            if (storage.length() > positionOf(end)) storage.setLength(positionOf(end));
+            //куча строк - после слотов: переносы слотов её не меняют
+            int movedEntries = 0;
+            boolean slotsDone = freeSpace.nextFree(0) < 0;
+            if (slotsDone && moved == 0) movedEntries = compactHeap(maxMoves);
+            //шаг с переносами слотов ещё не дошёл до кучи
+            boolean finished = slotsDone && moved == 0 && heapMoves == null;
+            long after = storage.length() + heap.end();
+            //обрезка файлов должна пережить сбой раньше, чем журнал с переносами будет обнулён
+            if (moved > 0 || movedEntries > 0 || after < before) checkpoint();
+            return new CompactionResult(moved, before - after, 1, finished, movedEntries);
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    //Шаг уплотнения кучи строк (под монопольной блокировкой): живые записи по возрастанию смещений
+    //сдвигаются вниз к heapWrite, ссылки в их слотах меняются той же записью журнала.
+    //Список живых смещений собирается один раз на проход; между шагами записи могут умереть
+    //(проверка: слот записи по её id ссылается на это смещение) или появиться в конце кучи
+    //(они дочитываются, когда список кончится). Идущая копия читает кучу по прежним смещениям,
+    //поэтому при ней куча не уплотняется.
+    private int compactHeap(int maxMoves) throws IOException {
+        if (backupSession != null) {
+            heapMoves = null;
+            return 0;
+        }
+        if (heapMoves == null) {
+            long end = heap.end();
+            if (end == 0 || (end - heapLive) * DBConstants.HEAP_GARBAGE_RATIO < end) return 0;
+            heapScanned = end;
+            heapMoves = liveEntries(0);
+            heapMoveNext = 0;
+            heapWrite = 0;
+        }
+        if (heapMoveNext == heapMoves.length) {
+            long end = heap.end();
+            if (end > heapScanned) {
+                //записи, добавленные между шагами
+                long from = heapScanned;
+                heapScanned = end;
+                heapMoves = liveEntries(from);
+                heapMoveNext = 0;
+                return 0;
+            }
+            heap.truncate(heapWrite);
+            heapMoves = null;
+            return 0;
+        }
+
+        byte[] span = new byte[DBConstants.HEAP_READ_SPAN];
+        long start = heapMoves[heapMoveNext];
+        int read = Math.max(0, heap.read(start, span, 0, span.length));
+        if (read < span.length) Arrays.fill(span, read, span.length, (byte) 0);
+        byte[] moved = new byte[span.length];
+        int used = 0;
+        int[] slots = new int[maxMoves];
+        byte[] images = new byte[maxMoves * DBConstants.RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(images);
+        int count = 0;
+        while (count < maxMoves && heapMoveNext < heapMoves.length) {
+            long position = heapMoves[heapMoveNext];
+            int at = (int) Math.min(span.length, position - start);
+            if (at + SlotCodec.ENTRY_HEADER > span.length) break;
+            int slot = idIndex.get(SlotCodec.entryId(span, at), NO_SLOT);
+            int offset = count * DBConstants.RECORD_SIZE;
+            if (slot == NO_SLOT
+                    || storage.read(positionOf(slot), images, offset, DBConstants.RECORD_SIZE) != DBConstants.RECORD_SIZE
+                    || SlotCodec.heapOffset(buffer, offset) != position
+                    || SlotCodec.heapLength(buffer, offset) < SlotCodec.ENTRY_HEADER
+                    || SlotCodec.heapLength(buffer, offset) > SlotCodec.MAX_ENTRY_LENGTH) {
+                heapMoveNext++; //запись умерла после сбора списка (или ссылка на неё повреждена)
+                continue;
+            }
+            int length = SlotCodec.heapLength(buffer, offset);
+            if (at + length > span.length) break;
+            System.arraycopy(span, at, moved, used, length);
+            SlotCodec.setHeapOffset(buffer, offset, heapWrite + used);
+            slots[count++] = slot;
+            used += length;
+            heapMoveNext++;
+        }
+        if (count > 0) {
+            writeRuns(slots, count, images, Arrays.copyOf(moved, used), heapWrite);
+            heapWrite += used;
+        }
+        return count;
+    }
+
+    //Смещения записей кучи, на которые ссылаются слоты, не ниже from - по возрастанию
+    private long[] liveEntries(long from) throws IOException {
+        int totalSlots = slotCount();
+        ByteBuffer buffer = SCAN_BUFFER.get();
+        byte[] chunk = buffer.array();
+        long[] offsets = new long[Math.max(16, idIndex.size())];
+        int n = 0;
+        for (int start = 0; start < totalSlots; start += DBConstants.CURSOR_CHUNK_SLOTS) {
+            int end = Math.min(totalSlots, start + DBConstants.CURSOR_CHUNK_SLOTS);
+            readRun(start, end, chunk, false);
+            for (int i = 0; i < end - start; i++) {
+                int offset = i * DBConstants.RECORD_SIZE;
+                if (SlotCodec.decodeId(buffer, offset) == 0 || SlotCodec.heapLength(buffer, offset) <= 0) continue;
+                long position = SlotCodec.heapOffset(buffer, offset);
+                if (position < from) continue;
+                if (n == offsets.length) offsets = Arrays.copyOf(offsets, n * 2);
+                offsets[n++] = position;
+            }
+        }
+        long[] sorted = Arrays.copyOf(offsets, n);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    //Перенос записей sources[k] -> targets[k] (все targets ниже всех sources) под монопольной блокировкой:
+    //образы новых слотов и затирание старых - одна запись журнала, так что после сбоя запись не раздвоится
+    private int moveRecords(int[] sources, int[] targets, int count) throws IOException {
+        //sources собраны по убыванию, targets - по возрастанию
+        int[] from = new int[count];
+        for (int k = 0; k < count; k++) from[k] = sources[count - 1 - k];
+        Product[] records = new Product[count];
+        readCoalesced(from, records, false);
+
+        int[] to = new int[count];
+        int moved = 0;
+        for (int k = 0; k < count; k++) {
+            if (records[k] == null) continue;
+            records[moved] = records[k];
+            from[moved] = from[k];
+            to[moved] = targets[moved];
+            moved++;
+        }
+        int[] slots = new int[2 * moved];
+        byte[] data = new byte[2 * moved * DBConstants.RECORD_SIZE];
+        //слот переносится как есть, вместе со ссылкой на строки: куча при этом не меняется
+        readImages(from, moved, data);
+        for (int k = 0; k < moved; k++) {
+            slots[k] = to[k];
+            slots[moved + k] = from[k];
+        }
+        writeRuns(slots, 2 * moved, data, null, 0);
+        if (moved > 0) compactionGeneration++;
+
+        indexLock.writeLock().lock();
+        try {
+            removeFromIndexes(records, from, moved);
+            addToIndexes(records, to, moved);
+            for (int k = 0; k < moved; k++) freeSpace.allocateFrom(to[k]);
+            for (int k = 0; k < count; k++) freeSpace.free(sources[k]);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        return moved;
+    }
+
+    //Образы слотов slots[0..count) (по возрастанию) в dst подряд; подряд идущие слоты - одним чтением
+    private void readImages(int[] slots, int count, byte[] dst) throws IOException {
+        for (int i = 0; i < count; ) {
+            int end = i + 1;
+            while (end < count && slots[end] == slots[end - 1] + 1) end++;
+            int length = (end - i) * DBConstants.RECORD_SIZE;
+            int offset = i * DBConstants.RECORD_SIZE;
+            int read = Math.max(0, storage.read(positionOf(slots[i]), dst, offset, length));
+            if (read < length) Arrays.fill(dst, offset + read, offset + length, (byte) 0);
+            i = end;
+        }
     }
 
     //Восстановление из backup
     public int restoreFromBackup(String backupPath) {
-        close();
+        return restoreFromBackup(backupPath, Collections.emptyList());
+    }
+
+    //Восстановление из полной копии и инкрементальных копий поверх неё (в любом порядке - цепочка
+    //выстраивается по номерам копий). Индексы берутся из снимка полной копии и обновляются только
+    //для слотов, изменённых в инкрементальных копиях, - без прохода по всему файлу.
+    public int restoreFromBackup(String backupPath, List<String> incrementPaths) {
+        return restoreFromBackup(backupPath, incrementPaths, Progress.NONE);
+    }
+
+    //Полная копия сначала копируется во временный файл рядом с бд, без блокировок: бд работает,
+    //а отмена на этом этапе (ERROR_CANCELLED) её не трогает. Затем бд закрывается и файл подменяется.
+    public int restoreFromBackup(String backupPath, List<String> incrementPaths, Progress progress) {
+        String target = filename;
+        if (target == null) return DBConstants.ERROR_FILE_NOT_FOUND;
+        Path temp = Paths.get(target + ".restore");
+        Path heapTemp = Paths.get(StringHeap.pathFor(target) + ".restore");
         try {
-            Files.copy(Paths.get(backupPath), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
-            return open(filename);
+            copyFile(Paths.get(backupPath), temp, progress);
+            copyFile(Paths.get(StringHeap.pathFor(backupPath)), heapTemp, progress);
         } catch (IOException e) {
-            return DBConstants.ERROR_FILE_NOT_FOUND;
+            try {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(heapTemp);
+            } catch (IOException ignored) {}
+            return e instanceof InterruptedIOException ? DBConstants.ERROR_CANCELLED : DBConstants.ERROR_FILE_NOT_FOUND;
+        }
+        dbLock.writeLock().lock();
+        try {
+            //восстановленная бд открывается в том же режиме хранения, что и до восстановления
+            StorageMode mode = storageMode;
+            close(false);
+            try {
+                Files.move(temp, Paths.get(target), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(heapTemp, Paths.get(StringHeap.pathFor(target)), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                return DBConstants.ERROR_FILE_NOT_FOUND;
+            }
+            int result = open(target, mode, progress);
+            if (result != DBConstants.SUCCESS || incrementPaths.isEmpty()) return result;
+            try {
+                applyIncrements(incrementPaths, progress);
+                return DBConstants.SUCCESS;
+            } catch (IOException e) {
+                close(false);
+                return DBConstants.ERROR_INVALID_FORMAT;
+            }
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    //Цепочка проверяется целиком до первой записи в файл
+    private void applyIncrements(List<String> incrementPaths, Progress progress) throws IOException {
+        List<IncrementalBackup> opened = new ArrayList<>();
+        try {
+            Map<Long, IncrementalBackup> byBase = new HashMap<>();
+            for (String path : incrementPaths) {
+                IncrementalBackup increment = IncrementalBackup.open(path);
+                opened.add(increment);
+                if (byBase.put(increment.baseId(), increment) != null)
+                    throw new IOException("Две копии сделаны от одной и той же копии");
+            }
+            List<IncrementalBackup> chain = new ArrayList<>();
+            long current = header.getBackupId();
+            while (chain.size() < opened.size()) {
+                IncrementalBackup next = byBase.get(current);
+                if (next == null) throw new IOException("Цепочка копий разорвана");
+                chain.add(next);
+                current = next.id();
+            }
+            //применение не отменяется - копии небольшие, а бд между ними не соответствует ни одной копии
+            for (int k = 0; k < chain.size(); k++) {
+                applyIncrement(chain.get(k));
+                progress.update("Инкрементальные копии", k + 1, chain.size());
+            }
+            checkpoint();
+        } finally {
+            for (IncrementalBackup increment : opened) increment.close();
+        }
+    }
+
+    //Применение одной копии под монопольной блокировкой: сначала из индексов уходят прежние записи
+    //всех изменённых слотов и хвоста за длиной данных копии, потом добавляются новые образы, файл
+    //обрезается или растёт до длины данных копии. Порядок важен: уплотнение между копиями переносит
+    //записи из хвоста в младшие слоты, и новый слот id не должен сниматься вместе с прежним.
+    //Строки из секции кучи копии дописываются в конец кучи бд, ссылки в образах переписываются на них;
+    //образы и строки идут через журнал (writeRuns), так что сбой посреди применения не оставит слот без строк.
+    private void applyIncrement(IncrementalBackup increment) throws IOException {
+        int[] slots = increment.slots();
+        int totalSlots = increment.totalSlots();
+        removeBaseRecords(slots, totalSlots);
+
+        byte[] images = new byte[DBConstants.CURSOR_CHUNK_SLOTS * DBConstants.RECORD_SIZE];
+        ByteBuffer decoder = ByteBuffer.wrap(images);
+        HeapChunk strings = new HeapChunk(DBConstants.CURSOR_CHUNK_SLOTS);
+        byte[] entries = new byte[64 << 10];
+        for (int start = 0; start < slots.length; start += DBConstants.CURSOR_CHUNK_SLOTS) {
+            int count = Math.min(DBConstants.CURSOR_CHUNK_SLOTS, slots.length - start);
+            int[] chunk = Arrays.copyOfRange(slots, start, start + count);
+            Product[] records = new Product[count];
+            int[] present = new int[count];
+
+            increment.readImages(start, count, images);
+            strings.load(increment.storage(), increment.heapOffset(), decoder, count);
+            int used = 0;
+            for (int k = 0; k < count; k++) {
+                int offset = k * DBConstants.RECORD_SIZE;
+                if (SlotCodec.decodeId(decoder, offset) == 0) {
+                    records[k] = null;
+                    continue;
+                }
+                int entry = strings.entryAt(k);
+                records[k] = SlotCodec.decode(decoder, offset, strings.data(), entry);
+                int length = entry < 0 ? 0 : SlotCodec.heapLength(decoder, offset);
+                if (used + length > entries.length) {
+                    entries = Arrays.copyOf(entries, Math.max(entries.length * 2, used + length));
+                }
+                if (length > 0) System.arraycopy(strings.data(), entry, entries, used, length);
+                SlotCodec.setHeapOffset(decoder, offset, used);
+                SlotCodec.setHeapLength(decoder, offset, length);
+                used += length;
+            }
+            long heapPosition = heap.reserve(used);
+            for (int k = 0; k < count; k++) {
+                int offset = k * DBConstants.RECORD_SIZE;
+                if (records[k] == null) continue;
+                SlotCodec.setHeapOffset(decoder, offset, heapPosition + SlotCodec.heapOffset(decoder, offset));
+                heapLive += SlotCodec.heapLength(decoder, offset);
+            }
+            //образы и строки порции - одна запись журнала, как у обычной пакетной записи
+            writeRuns(chunk, count, images, Arrays.copyOf(entries, used), heapPosition);
+            addToIndexes(records, present, compactPresent(records, chunk, present));
+        }
+
+        //хвост, отрезанный уплотнением после предыдущей копии
+        if (slotCount() > totalSlots) storage.setLength(positionOf(totalSlots));
+        BitSet occupied = new BitSet(totalSlots);
+        idIndex.forEach((id, slot) -> occupied.set(slot));
+        freeSpace.load(occupied, totalSlots);
+        header.setRecordCount(idIndex.size());
+        header.setBackupId(increment.id());
+        RecordCache current = cache;
+        if (current != null) current.clear();
+    }
+
+    //Прежние записи изменённых слотов и занятых слотов хвоста (не ниже totalSlots) - из файла и из индексов,
+    //пока ни один образ копии ещё не записан
+    private void removeBaseRecords(int[] changed, int totalSlots) throws IOException {
+        BitSet affected = new BitSet();
+        for (int slot : changed) affected.set(slot);
+        idIndex.forEach((id, slot) -> {
+            if (slot >= totalSlots) affected.set(slot);
+        });
+        int[] all = affected.stream().toArray();
+        for (int start = 0; start < all.length; start += DBConstants.CURSOR_CHUNK_SLOTS) {
+            int[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + DBConstants.CURSOR_CHUNK_SLOTS));
+            Product[] records = new Product[chunk.length];
+            int[] present = new int[chunk.length];
+            readCoalesced(chunk, records, false);
+            int removed = compactPresent(records, chunk, present);
+            for (int k = 0; k < removed; k++) heapLive -= SlotCodec.entryLength(records[k]);
+            removeFromIndexes(records, present, removed);
+        }
+    }
+
+    //Непустые записи сдвигаются в начало records, их слоты пишутся в present; возвращает их число
+    private static int compactPresent(Product[] records, int[] slots, int[] present) {
+        int n = 0;
+        for (int k = 0; k < records.length; k++) {
+            if (records[k] == null) continue;
+            records[n] = records[k];
+            present[n++] = slots[k];
+        }
+        return n;
+    }
+
+    //Копирование файла порциями по COPY_CHUNK_BYTES с ходом и отменой между порциями
+    private static void copyFile(Path from, Path to, Progress progress) throws IOException {
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long done = 0;
+            while (done < size) {
+                long copied = in.transferTo(done, Math.min(DBConstants.COPY_CHUNK_BYTES, size - done), out);
+                if (copied <= 0) throw new IOException("Файл копии укоротился: " + from);
+                done += copied;
+                reportProgress(progress, "Копирование файла", done, size);
+            }
+            out.force(true);
         }
     }
 
     //Удаление файла бд
     public void deleteDatabaseFile() {
-        close();
+        dbLock.writeLock().lock();
         try {
-            Files.deleteIfExists(Paths.get(filename));
-            filename = null;
-        } catch (IOException ignored) {}
+            close(false);
+            try {
+                Files.deleteIfExists(Paths.get(filename));
+                Files.deleteIfExists(Paths.get(StringHeap.pathFor(filename)));
+                filename = null;
+            } catch (IOException ignored) {}
+        } finally {
+            dbLock.writeLock().unlock();
+        }
     }
 
-    //Создание CSV
+    //Создание CSV: область данных читается диапазонами, строки диапазона собираются в байты UTF-8
+    //в задачах пула обхода (setParallelism) и пишутся в файл в порядке слотов - каждый диапазон одной записью
     public void exportToCSV(String path) throws IOException {
-        if (!isOpen) throw new IOException("База не открыта");
+        exportToCSV(path, Progress.NONE);
+    }
 
-        //Делаем расширение .csv
-        if (!path.toLowerCase().endsWith(".csv")) {
-            path = path.substring(0, path.lastIndexOf('.')) + ".csv";
-        }
+    //Экспорт с ходом по слотам; при отмене (InterruptedIOException) недописанный файл удаляется
+    public void exportToCSV(String path, Progress progress) throws IOException {
+        dbLock.readLock().lock();
+        try {
+            if (!isOpen) throw new IOException("База не открыта");
+
+            //Делаем расширение .csv
+            if (!path.toLowerCase().endsWith(".csv")) {
+                path = path.substring(0, path.lastIndexOf('.')) + ".csv";
+            }
 
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "UTF-8"))) {
-            // Заголовок
-            writer.write("ID;Название;Цена;Бренд ID;Категория ID;Объём;Описание");
-            writer.newLine();
+            try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // Заголовок
+                CsvFormatter header = new CsvFormatter(128);
+                header.header();
+                writeFully(out, header);
 
-            //Данные
-            for (Product p : getAllRecords()) {
-                String line = String.format("%d;%s;%.2f;%d;%d;%s;%s",
-                        p.getId(),
-                        p.getName().replace(";", ","),
-                        p.getPrice(),
-                        p.getBrandId(),
-                        p.getCategoryId(),
-                        p.getVolumeWeight().replace(";", ","),
-                        p.getDescription().replace(";", ",")
-                );
-                writer.write(line);
-                writer.newLine();
+                //Данные
+                int totalSlots = slotCount();
+                long[] scanned = {0};
+                SlotScanner.scan(scanPool(), totalSlots, DBConstants.SCAN_RANGE_SLOTS,
+                        this::formatRange, part -> {
+                            writeFully(out, part);
+                            scanned[0] = Math.min(totalSlots, scanned[0] + DBConstants.SCAN_RANGE_SLOTS);
+                            reportProgress(progress, "Экспорт", scanned[0], totalSlots);
+                        });
+            } catch (InterruptedIOException e) {
+                Files.deleteIfExists(Paths.get(path));
+                throw e;
             }
+        } finally {
+            dbLock.readLock().unlock();
         }
     }
 
+    //Строки CSV для слотов [from, to); слоты читаются порциями под блокировками чтения, затем их записи кучи
+    private CsvFormatter formatRange(int from, int to) throws IOException {
+        CsvFormatter csv = new CsvFormatter((to - from) * DBConstants.CSV_LINE_ESTIMATE);
+        ByteBuffer buffer = SCAN_BUFFER.get();
+        HeapChunk strings = SCAN_STRINGS.get();
+        for (int start = from; start < to; start += DBConstants.CURSOR_CHUNK_SLOTS) {
+            int end = Math.min(to, start + DBConstants.CURSOR_CHUNK_SLOTS);
+            readRun(start, end, buffer.array(), true);
+            strings.load(heap.storage(), 0, buffer, end - start);
+            for (int i = 0; i < end - start; i++) {
+                csv.appendRecord(buffer, i * DBConstants.RECORD_SIZE, strings.data(), strings.entryAt(i));
+            }
+        }
+        return csv;
+    }
+
+    private static void writeFully(FileChannel out, CsvFormatter csv) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(csv.array(), 0, csv.size());
+        while (data.hasRemaining()) out.write(data);
+    }
+
     //Вспомогательные методы для методов выше
-    //Управление свободным местом
-    private long findFreeSpace() {
-        if (freeSpaceMap == null) return -1;
-        int freeBit = freeSpaceMap.nextClearBit(0);
-        if (freeBit < totalSlots) {
-            freeSpaceMap.set(freeBit);
-            return header.getDataOffset() + (freeBit * DBConstants.RECORD_SIZE);
+    //Управление свободным местом (вызывается под indexLock)
+    //слот занимается сразу, чтобы параллельные добавления не получили тот же
+    private int allocateSlot() {
+        return freeSpace.allocate();
+    }
+
+    private void markSpaceAsFree(int slot) {
+        freeSpace.free(slot);
+    }
+
+    //Количество слотов, помещающихся в файл
+    private int slotCount() throws IOException {
+        long dataSize = storage.length() - header.getDataOffset();
+        return dataSize <= 0 ? 0 : (int) (dataSize / DBConstants.RECORD_SIZE);
+    }
+
+    private long positionOf(int slot) {
+        return header.getDataOffset() + (long) slot * DBConstants.RECORD_SIZE;
+    }
+
+    //Открытие хранилища в выбранном режиме
+    private RecordStorage openStorage(StorageMode mode) throws IOException {
+        storageMode = mode;
+        if (mode == StorageMode.MAPPED) {
+            return new MappedStorage(filename, DBConstants.HEADER_SIZE,
+                    DBConstants.RECORD_SIZE * DBConstants.MAPPED_SEGMENT_SLOTS);
         }
-        return -1;
+        return new FileStorage(filename);
     }
 
-    private void markSpaceAsFree(long position) {
-        if (freeSpaceMap != null) {
-            int bitIndex = (int) ((position - header.getDataOffset()) / DBConstants.RECORD_SIZE);
-            if (bitIndex >= 0 && bitIndex < totalSlots) {
-                freeSpaceMap.clear(bitIndex);
-            }
+    //Куча строк в том же режиме, что и основной файл (заголовка у кучи нет)
+    private StringHeap openHeap(StorageMode mode) throws IOException {
+        String path = StringHeap.pathFor(filename);
+        if (mode == StorageMode.MAPPED) {
+            return new StringHeap(new MappedStorage(path, 0, DBConstants.MAPPED_HEAP_SEGMENT));
         }
+        return new StringHeap(new FileStorage(path));
     }
 
     //Работа с записями в файле
-    private void writeRecordAtPosition(Product record, long position) throws IOException {
-        file.seek(position);
-        file.write(record.serialize());
+    //Строки - новой записью в конец кучи, слот - со ссылкой на неё; возвращает длину записи кучи
+    private int writeRecord(Product record, int slot) throws IOException {
+        int length = SlotCodec.entryLength(record);
+        ByteBuffer entry = ENTRY_BUFFER.get();
+        if (entry.capacity() < length) {
+            entry = ByteBuffer.allocate(Math.max(length, entry.capacity() * 2));
+            ENTRY_BUFFER.set(entry);
+        }
+        SlotCodec.encodeEntry(record, entry, 0);
+        long heapPosition = heap.reserve(length);
+        ByteBuffer buffer = RECORD_BUFFER.get();
+        SlotCodec.encodeSlot(record, heapPosition, length, buffer, 0);
+        writeSlot(slot, buffer.array(), entry.array(), length, heapPosition);
+        return length;
     }
 
-    private Product readRecordAtPosition(long position) throws IOException {
-        file.seek(position);
-        byte[] buffer = new byte[DBConstants.RECORD_SIZE];
-        int read = file.read(buffer);
+    private void eraseRecord(int slot) throws IOException {
+        writeSlot(slot, EMPTY_RECORD, null, 0, 0);
+    }
+
+    //Сначала образ слота и запись кучи (entry, null - без неё) в журнал одной записью
+    //(и ожидание fsync по политике), потом куча и слот в файлы.
+    //Оборванная запись в файл при сбое восстанавливается из журнала.
+    private void writeSlot(int slot, byte[] data, byte[] entry, int entryLength, long heapPosition) throws IOException {
+        long position = positionOf(slot);
+        if (entry == null) {
+            wal.commit(wal.append(position, data, 0, DBConstants.RECORD_SIZE));
+        } else {
+            WriteAheadLog.Entry log = new WriteAheadLog.Entry()
+                    .page(WriteAheadLog.HEAP_PAGE | heapPosition, entry, 0, entryLength)
+                    .page(position, data, 0, DBConstants.RECORD_SIZE);
+            wal.commit(wal.append(log));
+            heap.write(heapPosition, entry, 0, entryLength);
+        }
+        beforeWrite(slot);
+        storage.write(position, data, 0, DBConstants.RECORD_SIZE);
+        //вызывается под блокировкой записи слота, поэтому читатель не вернёт в кэш старую копию
+        RecordCache current = cache;
+        if (current != null) current.invalidate(slot);
+    }
+
+    //Перед записью слота в файл: прежний образ - в идущую копию, номер - в изменённые после последней копии
+    private void beforeWrite(int slot) throws IOException {
+        BackupSession session = backupSession;
+        if (session != null) session.preserve(storage, slot);
+        if (lastBackupId != 0) {
+            synchronized (changedSlots) {
+                changedSlots.set(slot);
+            }
+        }
+    }
+
+    private WriteAheadLog openWal() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(WriteAheadLog.pathFor(filename));
+        log.setPolicy(syncPolicy, syncIntervalMillis);
+        return log;
+    }
+
+    //Повтор журнала после сбоя; false - журнал пуст (бд была закрыта штатно)
+    private boolean recoverFromLog(Progress progress) throws IOException {
+        if (wal.isEmpty()) return false;
+        //снимок индексов не отражает журнал - выбрасываем его
+        long indexOffset = header.getIndexOffset();
+        if (indexOffset >= header.getDataOffset() && indexOffset <= storage.length()) storage.setLength(indexOffset);
+        header.setIndexOffset(-1);
+        header.setFreeSpaceOffset(-1);
+        wal.replay(storage, heap.storage());
+        heap.syncEnd();
+        //счётчик записей в заголовке мог не успеть обновиться - берём его из перестроенных индексов
+        rebuildIndexes(progress);
+        checkpoint();
+        return true;
+    }
+
+    //Контрольная точка: заголовок, данные и куча на диск, журнал обнуляется
+    private void checkpoint() throws IOException {
+        updateHeader();
+        storage.force();
+        heap.force();
+        wal.reset();
+    }
+
+    //Контрольная точка, когда журнал вырос; нужна монопольная блокировка, чтобы в файле не было незаконченных записей
+    private void checkpointIfNeeded() {
+        WriteAheadLog log = wal;
+        if (log == null || log.size() < DBConstants.WAL_CHECKPOINT_SIZE || dbLock.getReadHoldCount() > 0) return;
+        dbLock.writeLock().lock();
+        try {
+            if (isOpen && wal != null && wal.size() >= DBConstants.WAL_CHECKPOINT_SIZE) checkpoint();
+        } catch (IOException ignored) {
+            //попробуем на следующей операции
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    private Product readRecord(int slot) throws IOException {
+        ByteBuffer buffer = RECORD_BUFFER.get();
+        int read = storage.read(positionOf(slot), buffer.array(), 0, DBConstants.RECORD_SIZE);
         if (read != DBConstants.RECORD_SIZE) return null;
-        Product p = new Product();
-        p.deserialize(buffer);
-        return p;
+        if (SlotCodec.decodeId(buffer, 0) == 0) return null; //пустой слот
+        HeapChunk strings = RECORD_STRINGS.get();
+        strings.load(heap.storage(), 0, buffer, 1);
+        return SlotCodec.decode(buffer, 0, strings.data(), strings.entryAt(0));
     }
 
-    //Перестроение индексов
-    private void rebuildIndexes() throws IOException {
-        clearIndexes();
+    //Чтение слота под блокировкой чтения слота
+    private Product readRecordShared(int slot) throws IOException {
+        Lock slotLock = slotLocks.forSlot(slot).readLock();
+        slotLock.lock();
+        try {
+            RecordCache current = cache;
+            if (current == null) return readRecord(slot);
+            Product p = current.get(slot);
+            if (p == null) {
+                p = readRecord(slot);
+                if (p != null) current.put(slot, p);
+            }
+            return p;
+        } finally {
+            slotLock.unlock();
+        }
+    }
 
-        long fileSize = file.length();
-        long position = header.getDataOffset();
-        if (fileSize < header.getDataOffset()) {
-            // пустая БД (нет записей)
-            totalSlots = 0;
-            freeSpaceMap = new BitSet();
-            return;
+    //Удаление записи из слота, если там всё ещё лежит запись с этим id
+    private boolean deleteSlot(int slot, int id) throws IOException {
+        Lock slotLock = slotLocks.forSlot(slot).writeLock();
+        slotLock.lock();
+        try {
+            Product p = readRecord(slot);
+            if (p == null || p.getId() != id) return false;
+            indexLock.writeLock().lock();
+            try {
+                if (idIndex.get(id, NO_SLOT) != slot) return false;
+                removeFromIndexes(p, slot);
+                markSpaceAsFree(slot);
+                header.setRecordCount(header.getRecordCount() - 1);
+                heapLive -= SlotCodec.entryLength(p);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            //слот уже свободен в карте, но новая запись в него ждёт блокировку слота
+            eraseRecord(slot);
+            return true;
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    private int lookupSlot(int id) {
+        indexLock.readLock().lock();
+        try {
+            return idIndex.get(id, NO_SLOT);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    //Копия списка слотов из индекса (сам список может меняться другими потоками)
+    private int[] indexedSlots(Supplier<? extends SlotSet> lookup) {
+        indexLock.readLock().lock();
+        try {
+            SlotSet slots = lookup.get();
+            return slots == null ? new int[0] : slots.toArray();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private int[] priceSlots(double min, double max, boolean ascending, int limit) {
+        indexLock.readLock().lock();
+        try {
+            return priceIndex.slotsInRange(min, max, ascending, limit);
+        } finally {
+            indexLock.readLock().unlock();
         }
+    }
 
-        totalSlots = (int) ((fileSize - header.getDataOffset()) / DBConstants.RECORD_SIZE);
-        freeSpaceMap = new BitSet(totalSlots);
+    private int[] textSlots(String query, int limit) {
+        indexLock.readLock().lock();
+        try {
+            return textIndex.search(query, limit);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
 
-        while (position + DBConstants.RECORD_SIZE <= fileSize) {
-            Product record = readRecordAtPosition(position);
-            if (record != null && record.isValid()) {
-                addToIndexes(record, position);
-                int bitIndex = (int) ((position - header.getDataOffset()) / DBConstants.RECORD_SIZE);
-                if (bitIndex >= 0 && bitIndex < totalSlots) {
-                    freeSpaceMap.set(bitIndex);
+    //Пересечение списков слотов всех условий запроса; результат по возрастанию слотов.
+    //Битовые карты (бренд, категория, затем диапазон цен) пересекаются поблочно, от меньшей к большей;
+    //строковые условия проверяются поиском по отсортированному списку для каждого оставшегося слота.
+    private int[] querySlots(ProductQuery query) {
+        indexLock.readLock().lock();
+        try {
+            List<RoaringBitmap> bitmaps = new ArrayList<>();
+            List<SlotList> lists = new ArrayList<>();
+            if (query.getBrandId() != null) bitmaps.add(brandIndex.get(query.getBrandId()));
+            if (query.getCategoryId() != null) bitmaps.add(categoryIndex.get(query.getCategoryId()));
+            if (query.getName() != null) lists.add(nameIndex.get(query.getName()));
+            if (query.getVolumeWeight() != null) lists.add(volumeWeightIndex.get(query.getVolumeWeight()));
+            if (bitmaps.contains(null) || lists.contains(null)) return new int[0];
+            PriceRange price = query.getPrice();
+            if (price != null && bitmaps.isEmpty() && lists.isEmpty()) {
+                //только цена: слоты диапазона идут в порядке цены, а читать их лучше в порядке слотов
+                int[] priced = priceIndex.slotsInRange(price.getMin(), price.getMax(), true, 0);
+                Arrays.sort(priced);
+                return priced;
+            }
+            bitmaps.sort(Comparator.comparingInt(RoaringBitmap::size));
+            RoaringBitmap matched = null;
+            for (RoaringBitmap bitmap : bitmaps) {
+                matched = matched == null ? bitmap : RoaringBitmap.and(matched, bitmap);
+                if (matched.isEmpty()) return new int[0];
+            }
+            //диапазон цен собирается в карту последним - остальные условия могли уже дать пустой результат
+            if (price != null) {
+                RoaringBitmap priced = RoaringBitmap.of(priceIndex.slotsInRange(price.getMin(), price.getMax(), true, 0));
+                matched = matched == null ? priced : RoaringBitmap.and(matched, priced);
+                if (matched.isEmpty()) return new int[0];
+            }
+            List<SlotSet> rest = new ArrayList<>(lists);
+            if (matched != null) rest.add(matched);
+            rest.sort(Comparator.comparingInt(SlotSet::size));
+            int[] slots = rest.get(0).toArray();
+            int count = slots.length;
+            for (int k = 1; k < rest.size() && count > 0; k++) {
+                SlotSet other = rest.get(k);
+                int kept = 0;
+                for (int i = 0; i < count; i++) {
+                    if (other.contains(slots[i])) slots[kept++] = slots[i];
                 }
+                count = kept;
             }
-            position += DBConstants.RECORD_SIZE;
+            return Arrays.copyOf(slots, count);
+        } finally {
+            indexLock.readLock().unlock();
         }
     }
 
+    //Чтение записей по списку слотов; filter отсекает записи, изменённые после выборки из индекса
+    //Чтение идёт по возрастанию слотов, близкие слоты читаются одним обращением (readCoalesced),
+    //а результат собирается в порядке исходного списка (порядок цены, релевантности)
+    private void readSlots(int[] slots, Predicate<Product> filter, List<Product> results) throws IOException {
+        if (slots.length == 1) {
+            Product p = readRecordShared(slots[0]);
+            if (p != null && p.isValid() && (filter == null || filter.test(p))) results.add(p);
+            return;
+        }
+        int[] sorted = slots;
+        for (int i = 1; i < slots.length; i++) {
+            if (slots[i - 1] > slots[i]) {
+                sorted = slots.clone();
+                Arrays.sort(sorted);
+                break;
+            }
+        }
+        Product[] records = new Product[sorted.length];
+        readCoalesced(sorted, records, true);
+        for (int i = 0; i < slots.length; i++) {
+            Product p = sorted == slots ? records[i] : records[Arrays.binarySearch(sorted, slots[i])];
+            if (p != null && p.isValid() && (filter == null || filter.test(p))) results.add(p);
+        }
+    }
+
+    //Чтение слотов sorted (по возрастанию) в records (null - пустой слот).
+    //Соседние слоты с пропуском не больше COALESCE_GAP_SLOTS читаются одним позиционным чтением, так что
+    //k случайных чтений превращаются в несколько последовательных; записи из кэша не перечитываются.
+    //shared - брать блокировки чтения полос на время серии; false - вызывающий уже держит блокировки слотов
+    private void readCoalesced(int[] sorted, Product[] records, boolean shared) throws IOException {
+        RecordCache current = shared ? cache : null;
+        if (current != null) {
+            for (int i = 0; i < sorted.length; i++) records[i] = current.get(sorted[i]);
+        }
+        ByteBuffer buffer = SCAN_BUFFER.get();
+        HeapChunk strings = SCAN_STRINGS.get();
+        int[] wanted = new int[Math.min(sorted.length, DBConstants.CURSOR_CHUNK_SLOTS)];
+        byte[] chunk = buffer.array();
+        int i = 0;
+        while (i < sorted.length) {
+            if (records[i] != null) {
+                i++;
+                continue;
+            }
+            int first = sorted[i];
+            int last = first;
+            int end = i + 1;
+            while (end < sorted.length) {
+                if (records[end] == null) {
+                    if (sorted[end] - last > DBConstants.COALESCE_GAP_SLOTS + 1
+                            || sorted[end] - first >= DBConstants.CURSOR_CHUNK_SLOTS) break;
+                    last = sorted[end];
+                }
+                end++;
+            }
+            int length = (last - first + 1) * DBConstants.RECORD_SIZE;
+            List<Lock> locks = shared ? slotLocks.readLocks(first, last + 1) : Collections.emptyList();
+            for (Lock lock : locks) lock.lock();
+            try {
+                int read = Math.max(0, storage.read(positionOf(first), chunk, 0, length));
+                if (read < length) Arrays.fill(chunk, read, length, (byte) 0);
+                int n = 0;
+                for (int k = i; k < end; k++) {
+                    if (records[k] == null) wanted[n++] = sorted[k] - first;
+                }
+                strings.load(heap.storage(), 0, buffer, wanted, n);
+                //декодирование под блокировками: иначе в кэш могла бы попасть уже затёртая запись
+                for (int k = i; k < end; k++) {
+                    if (records[k] != null) continue;
+                    int offset = (sorted[k] - first) * DBConstants.RECORD_SIZE;
+                    if (SlotCodec.decodeId(buffer, offset) == 0) continue; //пустой слот
+                    records[k] = SlotCodec.decode(buffer, offset, strings.data(), strings.entryAt(sorted[k] - first));
+                    if (current != null) current.put(sorted[k], records[k]);
+                }
+            } finally {
+                for (Lock lock : locks) lock.unlock();
+            }
+            i = end;
+        }
+    }
+
+    //Запись снимка индексов и карты свободного места за областью данных
+    private void writeIndexSnapshot() throws IOException {
+        int slots = slotCount();
+        long indexOffset = positionOf(slots);
+        //занятость берём из первичного индекса - он точно знает и про дописанные в конец слоты
+        BitSet occupied = new BitSet(slots);
+        idIndex.forEach((id, slot) -> occupied.set(slot));
+
+        IndexSnapshot.Writer out = IndexSnapshot.writer(storage, indexOffset);
+        out.writeInt(IndexSnapshot.INDEX_MAGIC);
+        out.writeInt(IndexSnapshot.FORMAT_VERSION);
+        out.writeInt(header.getRecordCount());
+        out.writeInt(slots);
+        out.writeLong(heapLive);
+        out.writeIdIndex(idIndex);
+        out.writePostingMap(brandIndex);
+        out.writePostingMap(categoryIndex);
+        out.writePostingMap(priceIndex.postings());
+        out.writeStringIndex(nameIndex);
+        out.writeStringIndex(descriptionIndex);
+        out.writeStringIndex(volumeWeightIndex);
+        long freeSpaceOffset = out.finish();
+
+        IndexSnapshot.Writer free = IndexSnapshot.writer(storage, freeSpaceOffset);
+        free.writeInt(IndexSnapshot.FREE_SPACE_MAGIC);
+        free.writeInt(slots);
+        free.writeBitSet(occupied);
+        long end = free.finish();
+        storage.setLength(end);
+        //сначала снимок на диске, потом заголовок, который на него ссылается
+        storage.force();
+        header.setIndexOffset(indexOffset);
+        header.setFreeSpaceOffset(freeSpaceOffset);
+        updateHeader();
+        storage.force();
+    }
+
+    //Загрузка снимка индексов; false - снимка нет, он устарел или повреждён.
+    //Снимок действителен только до первого изменения, поэтому после открытия он убирается из файла.
+    private boolean loadIndexSnapshot() throws IOException {
+        long indexOffset = header.getIndexOffset();
+        long freeSpaceOffset = header.getFreeSpaceOffset();
+        if (indexOffset < 0 && freeSpaceOffset < 0) return false;
+
+        boolean loaded = false;
+        boolean located = indexOffset >= header.getDataOffset() && indexOffset <= storage.length()
+                && (indexOffset - header.getDataOffset()) % DBConstants.RECORD_SIZE == 0;
+        if (located && freeSpaceOffset > indexOffset) {
+            try {
+                loaded = readIndexSnapshot(indexOffset, freeSpaceOffset);
+            } catch (IOException e) {
+                loaded = false;
+            }
+            if (!loaded) clearIndexes();
+        }
+        if (located) storage.setLength(indexOffset);
+        header.setIndexOffset(-1);
+        header.setFreeSpaceOffset(-1);
+        updateHeader();
+        storage.force();
+        return loaded;
+    }
+
+    private boolean readIndexSnapshot(long indexOffset, long freeSpaceOffset) throws IOException {
+        int slots = (int) ((indexOffset - header.getDataOffset()) / DBConstants.RECORD_SIZE);
+        try (IndexSnapshot.Reader in = IndexSnapshot.reader(storage, indexOffset, freeSpaceOffset)) {
+            if (in.readInt() != IndexSnapshot.INDEX_MAGIC || in.readInt() != IndexSnapshot.FORMAT_VERSION)
+                return false;
+            if (in.readInt() != header.getRecordCount() || in.readInt() != slots) return false;
+            heapLive = in.readLong();
+            if (heapLive < 0 || heapLive > heap.end()) return false;
+            in.readIdIndex(idIndex);
+            in.readPostingMap(brandIndex);
+            in.readPostingMap(categoryIndex);
+            in.readPostingMap(priceIndex.postings());
+            priceIndex.rebuildOrder();
+            in.readStringIndex(nameIndex);
+            in.readStringIndex(descriptionIndex);
+            in.readStringIndex(volumeWeightIndex);
+            if (!in.verify()) return false;
+        }
+        //словарь полнотекстового индекса выводится из индексов названия и описания
+        nameIndex.forEach(textIndex::loadName);
+        descriptionIndex.forEach(textIndex::loadDescription);
+        textIndex.finishLoad();
+        BitSet occupied;
+        try (IndexSnapshot.Reader in = IndexSnapshot.reader(storage, freeSpaceOffset, storage.length())) {
+            if (in.readInt() != IndexSnapshot.FREE_SPACE_MAGIC || in.readInt() != slots) return false;
+            occupied = in.readBitSet();
+            if (!in.verify()) return false;
+        }
+        if (idIndex.size() != header.getRecordCount() || occupied.cardinality() != idIndex.size()) return false;
+        freeSpace.load(occupied, slots);
+        return true;
+    }
+
+    //Перестроение индексов: чтение и декодирование диапазонов идёт параллельно,
+    //вставка в индексы - в этом потоке в порядке слотов (списки слотов растут дописыванием в конец)
+    private void rebuildIndexes(Progress progress) throws IOException {
+        clearIndexes();
+
+        int totalSlots = slotCount();
+        BitSet occupied = new BitSet(totalSlots);
+        long[] scanned = {0};
+
+        SlotScanner.scan(scanPool(), totalSlots, DBConstants.SCAN_RANGE_SLOTS,
+                (from, to) -> readRange(from, to, null, null, false, true),
+                part -> {
+                    for (int i = 0; i < part.size(); i++) {
+                        addToIndexes(part.record(i), part.slot(i), part.nameTerms(i), part.descriptionTerms(i));
+                        occupied.set(part.slot(i));
+                    }
+                    heapLive += part.heapBytes();
+                    scanned[0] = Math.min(totalSlots, scanned[0] + DBConstants.SCAN_RANGE_SLOTS);
+                    reportProgress(progress, "Перестроение индексов", scanned[0], totalSlots);
+                });
+        freeSpace.load(occupied, totalSlots);
+        header.setRecordCount(idIndex.size());
+    }
+
     //Добавление в индексы (включая строковые)
-    private void addToIndexes(Product record, long position) {
-        idIndex.put(record.getId(), position);
+    private void addToIndexes(Product record, int slot) {
+        addToIndexes(record, slot, TextIndex.terms(record.getName()), TextIndex.terms(record.getDescription()));
+    }
 
-        brandIndex.computeIfAbsent(record.getBrandId(), k -> new HashSet<>()).add(position);
-        priceIndex.computeIfAbsent(record.getPrice(), k -> new HashSet<>()).add(position);
+    private void addToIndexes(Product record, int slot, Set<String> nameTerms, Set<String> descriptionTerms) {
+        idIndex.put(record.getId(), slot);
 
-        addToIndex(nameIndex, record.getName(), position);
-        addToIndex(descriptionIndex, record.getDescription(), position);
-        addToIndex(volumeWeightIndex, record.getVolumeWeight(), position);
+        brandIndex.add(record.getBrandId(), slot);
+        categoryIndex.add(record.getCategoryId(), slot);
+        priceIndex.add(record.getPrice(), slot);
+        addToAggregates(record);
+
+        addToIndex(nameIndex, record.getName(), slot);
+        addToIndex(descriptionIndex, record.getDescription(), slot);
+        addToIndex(volumeWeightIndex, record.getVolumeWeight(), slot);
+        textIndex.addTerms(nameTerms, descriptionTerms, slot);
     }
 
     //Удаление из индексов (включая строковые)
-    private void removeFromIndexes(Product record, long position) {
-        idIndex.remove(record.getId());
+    private void removeFromIndexes(Product record, int slot) {
+        idIndex.remove(record.getId(), NO_SLOT);
+
+        brandIndex.remove(record.getBrandId(), slot);
+        categoryIndex.remove(record.getCategoryId(), slot);
+        priceIndex.remove(record.getPrice(), slot);
+        removeFromAggregates(record);
 
-        Set<Long> brandSet = brandIndex.get(record.getBrandId());
-        if (brandSet != null) {
-            brandSet.remove(position);
-            if (brandSet.isEmpty()) brandIndex.remove(record.getBrandId());
+        removeFromIndex(nameIndex, record.getName(), slot);
+        removeFromIndex(descriptionIndex, record.getDescription(), slot);
+        removeFromIndex(volumeWeightIndex, record.getVolumeWeight(), slot);
+        textIndex.remove(record.getName(), record.getDescription(), slot);
+    }
+
+    //Добавление порции записей в индексы: списки строковых индексов и слов перестраиваются один раз
+    //на порцию (слоты переноса при уплотнении ложатся в середину длинных списков)
+    private void addToIndexes(Product[] records, int[] slots, int count) {
+        SlotChanges changes = new SlotChanges();
+        for (int k = 0; k < count; k++) {
+            Product record = records[k];
+            int slot = slots[k];
+            idIndex.put(record.getId(), slot);
+            brandIndex.add(record.getBrandId(), slot);
+            categoryIndex.add(record.getCategoryId(), slot);
+            priceIndex.add(record.getPrice(), slot);
+            addToAggregates(record);
+            changes.add(nameIndex, record.getName(), slot);
+            changes.add(descriptionIndex, record.getDescription(), slot);
+            changes.add(volumeWeightIndex, record.getVolumeWeight(), slot);
+            textIndex.addTerms(TextIndex.terms(record.getName()), TextIndex.terms(record.getDescription()), slot, changes);
         }
+        changes.apply();
+    }
 
-        Set<Long> priceSet = priceIndex.get(record.getPrice());
-        if (priceSet != null) {
-            priceSet.remove(position);
-            if (priceSet.isEmpty()) priceIndex.remove(record.getPrice());
+    //Удаление порции записей из индексов: длинные списки строковых индексов, слов и цен
+    //сжимаются один раз на порцию, а не сдвигом на каждую запись
+    private void removeFromIndexes(Product[] records, int[] slots, int count) {
+        SlotChanges removals = new SlotChanges();
+        double[] prices = new double[count];
+        for (int k = 0; k < count; k++) {
+            Product record = records[k];
+            int slot = slots[k];
+            idIndex.remove(record.getId(), NO_SLOT);
+            brandIndex.remove(record.getBrandId(), slot);
+            categoryIndex.remove(record.getCategoryId(), slot);
+            prices[k] = record.getPrice();
+            removeFromAggregates(record);
+            removals.remove(nameIndex, record.getName(), slot);
+            removals.remove(descriptionIndex, record.getDescription(), slot);
+            removals.remove(volumeWeightIndex, record.getVolumeWeight(), slot);
+            textIndex.remove(record.getName(), record.getDescription(), slot, removals);
         }
+        priceIndex.removeAll(prices, slots, count);
+        removals.apply();
+    }
 
-        removeFromIndex(nameIndex, record.getName(), position);
-        removeFromIndex(descriptionIndex, record.getDescription(), position);
-        removeFromIndex(volumeWeightIndex, record.getVolumeWeight(), position);
+    private void addToAggregates(Product record) {
+        if (brandStats == null) return;
+        brandStats.add(record.getBrandId(), record.getPrice());
+        categoryStats.add(record.getCategoryId(), record.getPrice());
+    }
+
+    private void removeFromAggregates(Product record) {
+        if (brandStats == null) return;
+        brandStats.remove(record.getBrandId(), record.getPrice());
+        categoryStats.remove(record.getCategoryId(), record.getPrice());
     }
 
     //Инициализация пустой карты свободных мест
     private void initializeFreeSpaceMap() {
-        totalSlots = 0;
-        freeSpaceMap = new BitSet();
+        freeSpace.clear();
     }
 
     //Перемещение в начало и запись обновленного заголовка
     private void updateHeader() throws IOException {
-        file.seek(0);
-        file.write(header.serialize());
+        synchronized (headerLock) {
+            byte[] data;
+            indexLock.readLock().lock();
+            try {
+                data = header.serialize();
+            } finally {
+                indexLock.readLock().unlock();
+            }
+            storage.write(0, data, 0, data.length);
+        }
     }
 
     //Очищение всех индексов и карты свободного места
     private void clearIndexes() {
         idIndex.clear();
         brandIndex.clear();
+        categoryIndex.clear();
         priceIndex.clear();
         nameIndex.clear();
         descriptionIndex.clear();
         volumeWeightIndex.clear();
-        if (freeSpaceMap != null) freeSpaceMap.clear();
+        textIndex.clear();
+        freeSpace.clear();
+        brandStats = null;
+        categoryStats = null;
+        heapLive = 0;
+        heapMoves = null;
+        RecordCache current = cache;
+        if (current != null) current.clear();
     }
 
     // Геттеры
     public boolean isOpen() { return isOpen; }
     public String getFilename() { return filename; }
-    public int getRecordCount() { return header.getRecordCount(); }
+    public StorageMode getStorageMode() { return storageMode; }
+    public int getRecordCount() {
+        indexLock.readLock().lock();
+        try {
+            return header.getRecordCount();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package database;
+
+import model.DBConstants;
+import model.Product;
+import model.ProductCodec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//Перевод файла бд формата v1 (записи по V1_RECORD_SIZE байт со строками внутри) в формат v2
+//(слоты по RECORD_SIZE байт и куча строк). Записи v1 читаются порциями по порядку слотов и
+//добавляются в новую бд пакетами, так что память не зависит от размера файла.
+//Незавершённый журнал v1 сначала повторяется в исходный файл.
+public final class FormatMigration {
+    private FormatMigration() {}
+
+    //Миграция source (v1) в новую бд target (v2); при отмене (ERROR_CANCELLED) и при ошибке - в том числе
+    //если хоть одна запись v1 не перенеслась - файлы target удаляются
+    public static int migrate(String source, String target, Progress progress) {
+        if (!Files.exists(Paths.get(source))) return DBConstants.ERROR_FILE_NOT_FOUND;
+        FileSystem result = new FileSystem();
+        try (FileStorage in = new FileStorage(source)) {
+            byte[] headerData = new byte[DBConstants.HEADER_SIZE];
+            if (in.read(0, headerData, 0, headerData.length) != DBConstants.HEADER_SIZE)
+                return DBConstants.ERROR_INVALID_FORMAT;
+            DBHeader header = new DBHeader();
+            header.deserialize(headerData);
+            if (!header.isOlderVersion() || header.getDataOffset() < DBConstants.HEADER_SIZE)
+                return DBConstants.ERROR_INVALID_FORMAT;
+            replayLog(source, in);
+
+            //снимок индексов v1 лежит за областью данных - он не переносится
+            long dataEnd = in.length();
+            long indexOffset = header.getIndexOffset();
+            if (indexOffset >= header.getDataOffset() && indexOffset <= dataEnd) dataEnd = indexOffset;
+            long slots = (dataEnd - header.getDataOffset()) / DBConstants.V1_RECORD_SIZE;
+
+            deleteFiles(target);
+            int code = result.create(target);
+            if (code != DBConstants.SUCCESS) return code;
+            //файл v2 при сбое просто создаётся заново - журнал не сбрасывается на каждую порцию
+            result.setDurability(SyncPolicy.OS, 0);
+            byte[] chunk = new byte[DBConstants.BATCH_CHUNK * DBConstants.V1_RECORD_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            List<Product> batch = new ArrayList<>(DBConstants.BATCH_CHUNK);
+            for (long slot = 0; slot < slots; slot += DBConstants.BATCH_CHUNK) {
+                int count = (int) Math.min(DBConstants.BATCH_CHUNK, slots - slot);
+                int length = count * DBConstants.V1_RECORD_SIZE;
+                int read = Math.max(0, in.read(header.getDataOffset() + slot * DBConstants.V1_RECORD_SIZE,
+                        chunk, 0, length));
+                if (read < length) count = read / DBConstants.V1_RECORD_SIZE;
+                batch.clear();
+                for (int i = 0; i < count; i++) {
+                    Product p = ProductCodec.decode(buffer, i * DBConstants.V1_RECORD_SIZE);
+                    if (!p.isValid()) continue; //пустой слот
+                    p.setName(stripCut(p.getName()));
+                    p.setVolumeWeight(stripCut(p.getVolumeWeight()));
+                    p.setDescription(stripCut(p.getDescription()));
+                    batch.add(p);
+                }
+                //запись, не попавшая в v2 (диск заполнен, повтор id, неверная запись), - миграция не удалась
+                if (!result.addRecords(batch).isSuccess()) throw new IOException("Не все записи перенесены");
+                progress.update("Миграция", Math.min(slots, slot + count), slots);
+                if (progress.isCancelled()) throw new InterruptedIOException("Миграция отменена");
+            }
+            if (!result.closeChecked()) throw new IOException("Файл v2 не записан на диск");
+            return DBConstants.SUCCESS;
+        } catch (InterruptedIOException e) {
+            result.close();
+            deleteFiles(target);
+            return DBConstants.ERROR_CANCELLED;
+        } catch (IOException e) {
+            result.close();
+            deleteFiles(target);
+            return DBConstants.ERROR_INVALID_FORMAT;
+        }
+    }
+
+    //Миграция на месте: новая бд собирается рядом (<бд>.v2), исходный файл остаётся как <бд>.v1
+    public static int migrateInPlace(String path, Progress progress) {
+        String temp = path + ".v2";
+        int code = migrate(path, temp, progress);
+        if (code != DBConstants.SUCCESS) return code;
+        try {
+            Files.move(Paths.get(path), Paths.get(path + ".v1"), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(Paths.get(WriteAheadLog.pathFor(path)));
+            Files.move(Paths.get(temp), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(Paths.get(StringHeap.pathFor(temp)), Paths.get(StringHeap.pathFor(path)),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(Paths.get(WriteAheadLog.pathFor(temp)));
+            return DBConstants.SUCCESS;
+        } catch (IOException e) {
+            return DBConstants.ERROR_FILE_NOT_FOUND;
+        }
+    }
+
+    //Записи v1, не попавшие в файл из-за сбоя, - из журнала v1 (его страницы - образы записей v1)
+    private static void replayLog(String source, FileStorage in) throws IOException {
+        Path log = Paths.get(WriteAheadLog.pathFor(source));
+        if (!Files.exists(log)) return;
+        try (WriteAheadLog wal = new WriteAheadLog(log.toString())) {
+            if (wal.isEmpty()) return;
+            wal.replay(in);
+            in.force();
+            wal.reset();
+        }
+    }
+
+    //Ранние версии v1 резали строку посреди символа UTF-8 - его остаток читается как U+FFFD
+    private static String stripCut(String value) {
+        return value.endsWith("\uFFFD") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    private static void deleteFiles(String target) {
+        try {
+            Files.deleteIfExists(Paths.get(target));
+            Files.deleteIfExists(Paths.get(StringHeap.pathFor(target)));
+            Files.deleteIfExists(Paths.get(WriteAheadLog.pathFor(target)));
+        } catch (IOException ignored) {
+        }
+    }
+}
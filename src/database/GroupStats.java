@@ -0,0 +1,182 @@
+package database;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+//Цены по группам (бренд или категория): число записей, сумма и упорядоченный набор цен со счётчиками,
+//из которого берутся минимум и максимум. Ведётся вместе с индексами под блокировкой записи индексов.
+//Набор цен группы - отсортированные массивы (цена, число записей) и несортированный буфер новых цен:
+//буфер вливается одной сортировкой и слиянием при чтении или когда он перерастает массив, цены с нулевым
+//счётчиком убираются тогда же. Сумма не ведётся прибавлением и вычитанием (вычитание копит ошибку округления),
+//а пересчитывается по набору цен со счётчиками при чтении изменившейся группы.
+//Поэтому изменение стоит амортизированно O(log k) (k - различных цен в группе),
+//а чтение - O(групп) плюс слияние и пересчёт суммы только у изменившихся групп.
+class GroupStats {
+    private static final double[] NO_PRICES = new double[0];
+    private static final int[] NO_COUNTS = new int[0];
+
+    private static final class Group {
+        int count;
+        double sum;
+        boolean sumStale;            //набор цен менялся после подсчёта sum
+        double[] prices = NO_PRICES; //различные цены по возрастанию
+        int[] counts = NO_COUNTS;    //записей с ценой prices[i]; 0 - цена ушла, убирается при слиянии
+        int size;
+        int zeros;                   //цен с нулевым счётчиком
+        double[] pending = NO_PRICES; //новые цены, по записи на элемент
+        int pendingSize;
+
+        void add(double price) {
+            count++;
+            sumStale = true;
+            int i = find(price);
+            if (i >= 0) {
+                if (counts[i]++ == 0) zeros--;
+                return;
+            }
+            if (pendingSize == pending.length) pending = Arrays.copyOf(pending, Math.max(16, pendingSize * 2));
+            pending[pendingSize++] = price;
+            if (pendingSize > Math.max(64, size)) normalize();
+        }
+
+        //Построение: цены приходят по возрастанию и дописываются в конец массива
+        void append(double price) {
+            count++;
+            sumStale = true;
+            if (size > 0 && Double.compare(prices[size - 1], price) == 0) {
+                counts[size - 1]++;
+                return;
+            }
+            if (size == prices.length) {
+                prices = Arrays.copyOf(prices, Math.max(16, size * 2));
+                counts = Arrays.copyOf(counts, prices.length);
+            }
+            prices[size] = price;
+            counts[size++] = 1;
+        }
+
+        //false - такой цены в группе нет
+        boolean remove(double price) {
+            int i = find(price);
+            if (i < 0 && pendingSize > 0) {
+                normalize();
+                i = find(price);
+            }
+            if (i < 0 || counts[i] == 0) return false;
+            if (--counts[i] == 0) zeros++;
+            count--;
+            sumStale = true;
+            return true;
+        }
+
+        double min() {
+            normalize();
+            return size == 0 ? Double.NaN : prices[0];
+        }
+
+        double max() {
+            normalize();
+            return size == 0 ? Double.NaN : prices[size - 1];
+        }
+
+        //Сумма по набору цен: цена * число записей, с компенсацией ошибки округления (Кэхэн)
+        double sum() {
+            if (!sumStale) return sum;
+            normalize();
+            double total = 0;
+            double error = 0;
+            for (int i = 0; i < size; i++) {
+                double term = prices[i] * counts[i] - error;
+                double next = total + term;
+                error = (next - total) - term;
+                total = next;
+            }
+            sum = total;
+            sumStale = false;
+            return sum;
+        }
+
+        //Слияние буфера с массивом и удаление нулевых счётчиков
+        void normalize() {
+            if (pendingSize == 0 && zeros == 0) return;
+            Arrays.sort(pending, 0, pendingSize);
+            double[] mergedPrices = new double[Math.max(16, size - zeros + pendingSize)];
+            int[] mergedCounts = new int[mergedPrices.length];
+            int n = 0;
+            int i = 0, j = 0;
+            while (i < size || j < pendingSize) {
+                double price;
+                int c;
+                if (j == pendingSize || (i < size && Double.compare(prices[i], pending[j]) <= 0)) {
+                    price = prices[i];
+                    c = counts[i++];
+                } else {
+                    price = pending[j++];
+                    c = 1;
+                }
+                if (c == 0) continue;
+                if (n > 0 && Double.compare(mergedPrices[n - 1], price) == 0) mergedCounts[n - 1] += c;
+                else {
+                    mergedPrices[n] = price;
+                    mergedCounts[n++] = c;
+                }
+            }
+            prices = mergedPrices;
+            counts = mergedCounts;
+            size = n;
+            zeros = 0;
+            pendingSize = 0;
+            if (pending.length > 1024) pending = NO_PRICES;
+        }
+
+        private int find(double price) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = Double.compare(prices[mid], price);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+    }
+
+    private final Map<Integer, Group> groups = new HashMap<>();
+
+    void add(int key, double price) {
+        groups.computeIfAbsent(key, k -> new Group()).add(price);
+    }
+
+    //Построение по индексу цены: groupOf[slot] - номер группы слота в keys[0..n) (-1 - слот пуст).
+    //Цены обходятся по возрастанию, так что упорядоченные наборы цен групп растут дописыванием
+    static GroupStats build(int[] keys, int n, int[] groupOf, PriceIndex priceIndex) {
+        Group[] built = new Group[n];
+        for (int g = 0; g < n; g++) built[g] = new Group();
+        priceIndex.forEachAscending((price, slots) -> {
+            for (int i = 0; i < slots.size(); i++) {
+                int slot = slots.get(i);
+                if (slot < groupOf.length && groupOf[slot] >= 0) built[groupOf[slot]].append(price);
+            }
+        });
+        GroupStats stats = new GroupStats();
+        for (int g = 0; g < n; g++) if (built[g].count > 0) stats.groups.put(keys[g], built[g]);
+        return stats;
+    }
+
+    void remove(int key, double price) {
+        Group g = groups.get(key);
+        if (g == null || !g.remove(price)) return;
+        if (g.count == 0) groups.remove(key);
+    }
+
+    //Группы по возрастанию ключа. Вызывается под блокировкой чтения индексов: изменения исключены,
+    //а одновременные читатели сливают буферы групп по очереди
+    synchronized Map<Integer, PriceStats> snapshot() {
+        Map<Integer, PriceStats> result = new TreeMap<>();
+        groups.forEach((key, g) -> result.put(key, new PriceStats(g.count, g.sum(), g.min(), g.max())));
+        return result;
+    }
+}
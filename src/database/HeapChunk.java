@@ -0,0 +1,99 @@
+package database;
+
+import model.DBConstants;
+import model.SlotCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//Записи кучи строк для порции слотов. Ссылки из слотов сортируются по смещению, и записи,
+//лежащие рядом (пропуск до HEAP_COALESCE_GAP, участок до HEAP_READ_SPAN), читаются одним позиционным чтением:
+//записи, добавленные одним пакетом, лежат в куче подряд, как и их слоты.
+//В порции не больше 65536 слотов (номер слота в порции хранится в младших 16 битах ключа сортировки).
+class HeapChunk {
+    private byte[] data = new byte[64 << 10];
+    private int[] at;     //смещение записи слота i в data; -1 - у слота нет записи
+    private long[] keys;  //(смещение в куче << 16) | номер слота в порции
+    private int[] all;
+
+    HeapChunk(int slots) {
+        at = new int[slots];
+        keys = new long[slots];
+        all = new int[slots];
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    //Смещение в data() записи кучи слота i порции или -1
+    int entryAt(int i) {
+        return at[i];
+    }
+
+    //Записи всех непустых слотов порции: слот i - в slots с i * RECORD_SIZE.
+    //base - позиция начала кучи в source (у инкрементальной копии куча лежит за образами слотов)
+    void load(RecordStorage source, long base, ByteBuffer slots, int count) throws IOException {
+        ensureSlots(count);
+        for (int i = 0; i < count; i++) all[i] = i;
+        load(source, base, slots, all, count);
+    }
+
+    //Записи только для слотов wanted[0..n) порции
+    void load(RecordStorage source, long base, ByteBuffer slots, int[] wanted, int n) throws IOException {
+        int count = 0;
+        for (int k = 0; k < n; k++) {
+            int i = wanted[k];
+            ensureSlots(i + 1);
+            int offset = i * DBConstants.RECORD_SIZE;
+            at[i] = -1;
+            int length = SlotCodec.heapLength(slots, offset);
+            long position = SlotCodec.heapOffset(slots, offset);
+            //пустой слот или повреждённая ссылка
+            if (SlotCodec.decodeId(slots, offset) == 0 || length < SlotCodec.ENTRY_HEADER
+                    || length > SlotCodec.MAX_ENTRY_LENGTH || position < 0 || position >= 1L << 47) continue;
+            keys[count++] = (position << 16) | i;
+        }
+        //обычно записи уже идут по возрастанию смещений
+        for (int k = 1; k < count; k++) {
+            if (keys[k - 1] > keys[k]) {
+                Arrays.sort(keys, 0, count);
+                break;
+            }
+        }
+        int used = 0;
+        for (int g = 0; g < count; ) {
+            long start = keys[g] >>> 16;
+            long end = start + length(slots, keys[g]);
+            int h = g + 1;
+            while (h < count) {
+                long position = keys[h] >>> 16;
+                long next = Math.max(end, position + length(slots, keys[h]));
+                if (position - end > DBConstants.HEAP_COALESCE_GAP || next - start > DBConstants.HEAP_READ_SPAN) break;
+                end = next;
+                h++;
+            }
+            int span = (int) (end - start);
+            if (used + span > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, used + span));
+            int read = Math.max(0, source.read(base + start, data, used, span));
+            //за концом кучи - нули: у записи будут пустые строки
+            if (read < span) Arrays.fill(data, used + read, used + span, (byte) 0);
+            for (int k = g; k < h; k++) at[(int) (keys[k] & 0xFFFF)] = used + (int) ((keys[k] >>> 16) - start);
+            used += span;
+            g = h;
+        }
+    }
+
+    private static int length(ByteBuffer slots, long key) {
+        return SlotCodec.heapLength(slots, (int) (key & 0xFFFF) * DBConstants.RECORD_SIZE);
+    }
+
+    private void ensureSlots(int count) {
+        if (count <= at.length) return;
+        int size = Math.max(count, at.length * 2);
+        at = Arrays.copyOf(at, size);
+        keys = Arrays.copyOf(keys, size);
+        all = Arrays.copyOf(all, size);
+    }
+}
@@ -0,0 +1,177 @@
+package database;
+
+import model.DBConstants;
+import model.SlotCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+//Файл инкрементальной копии: образы слотов, изменённых после предыдущей копии.
+//[int MAGIC][int VERSION][int CRC32 байт от 12 до конца файла][long номер предыдущей копии][long номер копии]
+//[int слотов в бд][int n][int номер слота * n][образы слотов * n][записи кучи строк]
+//Контрольная сумма покрывает и образы, и секцию кучи, так что повреждённая копия не применится.
+//Копия самодостаточна: за образами лежат записи кучи, на которые они ссылаются, и ссылки в образах
+//отсчитываются от начала этой секции (heapOffset()).
+//Начало файла (до образов) пишется последним, поэтому незаконченная копия не применится.
+class IncrementalBackup implements Closeable {
+    static final int MAGIC = 0x50444249; //"PDBI"
+    static final int VERSION = 3;
+    private static final int FIXED_SIZE = 36;
+
+    private final String path;
+    private final FileStorage in;
+    private long baseId;
+    private long id;
+    private int totalSlots;
+    private int[] slots;
+
+    private IncrementalBackup(String path) throws IOException {
+        this.path = path;
+        this.in = new FileStorage(path);
+    }
+
+    //Позиция образа первого слота
+    static long dataOffset(int count) {
+        return FIXED_SIZE + 4L * count;
+    }
+
+    //Начало файла: номера копий, длина данных и список слотов; контрольную сумму вписывает seal
+    static byte[] header(long baseId, long id, int totalSlots, int[] slots) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) dataOffset(slots.length));
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(0);
+        buffer.putLong(baseId);
+        buffer.putLong(id);
+        buffer.putInt(totalSlots);
+        buffer.putInt(slots.length);
+        for (int slot : slots) buffer.putInt(slot);
+        return buffer.array();
+    }
+
+    //Контрольная сумма в header по его байтам от 12 и всему, что записано в target за ним
+    static void seal(RecordStorage target, byte[] header) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(header, 12, header.length - 12);
+        update(crc, target, header.length, target.length());
+        ByteBuffer.wrap(header).putInt(8, (int) crc.getValue());
+    }
+
+    private static void update(CRC32 crc, RecordStorage source, long from, long to) throws IOException {
+        byte[] buffer = new byte[64 << 10];
+        for (long position = from; position < to; ) {
+            int length = (int) Math.min(buffer.length, to - position);
+            if (source.read(position, buffer, 0, length) != length) throw new IOException("Неполная копия");
+            crc.update(buffer, 0, length);
+            position += length;
+        }
+    }
+
+    //Секция кучи за образами count слотов с позиции imagesOffset: записи кучи бд для непустых образов подряд,
+    //ссылки в образах переписываются на позиции в секции. Вызывается при завершении копии, пока куча не уплотняется.
+    static void appendEntries(RecordStorage target, long imagesOffset, int count, RecordStorage heap)
+            throws IOException {
+        long sectionOffset = imagesOffset + (long) count * DBConstants.RECORD_SIZE;
+        long written = 0;
+        byte[] images = new byte[DBConstants.CURSOR_CHUNK_SLOTS * DBConstants.RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(images);
+        HeapChunk strings = new HeapChunk(DBConstants.CURSOR_CHUNK_SLOTS);
+        byte[] section = new byte[64 << 10];
+        for (int start = 0; start < count; start += DBConstants.CURSOR_CHUNK_SLOTS) {
+            int n = Math.min(DBConstants.CURSOR_CHUNK_SLOTS, count - start);
+            int length = n * DBConstants.RECORD_SIZE;
+            long position = imagesOffset + (long) start * DBConstants.RECORD_SIZE;
+            if (target.read(position, images, 0, length) != length) throw new IOException("Неполная копия");
+            strings.load(heap, 0, buffer, n);
+            int used = 0;
+            for (int i = 0; i < n; i++) {
+                int offset = i * DBConstants.RECORD_SIZE;
+                if (SlotCodec.decodeId(buffer, offset) == 0) continue;
+                int entry = strings.entryAt(i);
+                int entryLength = entry < 0 ? 0 : SlotCodec.heapLength(buffer, offset);
+                if (used + entryLength > section.length) {
+                    section = Arrays.copyOf(section, Math.max(section.length * 2, used + entryLength));
+                }
+                if (entryLength > 0) System.arraycopy(strings.data(), entry, section, used, entryLength);
+                SlotCodec.setHeapOffset(buffer, offset, written + used);
+                //повреждённая ссылка - запись без строк
+                if (entry < 0) SlotCodec.setHeapLength(buffer, offset, 0);
+                used += entryLength;
+            }
+            target.write(sectionOffset + written, section, 0, used);
+            target.write(position, images, 0, length);
+            written += used;
+        }
+    }
+
+    //Открытие с проверкой заголовка и контрольной суммы всего файла
+    static IncrementalBackup open(String path) throws IOException {
+        if (!Files.exists(Paths.get(path))) throw new IOException("Нет файла копии " + path);
+        IncrementalBackup backup = new IncrementalBackup(path);
+        try {
+            backup.readHeader();
+            return backup;
+        } catch (IOException e) {
+            backup.close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        byte[] fixed = new byte[FIXED_SIZE];
+        if (in.read(0, fixed, 0, FIXED_SIZE) != FIXED_SIZE) throw new IOException("Неполная копия " + path);
+        ByteBuffer head = ByteBuffer.wrap(fixed);
+        if (head.getInt() != MAGIC || head.getInt() != VERSION) throw new IOException("Не инкрементальная копия " + path);
+        int checksum = head.getInt();
+        baseId = head.getLong();
+        id = head.getLong();
+        totalSlots = head.getInt();
+        int count = head.getInt();
+        if (count < 0 || totalSlots < 0) throw new IOException("Повреждённая копия " + path);
+
+        byte[] prefix = new byte[(int) dataOffset(count)];
+        if (in.read(0, prefix, 0, prefix.length) != prefix.length) throw new IOException("Неполная копия " + path);
+        long end = in.length();
+        if (end < dataOffset(count) + (long) count * DBConstants.RECORD_SIZE) throw new IOException("Неполная копия " + path);
+        CRC32 crc = new CRC32();
+        crc.update(prefix, 12, prefix.length - 12);
+        update(crc, in, prefix.length, end);
+        if ((int) crc.getValue() != checksum) throw new IOException("Повреждённая копия " + path);
+        ByteBuffer list = ByteBuffer.wrap(prefix, FIXED_SIZE, 4 * count);
+        slots = new int[count];
+        for (int k = 0; k < count; k++) slots[k] = list.getInt();
+    }
+
+    long baseId() { return baseId; }
+    long id() { return id; }
+    int totalSlots() { return totalSlots; }
+
+    //Изменённые слоты по возрастанию
+    int[] slots() { return slots; }
+
+    //Начало секции кучи: ссылки в образах отсчитываются от него
+    long heapOffset() {
+        return dataOffset(slots.length) + (long) slots.length * DBConstants.RECORD_SIZE;
+    }
+
+    RecordStorage storage() {
+        return in;
+    }
+
+    //Образы слотов с рангами [from, from + count) в dst
+    void readImages(int from, int count, byte[] dst) throws IOException {
+        int length = count * DBConstants.RECORD_SIZE;
+        long position = dataOffset(slots.length) + (long) from * DBConstants.RECORD_SIZE;
+        if (in.read(position, dst, 0, length) != length) throw new IOException("Неполная копия " + path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
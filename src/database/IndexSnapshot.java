@@ -0,0 +1,230 @@
+package database;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+//Снимок индексов и карты свободного места.
+//Пишется при закрытии бд сразу за областью данных: сначала секция индексов (header.indexOffset),
+//затем секция карты свободного места (header.freeSpaceOffset). Каждая секция заканчивается CRC32.
+public class IndexSnapshot {
+    public static final int INDEX_MAGIC = 0x50494458;      // "PIDX"
+    public static final int FREE_SPACE_MAGIC = 0x5046534D; // "PFSM"
+    public static final int FORMAT_VERSION = 3;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private IndexSnapshot() {}
+
+    //Поток записи в хранилище с позиции (с подсчётом CRC)
+    public static Writer writer(RecordStorage storage, long position) {
+        return new Writer(storage, position);
+    }
+
+    //Поток чтения из хранилища в границах [position, end) (с подсчётом CRC)
+    public static Reader reader(RecordStorage storage, long position, long end) {
+        return new Reader(storage, position, end);
+    }
+
+    public static class Writer extends DataOutputStream {
+        private final CRC32 crc;
+        private final StorageOutputStream target;
+
+        private Writer(RecordStorage storage, long position) {
+            this(new StorageOutputStream(storage, position), new CRC32());
+        }
+
+        private Writer(StorageOutputStream target, CRC32 crc) {
+            super(new BufferedOutputStream(new CheckedOutputStream(target, crc), BUFFER_SIZE));
+            this.target = target;
+            this.crc = crc;
+        }
+
+        //Запись контрольной суммы всего записанного; возвращает позицию конца секции
+        public long finish() throws IOException {
+            flush();
+            long checksum = crc.getValue();
+            writeLong(checksum);
+            flush();
+            return target.position;
+        }
+
+        public void writeIdIndex(IntIntHashMap index) throws IOException {
+            writeInt(index.size());
+            IOException[] error = new IOException[1];
+            index.forEach((key, value) -> {
+                if (error[0] != null) return;
+                try {
+                    writeInt(key);
+                    writeInt(value);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+        }
+
+        public void writePostingMap(LongPostingMap<?> index) throws IOException {
+            writeInt(index.size());
+            IOException[] error = new IOException[1];
+            index.forEach((key, slots) -> {
+                if (error[0] != null) return;
+                try {
+                    writeLong(key);
+                    writeSlots(slots);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+        }
+
+        public void writeStringIndex(Map<String, SlotList> index) throws IOException {
+            writeInt(index.size());
+            for (Map.Entry<String, SlotList> e : index.entrySet()) {
+                writeUTF(e.getKey());
+                writeSlots(e.getValue());
+            }
+        }
+
+        public void writeSlots(SlotList slots) throws IOException {
+            writeInt(slots.size());
+            for (int i = 0; i < slots.size(); i++) writeInt(slots.get(i));
+        }
+
+        //Тот же формат для любого множества: число слотов и слоты по возрастанию
+        public void writeSlots(SlotSet slots) throws IOException {
+            if (slots instanceof SlotList) {
+                writeSlots((SlotList) slots);
+                return;
+            }
+            int[] values = slots.toArray();
+            writeInt(values.length);
+            for (int slot : values) writeInt(slot);
+        }
+
+        public void writeBitSet(BitSet bits) throws IOException {
+            long[] words = bits.toLongArray();
+            writeInt(words.length);
+            for (long w : words) writeLong(w);
+        }
+    }
+
+    public static class Reader extends DataInputStream {
+        private final CRC32 crc;
+
+        private Reader(RecordStorage storage, long position, long end) {
+            this(new StorageInputStream(storage, position, end), new CRC32());
+        }
+
+        private Reader(StorageInputStream source, CRC32 crc) {
+            super(new CheckedInputStream(new BufferedInputStream(source, BUFFER_SIZE), crc));
+            this.crc = crc;
+        }
+
+        //Проверка контрольной суммы прочитанной секции
+        public boolean verify() throws IOException {
+            long expected = crc.getValue();
+            long stored = readLong();
+            return expected == stored;
+        }
+
+        public void readIdIndex(IntIntHashMap index) throws IOException {
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                int key = readInt();
+                index.put(key, readInt());
+            }
+        }
+
+        public <S extends SlotSet> void readPostingMap(LongPostingMap<S> index) throws IOException {
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                long key = readLong();
+                index.put(key, readSlots(index.newSet()));
+            }
+        }
+
+        public void readStringIndex(Map<String, SlotList> index) throws IOException {
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                String key = readUTF();
+                index.put(key, readSlots());
+            }
+        }
+
+        public SlotList readSlots() throws IOException {
+            return readSlots(new SlotList());
+        }
+
+        public <S extends SlotSet> S readSlots(S slots) throws IOException {
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                if (!slots.add(readInt())) throw new IOException("Повреждённый снимок индексов");
+            }
+            return slots;
+        }
+
+        public BitSet readBitSet() throws IOException {
+            long[] words = new long[readCount()];
+            for (int i = 0; i < words.length; i++) words[i] = readLong();
+            return BitSet.valueOf(words);
+        }
+
+        public int readCount() throws IOException {
+            int count = readInt();
+            if (count < 0) throw new IOException("Повреждённый снимок индексов");
+            return count;
+        }
+    }
+
+    private static class StorageOutputStream extends OutputStream {
+        private final RecordStorage storage;
+        private long position;
+
+        StorageOutputStream(RecordStorage storage, long position) {
+            this.storage = storage;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            storage.write(position, b, off, len);
+            position += len;
+        }
+    }
+
+    private static class StorageInputStream extends InputStream {
+        private final RecordStorage storage;
+        private final long end;
+        private long position;
+
+        StorageInputStream(RecordStorage storage, long position, long end) {
+            this.storage = storage;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) return -1;
+            int toRead = (int) Math.min(len, end - position);
+            int n = storage.read(position, b, off, toRead);
+            if (n > 0) position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package database;
+
+import java.util.Arrays;
+
+//Хэш-таблица int -> int с открытой адресацией (линейное пробирование, удаление сдвигом).
+//Используется как первичный индекс id -> номер слота без упаковки в Integer/Long.
+public class IntIntHashMap {
+    private static final int FREE_KEY = 0;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    //ключ 0 хранится отдельно, т.к. 0 помечает пустую ячейку
+    private boolean hasFreeKey;
+    private int freeKeyValue;
+
+    public IntIntHashMap() {
+        this(16);
+    }
+
+    public IntIntHashMap(int expectedSize) {
+        int capacity = tableSizeFor((int) (expectedSize / LOAD_FACTOR) + 1);
+        allocate(capacity);
+    }
+
+    //Значение по ключу или missing, если ключа нет
+    public int get(int key, int missing) {
+        if (key == FREE_KEY) return hasFreeKey ? freeKeyValue : missing;
+        int i = mix(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE_KEY) return missing;
+            if (k == key) return values[i];
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key == FREE_KEY) return hasFreeKey;
+        int i = mix(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE_KEY) return false;
+            if (k == key) return true;
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) size++;
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return;
+        }
+        int i = mix(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE_KEY) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > threshold) rehash(keys.length * 2);
+                return;
+            }
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    //Удаление ключа; возвращает старое значение или missing
+    public int remove(int key, int missing) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) return missing;
+            hasFreeKey = false;
+            size--;
+            return freeKeyValue;
+        }
+        int i = mix(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE_KEY) return missing;
+            if (k == key) {
+                int old = values[i];
+                shiftKeys(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int size() { return size; }
+
+    //Обход всех пар ключ-значение
+    public void forEach(EntryConsumer consumer) {
+        if (hasFreeKey) consumer.accept(FREE_KEY, freeKeyValue);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    public interface EntryConsumer {
+        void accept(int key, int value);
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+        hasFreeKey = false;
+    }
+
+    //Закрытие "дыры" после удаления: сдвигаем назад элементы цепочки
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            int k;
+            while (true) {
+                k = keys[pos];
+                if (k == FREE_KEY) {
+                    keys[last] = FREE_KEY;
+                    return;
+                }
+                int slot = mix(k) & mask;
+                //элемент можно переносить в last, только если его место не между last и pos
+                if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) break;
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            int k = oldKeys[j];
+            if (k == FREE_KEY) continue;
+            int i = mix(k) & mask;
+            while (keys[i] != FREE_KEY) i = (i + 1) & mask;
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    static int mix(int x) {
+        int h = x * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int tableSizeFor(int n) {
+        int capacity = Integer.highestOneBit(Math.max(n, 2) - 1) << 1;
+        return Math.max(capacity, 16);
+    }
+}
@@ -0,0 +1,159 @@
+package database;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+//Хэш-таблица long -> множество слотов (SlotList или RoaringBitmap) с открытой адресацией.
+//Ключи - значения int-полей или битовое представление double (Double.doubleToLongBits),
+//т.е. равенство ключей совпадает с равенством в HashMap<Double, ...>.
+public class LongPostingMap<S extends SlotSet> {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final Supplier<S> factory;
+    private long[] keys;
+    private SlotSet[] values; //null - пустая ячейка
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public LongPostingMap(Supplier<S> factory) {
+        this.factory = factory;
+        allocate(16);
+    }
+
+    //Пустое множество того типа, что хранит таблица
+    public S newSet() {
+        return factory.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    public S get(long key) {
+        int i = mix(key) & mask;
+        while (true) {
+            SlotSet v = values[i];
+            if (v == null) return null;
+            if (keys[i] == key) return (S) v;
+            i = (i + 1) & mask;
+        }
+    }
+
+    //Добавление слота в список ключа
+    public void add(long key, int slot) {
+        int i = mix(key) & mask;
+        while (true) {
+            SlotSet v = values[i];
+            if (v == null) {
+                keys[i] = key;
+                S slots = factory.get();
+                slots.add(slot);
+                values[i] = slots;
+                if (++size > threshold) rehash(values.length * 2);
+                return;
+            }
+            if (keys[i] == key) {
+                v.add(slot);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    //Установка списка для ключа целиком (загрузка снимка)
+    public void put(long key, S slots) {
+        int i = mix(key) & mask;
+        while (true) {
+            SlotSet v = values[i];
+            if (v == null) {
+                keys[i] = key;
+                values[i] = slots;
+                if (++size > threshold) rehash(values.length * 2);
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = slots;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    //Удаление слота; пустой список удаляется вместе с ключом
+    public void remove(long key, int slot) {
+        int i = mix(key) & mask;
+        while (true) {
+            SlotSet v = values[i];
+            if (v == null) return;
+            if (keys[i] == key) {
+                v.remove(slot);
+                if (v.isEmpty()) {
+                    shiftKeys(i);
+                    size--;
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int size() { return size; }
+
+    //Обход всех ключей и их списков
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<S> consumer) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) consumer.accept(keys[i], (S) values[i]);
+        }
+    }
+
+    public interface EntryConsumer<S> {
+        void accept(long key, S slots);
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            while (true) {
+                if (values[pos] == null) {
+                    values[last] = null;
+                    return;
+                }
+                int slot = mix(keys[pos]) & mask;
+                if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) break;
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        SlotSet[] oldValues = values;
+        allocate(newCapacity);
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = mix(oldKeys[j]) & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new SlotSet[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    static int mix(long x) {
+        long h = x * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,155 @@
+package database;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//Хранилище с отображением области данных в память.
+//Заголовок (до base) читается и пишется через канал, данные - через сегменты MappedByteBuffer.
+//При отображении сегмента за концом файла файл физически растёт до границы сегмента,
+//поэтому логическая длина хранится отдельно и восстанавливается при закрытии.
+public class MappedStorage implements RecordStorage {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long base;
+    private final int segmentSize;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long length;
+
+    public MappedStorage(String filename, long base, int segmentSize) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.length = channel.size();
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int offset, int length) throws IOException {
+        long available = this.length - position;
+        if (available <= 0) return length > 0 ? -1 : 0;
+        int toRead = (int) Math.min(length, available);
+        copy(position, dst, offset, toRead, false);
+        return toRead;
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        copy(position, src, offset, length, true);
+        extendTo(position + length);
+    }
+
+    private synchronized void extendTo(long end) {
+        if (end > length) length = end;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized void setLength(long newLength) throws IOException {
+        if (newLength < length) {
+            //сегменты целиком за новой границей больше не нужны
+            int keep = newLength <= base ? 0 : (int) ((newLength - base + segmentSize - 1) / segmentSize);
+            if (keep < segments.length) {
+                MappedByteBuffer[] trimmed = new MappedByteBuffer[keep];
+                System.arraycopy(segments, 0, trimmed, 0, keep);
+                segments = trimmed;
+            }
+            //хвост оставшегося сегмента обнуляем, чтобы он не всплыл при повторном росте
+            long tailEnd = Math.min(length, base + (long) keep * segmentSize);
+            if (newLength >= base && tailEnd > newLength) {
+                zero(newLength, tailEnd - newLength);
+            }
+            if (keep == 0) channel.truncate(Math.max(newLength, 0));
+        } else if (newLength > length && newLength <= base) {
+            channel.write(ByteBuffer.allocate((int) (newLength - length)), length);
+        }
+        length = newLength;
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : segments) segment.force();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            segments = new MappedByteBuffer[0];
+            try {
+                //файл мог вырасти до границы сегмента - возвращаем логическую длину
+                if (channel.size() > length) channel.truncate(length);
+            } catch (IOException ignored) {
+                //на некоторых ОС нельзя обрезать ещё отображённый файл; хвост из нулей - это свободные слоты
+            }
+            file.close();
+        }
+    }
+
+    //Копирование между массивом и файлом с учётом границ сегментов
+    private void copy(long position, byte[] buf, int offset, int length, boolean toFile) throws IOException {
+        if (position < base) {
+            int headerPart = (int) Math.min(length, base - position);
+            ByteBuffer bb = ByteBuffer.wrap(buf, offset, headerPart);
+            if (toFile) {
+                while (bb.hasRemaining()) channel.write(bb, position + bb.position() - offset);
+            } else {
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb, position + bb.position() - offset) < 0) break;
+                }
+            }
+            position += headerPart;
+            offset += headerPart;
+            length -= headerPart;
+        }
+        while (length > 0) {
+            long rel = position - base;
+            int index = (int) (rel / segmentSize);
+            int inSegment = (int) (rel % segmentSize);
+            int chunk = Math.min(length, segmentSize - inSegment);
+            MappedByteBuffer segment = segment(index);
+            if (toFile) segment.put(inSegment, buf, offset, chunk);
+            else segment.get(inSegment, buf, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void zero(long position, long count) throws IOException {
+        byte[] zeros = new byte[(int) Math.min(count, 64 * 1024)];
+        while (count > 0) {
+            int chunk = (int) Math.min(count, zeros.length);
+            copy(position, zeros, 0, chunk, true);
+            position += chunk;
+            count -= chunk;
+        }
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length) return current[index];
+        return mapUpTo(index);
+    }
+
+    //Отображение недостающих сегментов (файл растёт до конца последнего сегмента)
+    private synchronized MappedByteBuffer mapUpTo(int index) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length) return current[index];
+        MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i <= index; i++) {
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, base + (long) i * segmentSize, segmentSize);
+        }
+        segments = grown;
+        return grown[index];
+    }
+}
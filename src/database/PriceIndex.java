@@ -0,0 +1,179 @@
+package database;
+
+import java.util.Arrays;
+
+//Упорядоченный индекс цены: точный поиск через LongPostingMap и
+//отсортированный массив различных цен для диапазонов, обхода по порядку и top-N.
+//Новые цены копятся в несортированном буфере и вливаются в массив одной сортировкой и слиянием
+//при первом запросе по порядку: вставка сдвигом стоила O(d) на цену и O(d^2) при перестроении,
+//когда различных цен почти столько же, сколько записей.
+public class PriceIndex {
+    private final LongPostingMap<SlotList> postings = new LongPostingMap<>(SlotList::new);
+    private double[] prices = new double[16];
+    private int size;
+    private double[] pending = new double[16];
+    private int pendingSize;
+
+    public void add(double price, int slot) {
+        long key = key(price);
+        if (postings.get(key) == null) {
+            if (pendingSize == pending.length) pending = Arrays.copyOf(pending, pendingSize * 2);
+            pending[pendingSize++] = price;
+        }
+        postings.add(key, slot);
+    }
+
+    public void remove(double price, int slot) {
+        long key = key(price);
+        postings.remove(key, slot);
+        if (postings.get(key) == null) {
+            ensureOrdered();
+            removePrice(price);
+        }
+    }
+
+    //Удаление порции: цены, у которых не осталось слотов, убираются из массива одним проходом
+    public void removeAll(double[] removedPrices, int[] slots, int count) {
+        double[] emptied = new double[count];
+        int emptiedCount = 0;
+        for (int k = 0; k < count; k++) {
+            long key = key(removedPrices[k]);
+            postings.remove(key, slots[k]);
+            if (postings.get(key) == null) emptied[emptiedCount++] = removedPrices[k];
+        }
+        if (emptiedCount == 0) return;
+        ensureOrdered();
+        Arrays.sort(emptied, 0, emptiedCount);
+        int out = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < emptiedCount && Double.compare(emptied[j], prices[i]) < 0) j++;
+            if (j < emptiedCount && Double.compare(emptied[j], prices[i]) == 0) continue;
+            prices[out++] = prices[i];
+        }
+        size = out;
+    }
+
+    //Слоты с точно такой ценой
+    public SlotList get(double price) {
+        return postings.get(key(price));
+    }
+
+    //Слоты с ценой в [min, max] в порядке цены (limit <= 0 - без ограничения)
+    public int[] slotsInRange(double min, double max, boolean ascending, int limit) {
+        ensureOrdered();
+        int from = lowerBound(min);
+        int to = upperBound(max); //не включительно
+        int cap = limit > 0 ? limit : Integer.MAX_VALUE;
+        int[] result = new int[16];
+        int count = 0;
+        for (int k = 0; k < to - from && count < cap; k++) {
+            SlotList slots = postings.get(key(prices[ascending ? from + k : to - 1 - k]));
+            for (int i = 0; i < slots.size() && count < cap; i++) {
+                if (count == result.length) result = Arrays.copyOf(result, count * 2);
+                result[count++] = slots.get(i);
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    //Обход цен по возрастанию со слотами каждой
+    public void forEachAscending(PriceConsumer consumer) {
+        ensureOrdered();
+        for (int k = 0; k < size; k++) consumer.accept(prices[k], postings.get(key(prices[k])));
+    }
+
+    public interface PriceConsumer {
+        void accept(double price, SlotList slots);
+    }
+
+    public int distinctPrices() {
+        ensureOrdered();
+        return size;
+    }
+
+    public double minPrice() {
+        ensureOrdered();
+        return size == 0 ? Double.NaN : prices[0];
+    }
+
+    public double maxPrice() {
+        ensureOrdered();
+        return size == 0 ? Double.NaN : prices[size - 1];
+    }
+
+    public LongPostingMap<SlotList> postings() { return postings; }
+
+    //Восстановление упорядоченного массива после загрузки postings из снимка
+    public void rebuildOrder() {
+        double[] loaded = new double[Math.max(16, postings.size())];
+        int[] count = new int[1];
+        postings.forEach((key, slots) -> loaded[count[0]++] = Double.longBitsToDouble(key));
+        Arrays.sort(loaded, 0, count[0]);
+        synchronized (this) {
+            prices = loaded;
+            size = count[0];
+            pendingSize = 0;
+        }
+    }
+
+    public synchronized void clear() {
+        postings.clear();
+        size = 0;
+        pendingSize = 0;
+    }
+
+    //Слияние накопленных новых цен с упорядоченным массивом.
+    //Буфер пополняется только под блокировкой записи индексов, а читатели приходят сюда под блокировкой
+    //чтения и могут войти одновременно - поэтому слияние под монитором.
+    private synchronized void ensureOrdered() {
+        if (pendingSize == 0) return;
+        Arrays.sort(pending, 0, pendingSize);
+        double[] merged = new double[Math.max(16, size + pendingSize)];
+        int i = 0, j = 0, k = 0;
+        while (i < size && j < pendingSize) {
+            merged[k++] = Double.compare(prices[i], pending[j]) <= 0 ? prices[i++] : pending[j++];
+        }
+        while (i < size) merged[k++] = prices[i++];
+        while (j < pendingSize) merged[k++] = pending[j++];
+        prices = merged;
+        size = k;
+        pendingSize = 0;
+        if (pending.length > 1024) pending = new double[16];
+    }
+
+    private void removePrice(double price) {
+        int i = lowerBound(price);
+        if (i < size && Double.compare(prices[i], price) == 0) {
+            System.arraycopy(prices, i + 1, prices, i, size - i - 1);
+            size--;
+        }
+    }
+
+    //Первый индекс с ценой >= price
+    private int lowerBound(double price) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Double.compare(prices[mid], price) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    //Первый индекс с ценой > price
+    private int upperBound(double price) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Double.compare(prices[mid], price) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    //Ключ хэш-таблицы: равенство как у Double.equals
+    private static long key(double price) {
+        return Double.doubleToLongBits(price);
+    }
+}
@@ -0,0 +1,31 @@
+package database;
+
+//Цены одной группы (бренда или категории) на момент запроса
+public class PriceStats {
+    private final int count;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    public PriceStats(int count, double sum, double min, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    public int getCount() { return count; }
+    public double getSum() { return sum; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+
+    public double getAverage() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("товаров %d, цена от %.2f до %.2f, средняя %.2f, сумма %.2f",
+                count, min, max, getAverage(), sum);
+    }
+}
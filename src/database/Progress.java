@@ -0,0 +1,23 @@
+package database;
+
+//Ход долгой операции (открытие с перестроением индексов, backup, восстановление, экспорт, удаление по полю,
+//уплотнение) и её отмена. Вызывается в потоке операции между порциями работы;
+//отменённая операция останавливается на согласованном состоянии бд.
+public interface Progress {
+    Progress NONE = new Progress() {
+        @Override
+        public void update(String stage, long done, long total) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    //Сделано done из total единиц (слотов, байт, записей) на этапе stage
+    void update(String stage, long done, long total);
+
+    //true - вызывающий просит остановиться
+    boolean isCancelled();
+}
@@ -0,0 +1,98 @@
+package database;
+
+import model.Product;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+//Ограниченный кэш записей по номеру слота с вытеснением давно не читанных (LRU).
+//Кэш разбит на сегменты со своим монитором, чтобы читатели разных слотов не ждали друг друга.
+//Наружу отдаются копии: Product изменяемый, а кэш не должен меняться вместе с объектом вызывающего.
+public class RecordCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public RecordCache(int capacity) {
+        this.capacity = capacity;
+        //ёмкость делится между сегментами точно, чтобы в сумме записей было не больше capacity
+        int count = Integer.highestOneBit(Math.max(1, Math.min(SEGMENTS, capacity)));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+    }
+
+    //Копия записи слота или null, если её нет в кэше
+    public Product get(int slot) {
+        Segment segment = segmentFor(slot);
+        Product p;
+        synchronized (segment) {
+            p = segment.get(slot);
+        }
+        if (p == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new Product(p);
+    }
+
+    public void put(int slot, Product record) {
+        Product copy = new Product(record);
+        Segment segment = segmentFor(slot);
+        synchronized (segment) {
+            segment.put(slot, copy);
+        }
+    }
+
+    public void invalidate(int slot) {
+        Segment segment = segmentFor(slot);
+        synchronized (segment) {
+            segment.remove(slot);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public CacheStats stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return new CacheStats(capacity, size, hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private Segment segmentFor(int slot) {
+        int h = slot * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private class Segment extends LinkedHashMap<Integer, Product> {
+        private static final long serialVersionUID = 1L;
+        private final int limit;
+
+        Segment(int limit) {
+            super(16, 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Product> eldest) {
+            if (size() <= limit) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+}
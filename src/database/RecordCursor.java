@@ -0,0 +1,90 @@
+package database;
+
+import model.DBConstants;
+import model.Product;
+import model.SlotCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+//Курсор по занятым слотам в порядке номеров.
+//Область данных читается порциями по CURSOR_CHUNK_SLOTS слотов в один буфер, свободные слоты пропускаются
+//по карте свободного места, поэтому память курсора не зависит от размера бд.
+//Строки занятых слотов порции дочитываются из кучи вместе с порцией.
+//Курсор видит записи, которые были в порции на момент её чтения. Перенос записей уплотнением после
+//открытия курсора останавливает его (ConcurrentModificationException), иначе перенесённые записи были бы пропущены.
+public class RecordCursor implements Closeable {
+    private final FileSystem source;
+    private final long generation;
+    private final byte[] chunk = new byte[DBConstants.CURSOR_CHUNK_SLOTS * DBConstants.RECORD_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    private final BitSet occupied = new BitSet(DBConstants.CURSOR_CHUNK_SLOTS);
+    private final HeapChunk strings = new HeapChunk(DBConstants.CURSOR_CHUNK_SLOTS);
+    private int chunkStart = 0;
+    private int chunkSlots = 0;
+    private int index = -1;
+    private boolean closed = false;
+
+    RecordCursor(FileSystem source, long generation) {
+        this.source = source;
+        this.generation = generation;
+    }
+
+    //Переход к следующей записи; false - записи кончились
+    public boolean next() throws IOException {
+        while (!closed) {
+            int i = index < 0 ? occupied.nextSetBit(0) : occupied.nextSetBit(index + 1);
+            while (i >= 0 && i < chunkSlots) {
+                if (SlotCodec.decodeId(buffer, i * DBConstants.RECORD_SIZE) != 0) {
+                    index = i;
+                    return true;
+                }
+                i = occupied.nextSetBit(i + 1);
+            }
+            int from = chunkStart + chunkSlots;
+            int slots = source.readChunk(from, generation, chunk, occupied, strings);
+            if (slots < 0) {
+                close();
+                return false;
+            }
+            chunkStart = from;
+            chunkSlots = slots;
+            index = -1;
+        }
+        return false;
+    }
+
+    //Номер слота текущей записи
+    public int slot() {
+        return chunkStart + index;
+    }
+
+    //Сырой слот текущей записи: buffer() с позиции offset(), RECORD_SIZE байт (буфер переиспользуется);
+    //строки - в куче, их даёт product()
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return index * DBConstants.RECORD_SIZE;
+    }
+
+    public Product product() {
+        return SlotCodec.decode(buffer, offset(), strings.data(), strings.entryAt(index));
+    }
+
+    //Декодирование в существующий объект, без нового Product на каждую запись
+    public Product product(Product target) {
+        SlotCodec.decode(buffer, offset(), strings.data(), strings.entryAt(index), target);
+        return target;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        occupied.clear();
+        chunkSlots = 0;
+    }
+}
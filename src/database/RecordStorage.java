@@ -0,0 +1,26 @@
+package database;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+//Хранилище байтов файла бд (позиции - абсолютные смещения в файле)
+public interface RecordStorage extends Closeable {
+
+    //Чтение length байт с позиции; возвращает число прочитанных байт или -1 за концом файла
+    int read(long position, byte[] dst, int offset, int length) throws IOException;
+
+    //Запись length байт с позиции (файл растёт при необходимости)
+    void write(long position, byte[] src, int offset, int length) throws IOException;
+
+    //Логическая длина файла
+    long length() throws IOException;
+
+    //Изменение логической длины файла
+    void setLength(long newLength) throws IOException;
+
+    //Сброс изменений на диск
+    void force() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,309 @@
+package database;
+
+import java.util.Arrays;
+
+//Сжатое множество слотов (roaring bitmap). Слоты делятся на блоки по 65536 по старшим 16 битам,
+//блок хранится либо отсортированным массивом младших 16 бит (до 4096 значений, 2 байта на слот),
+//либо битовой картой на 8 КБ (плотный блок). Пересечение идёт поблочно,
+//пустые у одной из сторон блоки пропускаются целиком.
+public class RoaringBitmap implements SlotSet {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int blocks;
+    private int cardinality;
+
+    public RoaringBitmap() {}
+
+    public RoaringBitmap(int slot) {
+        add(slot);
+    }
+
+    //Множество из слотов в произвольном порядке (например, слоты диапазона цен в порядке цены)
+    public static RoaringBitmap of(int[] slots) {
+        RoaringBitmap result = new RoaringBitmap();
+        if (slots.length == 0) return result;
+        int max = 0;
+        for (int slot : slots) max = Math.max(max, slot);
+        long[] words = new long[(max >>> 6) + 1];
+        for (int slot : slots) words[slot >>> 6] |= 1L << slot;
+        for (int from = 0; from < words.length; from += BITMAP_WORDS) {
+            long[] block = Arrays.copyOfRange(words, from, from + BITMAP_WORDS);
+            int count = 0;
+            for (long w : block) count += Long.bitCount(w);
+            if (count > 0) result.append((char) (from / BITMAP_WORDS), normalize(block, count));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean add(int slot) {
+        char high = (char) (slot >>> 16);
+        int i = find(high);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, high, new ArrayContainer());
+        }
+        int before = containers[i].cardinality();
+        containers[i] = containers[i].add((char) slot);
+        if (containers[i].cardinality() == before) return false;
+        cardinality++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(int slot) {
+        int i = find((char) (slot >>> 16));
+        if (i < 0) return false;
+        int before = containers[i].cardinality();
+        Container c = containers[i].remove((char) slot);
+        if (c.cardinality() == before) return false;
+        cardinality--;
+        if (c.cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, blocks - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, blocks - i - 1);
+            containers[--blocks] = null;
+        } else {
+            containers[i] = c;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(int slot) {
+        int i = find((char) (slot >>> 16));
+        return i >= 0 && containers[i].contains((char) slot);
+    }
+
+    @Override
+    public int size() { return cardinality; }
+
+    @Override
+    public boolean isEmpty() { return cardinality == 0; }
+
+    @Override
+    public int[] toArray() {
+        int[] result = new int[cardinality];
+        int pos = 0;
+        for (int i = 0; i < blocks; i++) pos = containers[i].fill(result, pos, keys[i] << 16);
+        return result;
+    }
+
+    //a И b
+    public static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.blocks && j < b.blocks) {
+            if (a.keys[i] < b.keys[j]) i++;
+            else if (a.keys[i] > b.keys[j]) j++;
+            else {
+                Container c = a.containers[i].and(b.containers[j]);
+                if (c.cardinality() > 0) result.append(a.keys[i], c);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    //Номер блока или -(место вставки) - 1; слоты обычно приходят по возрастанию - сначала проверяется последний блок
+    private int find(char high) {
+        if (blocks > 0) {
+            char last = keys[blocks - 1];
+            if (last == high) return blocks - 1;
+            if (last < high) return -blocks - 1;
+        }
+        return Arrays.binarySearch(keys, 0, blocks, high);
+    }
+
+    private void insert(int i, char high, Container c) {
+        if (blocks == keys.length) {
+            keys = Arrays.copyOf(keys, blocks * 2);
+            containers = Arrays.copyOf(containers, blocks * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, blocks - i);
+        System.arraycopy(containers, i, containers, i + 1, blocks - i);
+        keys[i] = high;
+        containers[i] = c;
+        blocks++;
+    }
+
+    //Добавление блока в конец (ключи по возрастанию)
+    private void append(char high, Container c) {
+        insert(blocks, high, c);
+        cardinality += c.cardinality();
+    }
+
+    private static Container normalize(long[] words, int count) {
+        BitmapContainer bitmap = new BitmapContainer(words, count);
+        return count > ARRAY_MAX ? bitmap : bitmap.toArrayContainer();
+    }
+
+    private abstract static class Container {
+        abstract int cardinality();
+        abstract boolean contains(char value);
+        //add/remove возвращают контейнер, которым нужно заменить текущий (массив <-> битовая карта)
+        abstract Container add(char value);
+        abstract Container remove(char value);
+        abstract Container and(Container other);
+        abstract int fill(int[] target, int pos, int high);
+    }
+
+    private static class ArrayContainer extends Container {
+        private char[] values;
+        private int size;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int cardinality() { return size; }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = (size == 0 || values[size - 1] < value) ? -size - 1 : Arrays.binarySearch(values, 0, size, value);
+            if (i >= 0) return this;
+            if (size == ARRAY_MAX) return toBitmap().add(value);
+            i = -i - 1;
+            if (size == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, size * 2)));
+            System.arraycopy(values, i, values, i + 1, size - i);
+            values[i] = value;
+            size++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int i = Arrays.binarySearch(values, 0, size, value);
+            if (i < 0) return this;
+            System.arraycopy(values, i + 1, values, i, size - i - 1);
+            size--;
+            if (size < values.length / 4 && values.length > 16) values = Arrays.copyOf(values, Math.max(4, size * 2));
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[Math.min(size, other.cardinality())];
+            int count = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while (i < size && j < o.size) {
+                    if (values[i] < o.values[j]) i++;
+                    else if (values[i] > o.values[j]) j++;
+                    else {
+                        result[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    if (other.contains(values[i])) result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        int fill(int[] target, int pos, int high) {
+            for (int i = 0; i < size; i++) target[pos++] = high | values[i];
+            return pos;
+        }
+
+        BitmapContainer toBitmap() {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < size; i++) words[values[i] >>> 6] |= 1L << values[i];
+            return new BitmapContainer(words, size);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] words;
+        private int count;
+
+        BitmapContainer(long[] words, int count) {
+            this.words = words;
+            this.count = count;
+        }
+
+        @Override
+        int cardinality() { return count; }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                count++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) return this;
+            words[value >>> 6] &= ~bit;
+            count--;
+            return count > ARRAY_MAX ? this : toArrayContainer();
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) return other.and(this);
+            long[] o = ((BitmapContainer) other).words;
+            long[] result = new long[BITMAP_WORDS];
+            int total = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                result[i] = words[i] & o[i];
+                total += Long.bitCount(result[i]);
+            }
+            return normalize(result, total);
+        }
+
+        @Override
+        int fill(int[] target, int pos, int high) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    target[pos++] = high | (i << 6) | Long.numberOfTrailingZeros(w);
+                    w &= w - 1;
+                }
+            }
+            return pos;
+        }
+
+        ArrayContainer toArrayContainer() {
+            char[] values = new char[Math.max(4, count)];
+            int size = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    values[size++] = (char) ((i << 6) | Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return new ArrayContainer(values, size);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package database;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+//Распределитель слотов области данных.
+//Занятость хранится двухуровневой битовой картой: used - бит на слот, holes - бит на слово used,
+//в котором есть свободный слот ниже конца данных. Счётчик дыр позволяет дописывать в конец за O(1),
+//когда дыр нет, а поиск дыры начинается с нижней границы (lowHint) и проходит по словам holes,
+//т.е. 4096 слотов за одно сравнение. Освобождённые слоты всегда переиспользуются раньше,
+//чем файл растёт, поэтому при постоянной смене записей размер файла ограничен пиком числа записей.
+//Не потокобезопасен: FileSystem обращается к нему под indexLock.
+public class SlotAllocator {
+    //LOW_FIRST - самый младший свободный слот (файл остаётся плотным, дыры в конце проще отрезать);
+    //LIFO - последний освобождённый слот (его страница, скорее всего, ещё в кэше ОС)
+    public enum Policy { LOW_FIRST, LIFO }
+
+    private long[] used = new long[16];
+    private long[] holes = new long[1];
+    private int totalSlots;
+    private int holeCount;
+    private int lowHint;       //ни одной дыры в словах used ниже этого номера
+    private int[] freed = new int[16]; //стек LIFO; слоты, уже занятые allocateFrom или отрезанные, отсеиваются лениво
+    private int freedSize;
+    private Policy policy = Policy.LOW_FIRST;
+
+    //Занятость из снимка или после обхода файла: occupied - занятые слоты, totalSlots - конец данных
+    public void load(BitSet occupied, int totalSlots) {
+        clear();
+        this.totalSlots = totalSlots;
+        long[] words = occupied.toLongArray();
+        used = Arrays.copyOf(words, Math.max(16, wordsFor(totalSlots)));
+        holes = new long[Math.max(1, (used.length + 63) >>> 6)];
+        for (int w = 0; w < wordsFor(totalSlots); w++) {
+            long missing = ~used[w] & validMask(w);
+            if (missing != 0) {
+                holes[w >>> 6] |= 1L << w;
+                holeCount += Long.bitCount(missing);
+            }
+        }
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+        freedSize = 0;
+    }
+
+    public Policy getPolicy() { return policy; }
+
+    //Слот для новой записи (занимается сразу)
+    public int allocate() {
+        if (holeCount == 0) return append();
+        if (policy == Policy.LIFO) {
+            while (freedSize > 0) {
+                int slot = freed[--freedSize];
+                //слот мог уже занять пакетный allocateFrom
+                if (slot < totalSlots && !isUsed(slot)) {
+                    take(slot);
+                    return slot;
+                }
+            }
+        }
+        int slot = nextHole(0);
+        take(slot);
+        return slot;
+    }
+
+    //Младший свободный слот не меньше from или новый в конце; пакетное добавление берёт слоты так
+    //по возрастанию, чтобы соседние записи попадали в соседние слоты
+    public int allocateFrom(int from) {
+        int slot = holeCount == 0 ? -1 : nextHole(from);
+        if (slot < 0) return append();
+        take(slot);
+        return slot;
+    }
+
+    public void free(int slot) {
+        if (slot < 0 || slot >= totalSlots || !isUsed(slot)) return;
+        int w = slot >>> 6;
+        used[w] &= ~(1L << slot);
+        holes[w >>> 6] |= 1L << w;
+        holeCount++;
+        if (w < lowHint) lowHint = w;
+        if (policy == Policy.LIFO) {
+            if (freedSize == freed.length) freed = Arrays.copyOf(freed, freedSize * 2);
+            freed[freedSize++] = slot;
+        }
+    }
+
+    public boolean isUsed(int slot) {
+        return slot >= 0 && slot < totalSlots && (used[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    //Конец данных: слоты [0, totalSlots) - занятые и дыры
+    public int totalSlots() { return totalSlots; }
+
+    public int freeCount() { return holeCount; }
+
+    public int usedCount() { return totalSlots - holeCount; }
+
+    //Число занятых слотов меньше slot (порядковый номер занятого слота)
+    public int rank(int slot) {
+        int limit = Math.min(slot, totalSlots);
+        if (limit <= 0) return 0;
+        int count = 0;
+        int last = limit >>> 6;
+        for (int w = 0; w < last; w++) count += Long.bitCount(used[w]);
+        if ((limit & 63) != 0) count += Long.bitCount(used[last] & ((1L << limit) - 1));
+        return count;
+    }
+
+    //Занятый слот с порядковым номером rank (с 0) или -1; проход по словам карты - popcount на 64 слота
+    public int select(int rank) {
+        if (rank < 0) return -1;
+        int words = wordsFor(totalSlots);
+        for (int w = 0; w < words; w++) {
+            int bits = Long.bitCount(used[w]);
+            if (rank >= bits) {
+                rank -= bits;
+                continue;
+            }
+            long word = used[w];
+            for (int k = 0; k < rank; k++) word &= word - 1;
+            int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+            return slot < totalSlots ? slot : -1;
+        }
+        return -1;
+    }
+
+    //Следующий занятый слот не меньше from или -1
+    public int nextUsed(int from) {
+        if (from >= totalSlots) return -1;
+        int w = from >>> 6;
+        long word = used[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                return slot < totalSlots ? slot : -1;
+            }
+            if (++w >= wordsFor(totalSlots)) return -1;
+            word = used[w];
+        }
+    }
+
+    //Занятые слоты диапазона [from, to) со сдвигом: бит i - слот from + i
+    public BitSet occupied(int from, int to) {
+        BitSet result = new BitSet(Math.max(0, to - from));
+        for (int slot = nextUsed(from); slot >= 0 && slot < to; slot = nextUsed(slot + 1)) result.set(slot - from);
+        return result;
+    }
+
+    //Старший занятый слот или -1
+    public int lastUsed() {
+        return prevUsed(totalSlots);
+    }
+
+    //Старший занятый слот меньше before или -1
+    public int prevUsed(int before) {
+        int limit = Math.min(before, totalSlots);
+        if (limit <= 0) return -1;
+        int w = (limit - 1) >>> 6;
+        long word = used[w] & (-1L >>> (63 - ((limit - 1) & 63)));
+        while (true) {
+            if (word != 0) return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+            if (--w < 0) return -1;
+            word = used[w];
+        }
+    }
+
+    //Младший свободный слот не меньше from внутри данных или -1 (слот не занимается)
+    public int nextFree(int from) {
+        return holeCount == 0 ? -1 : nextHole(from);
+    }
+
+    //Отрезание свободного хвоста: конец данных сдвигается за старший занятый слот; возвращает новый конец
+    public int truncate() {
+        int end = lastUsed() + 1;
+        if (end == totalSlots) return end;
+        holeCount -= totalSlots - end;
+        int words = wordsFor(totalSlots);
+        for (int w = wordsFor(end); w < words; w++) {
+            used[w] = 0;
+            holes[w >>> 6] &= ~(1L << w);
+        }
+        totalSlots = end;
+        if (end > 0) {
+            int w = (end - 1) >>> 6;
+            if ((~used[w] & validMask(w)) == 0) holes[w >>> 6] &= ~(1L << w);
+        }
+        if (lowHint > wordsFor(end)) lowHint = wordsFor(end);
+        trimFreed();
+        return end;
+    }
+
+    public void clear() {
+        Arrays.fill(used, 0);
+        Arrays.fill(holes, 0);
+        totalSlots = 0;
+        holeCount = 0;
+        lowHint = 0;
+        freedSize = 0;
+    }
+
+    private int append() {
+        int slot = totalSlots;
+        int w = slot >>> 6;
+        if (w >= used.length) {
+            used = Arrays.copyOf(used, used.length * 2);
+            holes = Arrays.copyOf(holes, (used.length + 63) >>> 6);
+        }
+        totalSlots++;
+        used[w] |= 1L << slot;
+        return slot;
+    }
+
+    private void take(int slot) {
+        int w = slot >>> 6;
+        used[w] |= 1L << slot;
+        holeCount--;
+        if ((~used[w] & validMask(w)) == 0) holes[w >>> 6] &= ~(1L << w);
+        trimFreed();
+    }
+
+    //Дыр стало меньше: если стек LIFO вдвое длиннее числа дыр, он в основном из занятых или отрезанных слотов.
+    //Отсев стоит O(длины стека) и случается не чаще, чем раз на половину дыр, так что стек не длиннее
+    //2 * число дыр + 16, а удаление дыр остаётся O(1) в среднем
+    private void trimFreed() {
+        if (holeCount == 0) freedSize = 0;
+        else if (freedSize > 2 * holeCount + 16) compactFreed();
+    }
+
+    //Из стека LIFO убираются слоты, которые уже не дыры, и повторы (остаётся последнее освобождение)
+    private void compactFreed() {
+        BitSet seen = new BitSet();
+        int n = 0;
+        for (int i = freedSize - 1; i >= 0; i--) {
+            int slot = freed[i];
+            if (slot >= totalSlots || isUsed(slot) || seen.get(slot)) continue;
+            seen.set(slot);
+            freed[n++] = slot;
+        }
+        //обход шёл с вершины - возвращаем порядок стека
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            int t = freed[i];
+            freed[i] = freed[j];
+            freed[j] = t;
+        }
+        freedSize = n;
+    }
+
+    //Длина стека LIFO (для проверок)
+    int freedSize() { return freedSize; }
+
+    //Младшая дыра не меньше from или -1
+    private int nextHole(int from) {
+        int words = wordsFor(totalSlots);
+        int w = Math.max(from >>> 6, lowHint);
+        //в слове, где лежит from, младшие слоты не подходят
+        if (w == from >>> 6 && w < words) {
+            long free = ~used[w] & validMask(w) & (-1L << from);
+            if (free != 0) return (w << 6) + Long.numberOfTrailingZeros(free);
+            w++;
+        }
+        int h = w >>> 6;
+        long bits = h < holes.length ? holes[h] & (-1L << w) : 0;
+        while (true) {
+            if (bits != 0) {
+                int hw = (h << 6) + Long.numberOfTrailingZeros(bits);
+                if (hw >= words) break;
+                long free = ~used[hw] & validMask(hw);
+                if (from <= 0 && hw > lowHint) lowHint = hw;
+                return (hw << 6) + Long.numberOfTrailingZeros(free);
+            }
+            if (++h >= holes.length || (h << 6) >= words) break;
+            bits = holes[h];
+        }
+        if (from <= 0) lowHint = words;
+        return -1;
+    }
+
+    //Биты слова w, соответствующие слотам ниже конца данных
+    private long validMask(int w) {
+        int remaining = totalSlots - (w << 6);
+        return remaining >= 64 ? -1L : remaining <= 0 ? 0 : (1L << remaining) - 1;
+    }
+
+    private static int wordsFor(int slots) {
+        return (slots + 63) >>> 6;
+    }
+}
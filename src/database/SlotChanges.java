@@ -0,0 +1,74 @@
+package database;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+//Отложенные изменения списков строковых индексов при удалении или переносе порции записей:
+//удаление или вставка по одному слоту сдвигает массив списка (O(n) на слот, а у частых слов и объёмов
+//списки на сотни тысяч слотов), здесь каждый список перестраивается один раз за O(n + k) в apply().
+class SlotChanges {
+    private final Map<SlotList, Pending> pending = new IdentityHashMap<>();
+
+    //Слот будет удалён из списка ключа key в index; опустевший список удаляется вместе с ключом
+    void remove(Map<String, SlotList> index, String key, int slot) {
+        if (key == null || key.isEmpty()) return;
+        SlotList slots = index.get(key);
+        if (slots == null) return;
+        pendingFor(slots, index, key).removed.add(slot);
+    }
+
+    //Слот будет добавлен в список ключа key в index; список для нового ключа создаётся сразу
+    void add(Map<String, SlotList> index, String key, int slot) {
+        if (key == null || key.isEmpty()) return;
+        SlotList slots = index.computeIfAbsent(key, k -> new SlotList());
+        pendingFor(slots, index, key).added.add(slot);
+    }
+
+    void apply() {
+        for (Map.Entry<SlotList, Pending> e : pending.entrySet()) {
+            SlotList slots = e.getKey();
+            Pending p = e.getValue();
+            if (p.removed.size > 0) slots.removeAll(p.removed.sorted(), p.removed.size);
+            if (p.added.size > 0) slots.addAll(p.added.sorted(), p.added.size);
+            if (slots.isEmpty()) p.index.remove(p.key, slots);
+        }
+        pending.clear();
+    }
+
+    private Pending pendingFor(SlotList slots, Map<String, SlotList> index, String key) {
+        Pending p = pending.get(slots);
+        if (p == null) {
+            p = new Pending(index, key);
+            pending.put(slots, p);
+        }
+        return p;
+    }
+
+    private static class Pending {
+        final Map<String, SlotList> index;
+        final String key;
+        final Slots removed = new Slots();
+        final Slots added = new Slots();
+
+        Pending(Map<String, SlotList> index, String key) {
+            this.index = index;
+            this.key = key;
+        }
+    }
+
+    private static class Slots {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size == slots.length) slots = Arrays.copyOf(slots, size * 2);
+            slots[size++] = slot;
+        }
+
+        int[] sorted() {
+            Arrays.sort(slots, 0, size);
+            return slots;
+        }
+    }
+}
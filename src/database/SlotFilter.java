@@ -0,0 +1,9 @@
+package database;
+
+import java.nio.ByteBuffer;
+
+//Условие на числовые поля слота (SlotCodec): проверяется по байтам слота до чтения строк из кучи,
+//так что записи кучи читаются только для подошедших слотов
+interface SlotFilter {
+    boolean test(ByteBuffer slots, int offset);
+}
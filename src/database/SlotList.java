@@ -0,0 +1,124 @@
+package database;
+
+import java.util.Arrays;
+
+//Компактный список слотов: отсортированный int[] без дубликатов.
+//Позиция в файле вычисляется из номера слота, поэтому хранить Long не нужно.
+public class SlotList implements SlotSet {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] slots = EMPTY;
+    private int size;
+
+    public SlotList() {}
+
+    public SlotList(int slot) {
+        slots = new int[] { slot };
+        size = 1;
+    }
+
+    //Добавление; возвращает false, если слот уже есть
+    @Override
+    public boolean add(int slot) {
+        //частый случай - слоты приходят по возрастанию (перестроение индексов, дописывание в конец)
+        if (size == 0 || slots[size - 1] < slot) {
+            ensureCapacity(size + 1);
+            slots[size++] = slot;
+            return true;
+        }
+        int i = Arrays.binarySearch(slots, 0, size, slot);
+        if (i >= 0) return false;
+        i = -i - 1;
+        ensureCapacity(size + 1);
+        System.arraycopy(slots, i, slots, i + 1, size - i);
+        slots[i] = slot;
+        size++;
+        return true;
+    }
+
+    //Добавление в конец без проверки порядка (массовая загрузка); после неё нужен sort()
+    public void append(int slot) {
+        ensureCapacity(size + 1);
+        slots[size++] = slot;
+    }
+
+    //Восстановление порядка и уникальности после append()
+    public void sort() {
+        Arrays.sort(slots, 0, size);
+        int out = 0;
+        for (int i = 0; i < size; i++) {
+            if (out == 0 || slots[out - 1] != slots[i]) slots[out++] = slots[i];
+        }
+        size = out;
+    }
+
+    @Override
+    public boolean remove(int slot) {
+        int i = Arrays.binarySearch(slots, 0, size, slot);
+        if (i < 0) return false;
+        System.arraycopy(slots, i + 1, slots, i, size - i - 1);
+        size--;
+        if (size < slots.length / 4 && slots.length > 8) slots = Arrays.copyOf(slots, Math.max(size * 2, 4));
+        return true;
+    }
+
+    //Удаление нескольких слотов (sorted - по возрастанию) одним проходом
+    public void removeAll(int[] sorted, int count) {
+        int out = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < count && sorted[j] < slots[i]) j++;
+            if (j < count && sorted[j] == slots[i]) continue;
+            slots[out++] = slots[i];
+        }
+        size = out;
+        if (size < slots.length / 4 && slots.length > 8) slots = Arrays.copyOf(slots, Math.max(size * 2, 4));
+    }
+
+    //Добавление нескольких слотов (sorted - по возрастанию) слиянием за один проход
+    public void addAll(int[] sorted, int count) {
+        if (count == 0) return;
+        if (size == 0 || slots[size - 1] < sorted[0]) {
+            ensureCapacity(size + count);
+            for (int j = 0; j < count; j++) {
+                if (j == 0 || sorted[j] != sorted[j - 1]) slots[size++] = sorted[j];
+            }
+            return;
+        }
+        int[] merged = new int[Math.max(size + count, slots.length)];
+        int out = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < count) {
+            int next;
+            if (j == count || (i < size && slots[i] <= sorted[j])) next = slots[i++];
+            else next = sorted[j++];
+            if (out == 0 || merged[out - 1] != next) merged[out++] = next;
+        }
+        slots = merged;
+        size = out;
+    }
+
+    @Override
+    public boolean contains(int slot) {
+        return Arrays.binarySearch(slots, 0, size, slot) >= 0;
+    }
+
+    public int get(int index) { return slots[index]; }
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public boolean isEmpty() { return size == 0; }
+
+    @Override
+    public int[] toArray() {
+        return Arrays.copyOf(slots, size);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= slots.length) return;
+        int capacity = slots.length == 0 ? 1 : slots.length + (slots.length >> 1) + 1;
+        slots = Arrays.copyOf(slots, Math.max(capacity, needed));
+    }
+}
@@ -0,0 +1,56 @@
+package database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Полосатые блокировки слотов: слот отображается на одну из stripes блокировок.
+//Читатели разных слотов не мешают друг другу, писатели в слоты разных полос работают параллельно.
+public class SlotLocks {
+    private final ReentrantReadWriteLock[] locks;
+    private final int mask;
+
+    public SlotLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        locks = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) locks[i] = new ReentrantReadWriteLock();
+        mask = size - 1;
+    }
+
+    public ReentrantReadWriteLock forSlot(int slot) {
+        return locks[stripeOf(slot)];
+    }
+
+    //Блокировки записи всех полос, в которые попадают слоты, по возрастанию номера полосы:
+    //два потока, берущие несколько полос, захватывают их в одном порядке и не блокируют друг друга
+    public List<Lock> writeLocks(int[] slots, int count) {
+        boolean[] used = new boolean[locks.length];
+        for (int i = 0; i < count; i++) used[stripeOf(slots[i])] = true;
+        List<Lock> result = new ArrayList<>();
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) result.add(locks[i].writeLock());
+        }
+        return result;
+    }
+
+    //Блокировки чтения всех полос для слотов [from, to), тоже по возрастанию номера полосы
+    public List<Lock> readLocks(int from, int to) {
+        List<Lock> result = new ArrayList<>();
+        if (to - from >= locks.length) {
+            for (ReentrantReadWriteLock lock : locks) result.add(lock.readLock());
+            return result;
+        }
+        boolean[] used = new boolean[locks.length];
+        for (int slot = from; slot < to; slot++) used[stripeOf(slot)] = true;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) result.add(locks[i].readLock());
+        }
+        return result;
+    }
+
+    private int stripeOf(int slot) {
+        int h = slot * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
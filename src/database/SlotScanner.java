@@ -0,0 +1,134 @@
+package database;
+
+import model.Product;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Параллельный обход области данных: файл делится на диапазоны слотов, каждый диапазон читает и
+//декодирует задача в ForkJoinPool, частичные результаты объединяются в порядке слотов в вызывающем потоке.
+//В работе одновременно не больше 2 * parallelism диапазонов, поэтому память не растёт с размером файла,
+//а объединение идёт параллельно с чтением следующих диапазонов.
+//Результат диапазона - обычно Part (записи), для экспорта - готовые строки CSV.
+class SlotScanner {
+    interface RangeReader<T> {
+        T read(int from, int to) throws IOException;
+    }
+
+    interface Merger<T> {
+        void merge(T part) throws IOException;
+    }
+
+    //pool == null - обход в вызывающем потоке
+    static <T> void scan(ForkJoinPool pool, int slots, int rangeSlots, RangeReader<T> reader, Merger<T> merger)
+            throws IOException {
+        if (pool == null) {
+            for (int from = 0; from < slots; from += rangeSlots) {
+                merger.merge(reader.read(from, Math.min(slots, from + rangeSlots)));
+            }
+            return;
+        }
+        int window = pool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<T>> running = new ArrayDeque<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        int next = 0;
+        try {
+            while (next < slots || !running.isEmpty()) {
+                while (next < slots && running.size() < window) {
+                    int from = next;
+                    int to = Math.min(slots, from + rangeSlots);
+                    running.add(pool.submit(() -> stopped.get() ? null : reader.read(from, to)));
+                    next = to;
+                }
+                merger.merge(join(running.poll()));
+            }
+        } finally {
+            //после ошибки или отмены ещё не начатые диапазоны ничего не читают, а уже читающие дожидаются:
+            //вызывающий отпускает блокировки только когда никто больше не читает файл.
+            //cancel() здесь не годится - он не останавливает уже начатую задачу, и её нельзя было бы дождаться
+            stopped.set(true);
+            for (ForkJoinTask<T> task : running) task.quietlyJoin();
+        }
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            //ForkJoinPool заворачивает проверяемые исключения задачи в RuntimeException - достаём IOException
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (!(cause instanceof RuntimeException)) break;
+            }
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Обход прерван", e);
+        }
+    }
+
+    //Записи одного диапазона в порядке слотов; для перестроения индексов - ещё и слова для TextIndex,
+    //разобранные в потоке задачи
+    static class Part {
+        private int[] slots = new int[64];
+        private Product[] records = new Product[64];
+        private Object[] terms;
+        private int size;
+        private long heapBytes; //длины записей кучи диапазона - для учёта живых байт кучи
+
+        void add(int slot, Product record) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                records = Arrays.copyOf(records, size * 2);
+                if (terms != null) terms = Arrays.copyOf(terms, size * 4);
+            }
+            slots[size] = slot;
+            records[size] = record;
+            size++;
+        }
+
+        void add(int slot, Product record, Set<String> nameTerms, Set<String> descriptionTerms) {
+            if (terms == null) terms = new Object[slots.length * 2];
+            add(slot, record);
+            terms[2 * (size - 1)] = nameTerms;
+            terms[2 * (size - 1) + 1] = descriptionTerms;
+        }
+
+        @SuppressWarnings("unchecked")
+        Set<String> nameTerms(int i) {
+            return (Set<String>) terms[2 * i];
+        }
+
+        @SuppressWarnings("unchecked")
+        Set<String> descriptionTerms(int i) {
+            return (Set<String>) terms[2 * i + 1];
+        }
+
+        void addHeapBytes(long length) {
+            heapBytes += length;
+        }
+
+        long heapBytes() {
+            return heapBytes;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int slot(int i) {
+            return slots[i];
+        }
+
+        Product record(int i) {
+            return records[i];
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package database;
+
+//Множество номеров слотов, упорядоченное по возрастанию (списки в индексах)
+public interface SlotSet {
+    //Добавление; возвращает false, если слот уже есть
+    boolean add(int slot);
+
+    boolean remove(int slot);
+
+    boolean contains(int slot);
+
+    int size();
+
+    boolean isEmpty();
+
+    //Слоты по возрастанию
+    int[] toArray();
+}
@@ -0,0 +1,7 @@
+package database;
+
+//Способ доступа к файлу бд
+public enum StorageMode {
+    FILE,   //RandomAccessFile: seek + read/write на каждую запись
+    MAPPED  //область данных отображается в память сегментами (FileChannel.map)
+}
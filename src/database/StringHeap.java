@@ -0,0 +1,65 @@
+package database;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+//Куча строк (<бд>.heap): записи SlotCodec подряд, только дописываются в конец.
+//Изменённая или удалённая запись остаётся в куче мусором до уплотнения (compact), которое сдвигает
+//живые записи вниз и обрезает файл. Место под запись резервируется заранее (reserve), так что
+//параллельные добавления пишут каждое в свой участок; несостоявшаяся запись остаётся нулями.
+class StringHeap implements Closeable {
+    private final RecordStorage storage;
+    private long end; //guarded by this
+
+    StringHeap(RecordStorage storage) throws IOException {
+        this.storage = storage;
+        this.end = storage.length();
+    }
+
+    static String pathFor(String dbname) {
+        return dbname + ".heap";
+    }
+
+    //Участок под length байт в конце кучи; возвращает его позицию
+    synchronized long reserve(long length) {
+        long position = end;
+        end += length;
+        return position;
+    }
+
+    synchronized long end() {
+        return end;
+    }
+
+    //После повтора журнала файл мог вырасти за прежний конец
+    synchronized void syncEnd() throws IOException {
+        end = Math.max(end, storage.length());
+    }
+
+    //Обрезка кучи (уплотнение, очистка бд); вызывается под монопольной блокировкой бд
+    synchronized void truncate(long newEnd) throws IOException {
+        storage.setLength(newEnd);
+        end = newEnd;
+    }
+
+    void write(long position, byte[] src, int offset, int length) throws IOException {
+        storage.write(position, src, offset, length);
+    }
+
+    int read(long position, byte[] dst, int offset, int length) throws IOException {
+        return storage.read(position, dst, offset, length);
+    }
+
+    RecordStorage storage() {
+        return storage;
+    }
+
+    void force() throws IOException {
+        storage.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        storage.close();
+    }
+}
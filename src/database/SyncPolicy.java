@@ -0,0 +1,8 @@
+package database;
+
+//Когда журнал (WAL) сбрасывается на диск
+public enum SyncPolicy {
+    EVERY_OP, //операция возвращается только после fsync журнала; одновременные операции делят один fsync
+    INTERVAL, //fsync журнала фоновым потоком раз в заданный интервал, при сбое теряется не больше интервала
+    OS        //журнал не сбрасывается явно, момент записи на диск выбирает ОС
+}
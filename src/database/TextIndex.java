@@ -0,0 +1,281 @@
+package database;
+
+import java.util.*;
+
+//Инвертированный индекс слов из названия и описания.
+//Слова приводятся к нижнему регистру (ё -> е), словарь упорядочен, поэтому префикс
+//"помад" находит "помада", "помаду" и т.д. Совпадение в названии весит больше, чем в описании.
+public class TextIndex {
+    private static final Locale RU = new Locale("ru");
+    private static final float NAME_WEIGHT = 3f;
+    private static final float DESCRIPTION_WEIGHT = 1f;
+    private static final float PREFIX_FACTOR = 0.5f;
+    //короче этого префиксы не раскрываются - только точное слово
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "и", "в", "во", "на", "с", "со", "для", "по", "от", "до", "из", "к", "ко", "а", "о", "об",
+            "the", "and", "for", "of", "with"));
+
+    private final TreeMap<String, SlotList> nameTerms = new TreeMap<>();
+    private final TreeMap<String, SlotList> descriptionTerms = new TreeMap<>();
+
+    public void add(String name, String description, int slot) {
+        for (String term : terms(name)) addTerm(nameTerms, term, slot);
+        for (String term : terms(description)) addTerm(descriptionTerms, term, slot);
+    }
+
+    //Добавление по заранее разобранным словам (terms() можно вызвать в другом потоке)
+    public void addTerms(Set<String> nameWords, Set<String> descriptionWords, int slot) {
+        for (String term : nameWords) addTerm(nameTerms, term, slot);
+        for (String term : descriptionWords) addTerm(descriptionTerms, term, slot);
+    }
+
+    //Добавление в составе порции: списки перестраиваются разом в changes.apply()
+    public void addTerms(Set<String> nameWords, Set<String> descriptionWords, int slot, SlotChanges changes) {
+        for (String term : nameWords) changes.add(nameTerms, term, slot);
+        for (String term : descriptionWords) changes.add(descriptionTerms, term, slot);
+    }
+
+    public void remove(String name, String description, int slot) {
+        for (String term : terms(name)) removeTerm(nameTerms, term, slot);
+        for (String term : terms(description)) removeTerm(descriptionTerms, term, slot);
+    }
+
+    //Удаление в составе порции: списки сжимаются разом в changes.apply()
+    public void remove(String name, String description, int slot, SlotChanges changes) {
+        for (String term : terms(name)) changes.remove(nameTerms, term, slot);
+        for (String term : terms(description)) changes.remove(descriptionTerms, term, slot);
+    }
+
+    //Массовая загрузка из строковых индексов: слоты дописываются без сортировки,
+    //порядок восстанавливается один раз в finishLoad()
+    public void loadName(String name, SlotList slots) {
+        for (String term : terms(name)) appendTerm(nameTerms, term, slots);
+    }
+
+    public void loadDescription(String description, SlotList slots) {
+        for (String term : terms(description)) appendTerm(descriptionTerms, term, slots);
+    }
+
+    public void finishLoad() {
+        for (SlotList slots : nameTerms.values()) slots.sort();
+        for (SlotList slots : descriptionTerms.values()) slots.sort();
+    }
+
+    public void clear() {
+        nameTerms.clear();
+        descriptionTerms.clear();
+    }
+
+    //Слоты, содержащие все слова запроса (как слова или их начала), по убыванию релевантности
+    public int[] search(String query, int limit) {
+        List<String> words = new ArrayList<>(terms(query));
+        if (words.isEmpty()) return new int[0];
+        //сначала самые редкие слова - дальше пересекаем с меньшим множеством
+        long[] estimates = new long[words.size()];
+        for (int i = 0; i < words.size(); i++) estimates[i] = estimate(words.get(i));
+        Integer[] order = new Integer[words.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> estimates[i]));
+
+        Matches result = match(words.get(order[0]));
+        for (int k = 1; k < order.length && result.size > 0; k++) {
+            String word = words.get(order[k]);
+            //мало кандидатов - проверяем их двоичным поиском в списках слова, иначе пересекаем списки
+            long probeCost = (long) result.size * termCount(word) * 16;
+            long mergeCost = estimates[order[k]] * 20;
+            if (probeCost < mergeCost) result = result.probe(this, word);
+            else result = result.intersect(match(word));
+        }
+        return result.top(limit);
+    }
+
+    //Разбиение текста на слова
+    public static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null || text.isEmpty()) return terms;
+        String normalized = text.toLowerCase(RU).replace('ё', 'е');
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = normalized.substring(start, i);
+                if (!STOP_WORDS.contains(term)) terms.add(term);
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private long estimate(String word) {
+        long total = 0;
+        for (SlotList slots : range(nameTerms, word).values()) total += slots.size();
+        for (SlotList slots : range(descriptionTerms, word).values()) total += slots.size();
+        return total;
+    }
+
+    private int termCount(String word) {
+        return range(nameTerms, word).size() + range(descriptionTerms, word).size();
+    }
+
+    //Все слоты, где встречается слово или слово с таким началом, с оценкой совпадения
+    private Matches match(String word) {
+        Matches matches = new Matches();
+        collect(matches, nameTerms, word, NAME_WEIGHT);
+        collect(matches, descriptionTerms, word, DESCRIPTION_WEIGHT);
+        matches.normalize();
+        return matches;
+    }
+
+    private void collect(Matches matches, TreeMap<String, SlotList> terms, String word, float weight) {
+        for (Map.Entry<String, SlotList> e : range(terms, word).entrySet()) {
+            float score = e.getKey().equals(word) ? weight : weight * PREFIX_FACTOR;
+            SlotList slots = e.getValue();
+            for (int i = 0; i < slots.size(); i++) matches.add(slots.get(i), score);
+        }
+    }
+
+    private static SortedMap<String, SlotList> range(TreeMap<String, SlotList> terms, String word) {
+        if (word.length() < MIN_PREFIX_LENGTH) {
+            SlotList exact = terms.get(word);
+            return exact == null ? Collections.emptySortedMap() : terms.subMap(word, true, word, true);
+        }
+        return terms.subMap(word, word + Character.MAX_VALUE);
+    }
+
+    private static void addTerm(TreeMap<String, SlotList> terms, String term, int slot) {
+        SlotList slots = terms.get(term);
+        if (slots == null) terms.put(term, new SlotList(slot));
+        else slots.add(slot);
+    }
+
+    private static void appendTerm(TreeMap<String, SlotList> terms, String term, SlotList source) {
+        SlotList slots = terms.computeIfAbsent(term, t -> new SlotList());
+        for (int i = 0; i < source.size(); i++) slots.append(source.get(i));
+    }
+
+    private static void removeTerm(TreeMap<String, SlotList> terms, String term, int slot) {
+        SlotList slots = terms.get(term);
+        if (slots == null) return;
+        slots.remove(slot);
+        if (slots.isEmpty()) terms.remove(term);
+    }
+
+    //Совпадения: пары (слот, оценка), после normalize() отсортированы по слоту без повторов
+    private static class Matches {
+        //слот в старших 32 битах, оценка (float, положительная) - в младших:
+        //сортировка long даёт порядок по слоту, а для одного слота последней идёт большая оценка
+        long[] entries = new long[16];
+        int size;
+
+        void add(int slot, float score) {
+            if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = ((long) slot << 32) | (Float.floatToIntBits(score) & 0xFFFFFFFFL);
+        }
+
+        void normalize() {
+            Arrays.sort(entries, 0, size);
+            int out = 0;
+            for (int i = 0; i < size; i++) {
+                //для повторяющегося слота остаётся лучшая оценка (последняя после сортировки)
+                if (i + 1 < size && slot(entries[i]) == slot(entries[i + 1])) continue;
+                entries[out++] = entries[i];
+            }
+            size = out;
+        }
+
+        //Оставляет только слоты, где есть слово word, прибавляя его оценку
+        Matches probe(TextIndex index, String word) {
+            List<Map.Entry<String, SlotList>> names = new ArrayList<>(range(index.nameTerms, word).entrySet());
+            List<Map.Entry<String, SlotList>> descriptions = new ArrayList<>(range(index.descriptionTerms, word).entrySet());
+            Matches result = new Matches();
+            for (int i = 0; i < size; i++) {
+                int slot = slot(entries[i]);
+                float best = Math.max(bestScore(names, word, slot, NAME_WEIGHT),
+                        bestScore(descriptions, word, slot, DESCRIPTION_WEIGHT));
+                if (best > 0) result.add(slot, score(entries[i]) + best);
+            }
+            return result;
+        }
+
+        private static float bestScore(List<Map.Entry<String, SlotList>> terms, String word, int slot, float weight) {
+            float best = 0;
+            for (Map.Entry<String, SlotList> e : terms) {
+                float score = e.getKey().equals(word) ? weight : weight * PREFIX_FACTOR;
+                if (score > best && e.getValue().contains(slot)) best = score;
+            }
+            return best;
+        }
+
+        //Пересечение по слотам со сложением оценок
+        Matches intersect(Matches other) {
+            Matches result = new Matches();
+            int i = 0, j = 0;
+            while (i < size && j < other.size) {
+                int a = slot(entries[i]);
+                int b = slot(other.entries[j]);
+                if (a < b) i++;
+                else if (a > b) j++;
+                else {
+                    result.add(a, score(entries[i]) + score(other.entries[j]));
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        //Лучшие limit слотов (limit <= 0 - все) по убыванию оценки, при равенстве - по слоту
+        int[] top(int limit) {
+            int count = limit > 0 ? Math.min(limit, size) : size;
+            //ключ ранжирования: оценка в старших битах, инвертированный слот - в младших
+            long[] best = new long[count];
+            int filled = 0;
+            for (int i = 0; i < size; i++) {
+                long key = ((long) Float.floatToIntBits(score(entries[i])) << 32)
+                        | (0xFFFFFFFFL - slot(entries[i]));
+                if (filled < count) {
+                    best[filled++] = key;
+                    if (filled == count) heapify(best);
+                } else if (count > 0 && key > best[0]) {
+                    best[0] = key;
+                    siftDown(best, 0, count);
+                }
+            }
+            Arrays.sort(best, 0, filled);
+            int[] slots = new int[filled];
+            for (int i = 0; i < filled; i++) {
+                slots[i] = (int) (0xFFFFFFFFL - (best[filled - 1 - i] & 0xFFFFFFFFL));
+            }
+            return slots;
+        }
+
+        //Минимальная куча на массиве: в корне худший из отобранных
+        private static void heapify(long[] heap) {
+            for (int i = heap.length / 2 - 1; i >= 0; i--) siftDown(heap, i, heap.length);
+        }
+
+        private static void siftDown(long[] heap, int i, int n) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) return;
+                if (child + 1 < n && heap[child + 1] < heap[child]) child++;
+                if (heap[i] <= heap[child]) return;
+                long t = heap[i];
+                heap[i] = heap[child];
+                heap[child] = t;
+                i = child;
+            }
+        }
+
+        static int slot(long entry) {
+            return (int) (entry >>> 32);
+        }
+
+        static float score(long entry) {
+            return Float.intBitsToFloat((int) entry);
+        }
+    }
+}
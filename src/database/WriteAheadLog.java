@@ -0,0 +1,246 @@
+package database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+//Журнал упреждающей записи (<бд>.wal).
+//Каждая запись журнала - набор страниц (позиция в файле бд + байты), которые затем пишутся в файл бд.
+//Страница с битом HEAP_PAGE в позиции пишется в кучу строк (<бд>.heap), поэтому запись кучи
+//и ссылающийся на неё слот попадают в одну запись журнала.
+//Формат записи: [int длина тела][int CRC32 тела][тело: (long позиция, int длина, байты) * n].
+//После сбоя журнал повторяется до первой неполной или повреждённой записи.
+public class WriteAheadLog implements Closeable {
+    public static final long HEAP_PAGE = 1L << 62;
+
+    private static final int ENTRY_HEADER = 8;
+    private static final int PAGE_HEADER = 12;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    private long size;        //конец журнала, он же номер (LSN) последней записи; guarded by this
+    //порядок захвата мониторов: this -> syncLock
+    private long syncedSize;  //до какого места журнал точно на диске; guarded by syncLock
+    private boolean syncing;  //идёт fsync лидера группы; guarded by syncLock
+    private volatile SyncPolicy policy = SyncPolicy.EVERY_OP;
+    private ScheduledExecutorService flusher;
+
+    public WriteAheadLog(String path) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.syncedSize = size;
+    }
+
+    public static String pathFor(String dbname) {
+        return dbname + ".wal";
+    }
+
+    //Смена политики сброса; для INTERVAL запускается фоновый поток
+    public synchronized void setPolicy(SyncPolicy policy, long intervalMillis) {
+        stopFlusher();
+        this.policy = policy;
+        if (policy == SyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, intervalMillis);
+            flusher.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                } catch (IOException ignored) {
+                    //следующая попытка через интервал
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //Дописывание записи в журнал; возвращает её LSN для commit
+    public synchronized long append(Entry entry) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(entry.data, ENTRY_HEADER, entry.length - ENTRY_HEADER);
+        ByteBuffer buffer = ByteBuffer.wrap(entry.data, 0, entry.length);
+        buffer.putInt(0, entry.length - ENTRY_HEADER);
+        buffer.putInt(4, (int) crc.getValue());
+        long position = size;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        size = position;
+        return size;
+    }
+
+    //Журнал из одной страницы
+    public long append(long position, byte[] src, int offset, int length) throws IOException {
+        Entry entry = new Entry();
+        entry.page(position, src, offset, length);
+        return append(entry);
+    }
+
+    //Ожидание, пока запись с данным LSN окажется на диске (только для EVERY_OP).
+    //Групповая фиксация: один поток делает fsync за всех, кто успел дописать журнал до его начала,
+    //остальные ждут и, если их записи покрыты, возвращаются без своего fsync.
+    public void commit(long lsn) throws IOException {
+        if (policy != SyncPolicy.EVERY_OP) return;
+        synchronized (syncLock) {
+            while (true) {
+                if (syncedSize >= lsn) return;
+                if (!syncing) break;
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Ожидание записи журнала прервано");
+                }
+            }
+            syncing = true;
+        }
+        forceAndPublish();
+    }
+
+    //Сброс журнала на диск, если в нём есть несброшенные записи
+    public void sync() throws IOException {
+        long written = size();
+        synchronized (syncLock) {
+            if (syncing || syncedSize >= written) return;
+            syncing = true;
+        }
+        forceAndPublish();
+    }
+
+    private void forceAndPublish() throws IOException {
+        long target = size();
+        boolean done = false;
+        try {
+            channel.force(false);
+            done = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (done && target > syncedSize) syncedSize = target;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    //Повтор журнала в хранилище; возвращает число применённых записей
+    public int replay(RecordStorage storage) throws IOException {
+        return replay(storage, null);
+    }
+
+    //Повтор журнала в файл бд и кучу строк
+    public int replay(RecordStorage storage, RecordStorage heap) throws IOException {
+        long end = channel.size();
+        long position = 0;
+        int applied = 0;
+        ByteBuffer head = ByteBuffer.allocate(ENTRY_HEADER);
+        while (position + ENTRY_HEADER <= end) {
+            head.clear();
+            if (readFully(head, position) < ENTRY_HEADER) break;
+            int length = head.getInt(0);
+            int checksum = head.getInt(4);
+            if (length < PAGE_HEADER || length > end - position - ENTRY_HEADER) break; //оборванный хвост
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (readFully(body, position + ENTRY_HEADER) < length) break;
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+            body.flip();
+            while (body.remaining() >= PAGE_HEADER) {
+                long pagePosition = body.getLong();
+                int pageLength = body.getInt();
+                if (pageLength < 0 || pageLength > body.remaining()) throw new IOException("Повреждённая запись журнала");
+                if ((pagePosition & HEAP_PAGE) == 0) {
+                    storage.write(pagePosition, body.array(), body.position(), pageLength);
+                } else {
+                    if (heap == null) throw new IOException("Страница кучи строк без файла кучи");
+                    heap.write(pagePosition & ~HEAP_PAGE, body.array(), body.position(), pageLength);
+                }
+                body.position(body.position() + pageLength);
+            }
+            position += ENTRY_HEADER + length;
+            applied++;
+        }
+        return applied;
+    }
+
+    private int readFully(ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    //Обнуление журнала после контрольной точки (все его записи уже на диске в файле бд)
+    public synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        size = 0;
+        synchronized (syncLock) {
+            syncedSize = 0;
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private void stopFlusher() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            stopFlusher();
+        }
+        file.close();
+    }
+
+    //Запись журнала, собираемая из страниц
+    public static class Entry {
+        private byte[] data = new byte[ENTRY_HEADER + PAGE_HEADER + 512];
+        private int length = ENTRY_HEADER;
+
+        public Entry page(long position, byte[] src, int offset, int count) {
+            ensure(PAGE_HEADER + count);
+            ByteBuffer buffer = ByteBuffer.wrap(data, length, PAGE_HEADER);
+            buffer.putLong(position);
+            buffer.putInt(count);
+            System.arraycopy(src, offset, data, length + PAGE_HEADER, count);
+            length += PAGE_HEADER + count;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return length == ENTRY_HEADER;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+    }
+}
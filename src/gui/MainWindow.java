@@ -1,26 +1,46 @@
 package gui;
 
 import database.FileSystem;
+import database.FormatMigration;
+import database.PriceStats;
+import database.Progress;
+import model.DBConstants;
+import model.PriceRange;
 import model.Product;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.io.File;
+import java.io.InterruptedIOException;
 import javax.swing.UIManager;
 import javax.swing.SwingUtilities;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class MainWindow extends JFrame {
     private FileSystem dataBase;
     private JTable productTable;
-    private DefaultTableModel tableModel;
+    private ProductTableModel tableModel;
     private JTextField idField, nameField, priceField, brandField, categoryField, volumeField;
     private JTextArea descriptionArea;
     private JComboBox<String> searchFieldCombo;
     private JTextField searchValueField;
     private JLabel statusLabel;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private final List<JComponent> actionControls = new ArrayList<>(); //недоступны, пока идёт долгая операция
+    private Runnable cancelAction;
+    private boolean busy;
+
+    //Долгая операция бд; progress - для хода и отмены
+    private interface DbTask<T> {
+        T run(Progress progress) throws Exception;
+    }
 
     //конструктор всего
     public MainWindow() {
@@ -45,20 +65,26 @@ public class MainWindow extends JFrame {
         JMenuItem openItem = new JMenuItem("Открыть БД");
         JMenuItem closeItem = new JMenuItem("Закрыть БД");
         JMenuItem backupItem = new JMenuItem("Создать backup");
+        JMenuItem incrementalItem = new JMenuItem("Инкрементальный backup");
         JMenuItem restoreItem = new JMenuItem("Восстановить из backup");
+        JMenuItem compactItem = new JMenuItem("Уплотнить БД");
         JMenuItem clearItem = new JMenuItem("Очистить БД");
         JMenuItem deleteFileItem = new JMenuItem("Удалить файл БД");
         JMenuItem exportItem = new JMenuItem("Экспорт CSV");
+        JMenuItem statsItem = new JMenuItem("Цены по брендам и категориям");
         JMenuItem exitItem = new JMenuItem("Выход");
 
         createItem.addActionListener(e -> createDatabase());
         openItem.addActionListener(e -> openDatabase());
         closeItem.addActionListener(e -> closeDatabase());
         backupItem.addActionListener(e -> createBackup());
+        incrementalItem.addActionListener(e -> createIncrementalBackup());
         restoreItem.addActionListener(e -> restoreFromBackup());
+        compactItem.addActionListener(e -> compactDatabase());
         clearItem.addActionListener(e -> clearDatabase());
         deleteFileItem.addActionListener(e -> deleteDatabaseFile());
         exportItem.addActionListener(e -> exportToCSV());
+        statsItem.addActionListener(e -> showPriceStats());
         exitItem.addActionListener(e -> System.exit(0));
 
         fileMenu.add(createItem);
@@ -66,15 +92,19 @@ public class MainWindow extends JFrame {
         fileMenu.add(closeItem);
         fileMenu.addSeparator();
         fileMenu.add(backupItem);
+        fileMenu.add(incrementalItem);
         fileMenu.add(restoreItem);
+        fileMenu.add(compactItem);
         fileMenu.add(clearItem);
         fileMenu.add(deleteFileItem);
         fileMenu.add(exportItem);
+        fileMenu.add(statsItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
 
         menuBar.add(fileMenu);
         setJMenuBar(menuBar);
+        actionControls.add(fileMenu);
     }
 
     //панели ввода таблицы и поиска
@@ -139,6 +169,7 @@ public class MainWindow extends JFrame {
         row3.add(deleteButton);
         row3.add(updateButton);
         row3.add(clearButton);
+        actionControls.addAll(List.of(addButton, findButton, deleteButton, updateButton));
 
         panel.add(row1);
         panel.add(row2);
@@ -151,13 +182,8 @@ public class MainWindow extends JFrame {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(BorderFactory.createTitledBorder("Список товаров"));
 
-        String[] columns = {"ID", "Название", "Цена", "Бренд ID", "Категория ID", "Объем", "Описание"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        //строки читаются страницами по мере прокрутки (ProductTableModel), а не все сразу
+        tableModel = new ProductTableModel(dataBase);
 
         productTable = new JTable(tableModel);
         productTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -179,7 +205,7 @@ public class MainWindow extends JFrame {
         JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         panel.setBorder(BorderFactory.createTitledBorder("Поиск и удаление по любому полю"));
 
-        String[] fields = {"name", "brandId", "price", "volumeWeight"};
+        String[] fields = {"name", "brandId", "price", "categoryId", "volumeWeight", "text"};
         searchFieldCombo = new JComboBox<>(fields);
         searchValueField = new JTextField(15);
 
@@ -195,14 +221,93 @@ public class MainWindow extends JFrame {
         panel.add(searchValueField);
         panel.add(findAnyButton);
         panel.add(deleteAnyButton);
+        actionControls.addAll(List.of(findAnyButton, deleteAnyButton));
 
         return panel;
     }
 
-    //статус бд
+    //статус бд и ход долгой операции с кнопкой отмены
     private void createStatusBar() {
+        JPanel panel = new JPanel(new BorderLayout(5, 0));
         statusLabel = new JLabel("База данных не открыта");
-        add(statusLabel, BorderLayout.SOUTH);
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        cancelButton = new JButton("Отмена");
+        cancelButton.setVisible(false);
+        cancelButton.addActionListener(e -> {
+            if (cancelAction != null) cancelAction.run();
+            cancelButton.setEnabled(false);
+        });
+        JPanel progressPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+        progressPanel.add(progressBar);
+        progressPanel.add(cancelButton);
+        panel.add(statusLabel, BorderLayout.CENTER);
+        panel.add(progressPanel, BorderLayout.EAST);
+        add(panel, BorderLayout.SOUTH);
+    }
+
+    //Операция с бд в фоновом потоке (SwingWorker; в EDT файл не читается и не пишется, включая
+    //одиночные записи с fsync журнала): ход - в полосе строки статуса, «Отмена» просит
+    //операцию остановиться между порциями (без прерывания потока - оно закрыло бы каналы файла бд).
+    //Пока операция идёт, меню и кнопки недоступны; onDone вызывается в потоке EDT.
+    private <T> void runInBackground(String title, DbTask<T> task, Consumer<T> onDone) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        SwingWorker<T, String> worker = new SwingWorker<>() {
+            @Override
+            protected T doInBackground() throws Exception {
+                return task.run(new Progress() {
+                    @Override
+                    public void update(String stage, long done, long total) {
+                        setProgress(total > 0 ? (int) Math.min(100, done * 100 / total) : 0);
+                        publish(stage);
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return cancelled.get();
+                    }
+                });
+            }
+
+            @Override
+            protected void process(List<String> stages) {
+                progressBar.setValue(getProgress());
+                progressBar.setString(stages.get(stages.size() - 1) + " " + getProgress() + "%");
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false, title);
+                try {
+                    onDone.accept(get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InterruptedIOException) {
+                        updateStatus(title + ": отменено");
+                        JOptionPane.showMessageDialog(MainWindow.this, title + ": операция отменена");
+                    } else {
+                        showError("Ошибка (" + title + "): " + cause.getMessage());
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        cancelAction = () -> cancelled.set(true);
+        setBusy(true, title);
+        worker.execute();
+    }
+
+    private void setBusy(boolean busy, String title) {
+        this.busy = busy;
+        for (JComponent control : actionControls) control.setEnabled(!busy);
+        progressBar.setValue(0);
+        progressBar.setString(title);
+        progressBar.setVisible(busy);
+        cancelButton.setVisible(busy);
+        cancelButton.setEnabled(busy);
+        if (busy) statusLabel.setText(title + "...");
+        else cancelAction = null;
     }
 
     //Операции
@@ -220,12 +325,32 @@ public class MainWindow extends JFrame {
     private void openDatabase() {
         JFileChooser fc = new JFileChooser();
         if (fc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            int res = dataBase.open(fc.getSelectedFile().getAbsolutePath());
-            handleResult(res, "открытия", true);
-            if (res == 0) refreshTable();
+            String path = fc.getSelectedFile().getAbsolutePath();
+            clearTable();
+            runInBackground("Открытие", progress -> dataBase.open(path, progress), res -> {
+                if (res == DBConstants.ERROR_OLD_FORMAT) {
+                    migrateDatabase(path);
+                    return;
+                }
+                handleResult(res, "открытия", true);
+                refreshTable();
+            });
         }
     }
 
+    //файл старого формата: перевод в v2 (исходный файл остаётся рядом как .v1) и открытие
+    private void migrateDatabase(String path) {
+        if (!confirm("Файл старого формата (v1). Перевести в новый формат?\nИсходный файл сохранится как "
+                + new File(path).getName() + ".v1")) return;
+        runInBackground("Миграция", progress -> {
+            int res = FormatMigration.migrateInPlace(path, progress);
+            return res == DBConstants.SUCCESS ? dataBase.open(path, progress) : res;
+        }, res -> {
+            handleResult(res, "миграции", true);
+            refreshTable();
+        });
+    }
+
     //закрытие бд
     private void closeDatabase() {
         dataBase.close();
@@ -234,80 +359,100 @@ public class MainWindow extends JFrame {
         JOptionPane.showMessageDialog(this, "База данных закрыта");
     }
 
-    //добавить новый товар
+    //добавить новый товар; запись (с fsync журнала) и поиск строки таблицы - в фоновом потоке
     private void addProduct() {
+        Product p;
         try {
-            Product p = createProductFromInput();
-            if (p == null) return;
-            int res = dataBase.addRecord(p);
-            handleResult(res, "добавления", true);
-            if (res == 0) {
-                clearInputFields();
-                refreshTable();
-            }
+            p = createProductFromInput();
         } catch (Exception e) {
             showError("Ошибка в данных: " + e.getMessage());
+            return;
         }
+        if (p == null) return;
+        runInBackground("Добавление", progress -> {
+            int res = dataBase.addRecord(p);
+            return new int[]{res, res == 0 ? dataBase.getRowOf(p.getId()) : -1};
+        }, result -> {
+            handleResult(result[0], "добавления", true);
+            if (result[0] == 0) {
+                clearInputFields();
+                tableModel.recordAdded(result[1]);
+                updateStatus("Добавлено");
+            }
+        });
     }
 
     //найти товар
     private void findProduct() {
+        int id;
         try {
-            int id = Integer.parseInt(idField.getText().trim());
-            Product p = dataBase.findRecordById(id);
-            if (p != null) {
-                fillInputFields(p);
+            id = Integer.parseInt(idField.getText().trim());
+        } catch (NumberFormatException e) {
+            showError("Введите корректный ID!");
+            return;
+        }
+        runInBackground("Поиск", progress -> Optional.ofNullable(dataBase.findRecordById(id)), found -> {
+            if (found.isPresent()) {
+                fillInputFields(found.get());
                 JOptionPane.showMessageDialog(this, "Товар найден!");
             } else {
                 JOptionPane.showMessageDialog(this, "Товар не найден!", "Не найдено", JOptionPane.WARNING_MESSAGE);
             }
-        } catch (NumberFormatException e) {
-            showError("Введите корректный ID!");
-        }
+        });
     }
 
-    //удалить товар по id
+    //удалить товар по id (в фоновом потоке; строка таблицы берётся до удаления)
     private void deleteProduct() {
+        int id;
         try {
-            int id = Integer.parseInt(idField.getText().trim());
-            int res = dataBase.deleteRecordById(id);
-            handleResult(res, "удаления", true);
-            if (res == 0) {
-                clearInputFields();
-                refreshTable();
-            }
+            id = Integer.parseInt(idField.getText().trim());
         } catch (NumberFormatException e) {
             showError("Введите корректный ID!");
+            return;
         }
+        runInBackground("Удаление", progress -> {
+            int row = dataBase.getRowOf(id);
+            return new int[]{dataBase.deleteRecordById(id), row};
+        }, result -> {
+            handleResult(result[0], "удаления", true);
+            if (result[0] == 0) {
+                clearInputFields();
+                tableModel.recordDeleted(result[1]);
+                updateStatus("Удалено");
+            }
+        });
     }
 
-    //обновление данных товара
+    //обновление данных товара (в фоновом потоке)
     private void updateProduct() {
+        Product p;
         try {
-            Product p = createProductFromInput();
-            if (p == null) return;
-            int res = dataBase.updateRecord(p);
-            handleResult(res, "обновления", true);
-            if (res == 0) {
-                clearInputFields();
-                refreshTable();
-            }
+            p = createProductFromInput();
         } catch (Exception e) {
             showError("Ошибка: " + e.getMessage());
+            return;
         }
+        if (p == null) return;
+        runInBackground("Обновление", progress -> {
+            int res = dataBase.updateRecord(p);
+            return new int[]{res, res == 0 ? dataBase.getRowOf(p.getId()) : -1};
+        }, result -> {
+            handleResult(result[0], "обновления", true);
+            if (result[0] == 0) {
+                clearInputFields();
+                tableModel.recordUpdated(result[1]);
+                updateStatus("Обновлено");
+            }
+        });
     }
 
-    //обновление таблички
+    //обновление таблички: только число строк, сами строки читаются при показе
     private void refreshTable() {
-        clearTable();
-        if (!dataBase.isOpen()) return;
-        List<Product> all = dataBase.getAllRecords();
-        for (Product p : all) {
-            tableModel.addRow(new Object[]{
-                    p.getId(), p.getName(), p.getPrice(), p.getBrandId(),
-                    p.getCategoryId(), p.getVolumeWeight(), p.getDescription()
-            });
+        if (!dataBase.isOpen()) {
+            clearTable();
+            return;
         }
+        tableModel.showAll();
         updateStatus("Обновлено");
     }
 
@@ -316,19 +461,21 @@ public class MainWindow extends JFrame {
         if (!dataBase.isOpen()) return;
         String field = (String) searchFieldCombo.getSelectedItem();
         String value = searchValueField.getText().trim();
-        List<Product> results = new ArrayList<>();
+        Object key;
         try {
-            if ("brandId".equals(field)) {
-                results = dataBase.findRecordsByField(field, Integer.parseInt(value));
+            if ("brandId".equals(field) || "categoryId".equals(field)) {
+                key = Integer.parseInt(value);
             } else if ("price".equals(field)) {
-                results = dataBase.findRecordsByField(field, Double.parseDouble(value));
+                key = parsePriceValue(value);
             } else {
-                results = dataBase.findRecordsByField(field, value);
+                key = value;
             }
-            displaySearchResults(results);
         } catch (NumberFormatException e) {
             showError("Некорректное значение для числового поля");
+            return;
         }
+        //поиск без индекса - проход по всему файлу
+        runInBackground("Поиск", progress -> dataBase.findRecordsByField(field, key), this::displaySearchResults);
     }
 
     //удаление товаров по любому полю
@@ -337,45 +484,88 @@ public class MainWindow extends JFrame {
         String field = (String) searchFieldCombo.getSelectedItem();
         String value = searchValueField.getText().trim();
         try {
-            int res;
-            if ("brandId".equals(field)) {
-                res = dataBase.deleteRecordsByField(field, Integer.parseInt(value));
+            Object key;
+            if ("brandId".equals(field) || "categoryId".equals(field)) {
+                key = Integer.parseInt(value);
             } else if ("price".equals(field)) {
-                res = dataBase.deleteRecordsByField(field, Double.parseDouble(value));
+                key = parsePriceValue(value);
             } else {
-                res = dataBase.deleteRecordsByField(field, value);
+                key = value;
             }
-            handleResult(res, "удаления", true);
-            if (res == 0) refreshTable();
+            runInBackground("Удаление", progress -> dataBase.deleteRecordsByField(field, key, progress), res -> {
+                handleResult(res, "удаления", true);
+                //отменённое удаление успевает удалить часть порций
+                if (res == 0 || res == DBConstants.ERROR_CANCELLED) refreshTable();
+            });
         } catch (NumberFormatException e) {
             showError("Некорректное значение");
         }
     }
 
-    //создание резервной копии
+    //цена или диапазон цен вида "100-1500" / "100..1500"
+    private Object parsePriceValue(String value) {
+        String[] bounds = value.contains("..") ? value.split("\\.\\.", 2) : value.split("-", 2);
+        if (bounds.length == 2 && !bounds[0].isBlank()) {
+            return new PriceRange(Double.parseDouble(bounds[0].trim()), Double.parseDouble(bounds[1].trim()));
+        }
+        return Double.parseDouble(value);
+    }
+
+        //создание резервной копии
     private void createBackup() {
         if (!dataBase.isOpen()) return;
         JFileChooser fc = new JFileChooser();
         if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                dataBase.backup(fc.getSelectedFile().getAbsolutePath());
-                JOptionPane.showMessageDialog(this, "Backup создан");
-            } catch (Exception e) {
-                showError("Ошибка backup: " + e.getMessage());
-            }
+            String path = fc.getSelectedFile().getAbsolutePath();
+            runInBackground("Backup", progress -> {
+                dataBase.backup(path, progress);
+                return null;
+            }, done -> JOptionPane.showMessageDialog(this, "Backup создан"));
+        }
+    }
+
+    //копия только изменённых после предыдущей копии записей
+    private void createIncrementalBackup() {
+        if (!dataBase.isOpen()) return;
+        JFileChooser fc = new JFileChooser();
+        if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            String path = fc.getSelectedFile().getAbsolutePath();
+            runInBackground("Инкрементальный backup", progress -> {
+                dataBase.backupIncremental(path, progress);
+                return null;
+            }, done -> JOptionPane.showMessageDialog(this, "Инкрементальный backup создан"));
         }
     }
 
     //загрузка данных из backup файла (восстановление из резервной копии)
+    //после полной копии можно выбрать её инкрементальные копии (любое их число, порядок не важен)
     private void restoreFromBackup() {
         JFileChooser fc = new JFileChooser();
         if (fc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            int res = dataBase.restoreFromBackup(fc.getSelectedFile().getAbsolutePath());
-            handleResult(res, "восстановления", true);
-            if (res == 0) refreshTable();
+            List<String> increments = new ArrayList<>();
+            JFileChooser incrementChooser = new JFileChooser(fc.getCurrentDirectory());
+            incrementChooser.setDialogTitle("Инкрементальные копии (можно отменить)");
+            incrementChooser.setMultiSelectionEnabled(true);
+            if (incrementChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                for (File file : incrementChooser.getSelectedFiles()) increments.add(file.getAbsolutePath());
+            }
+            String path = fc.getSelectedFile().getAbsolutePath();
+            runInBackground("Восстановление", progress -> dataBase.restoreFromBackup(path, increments, progress), res -> {
+                handleResult(res, "восстановления", true);
+                refreshTable();
+            });
         }
     }
 
+    //уплотнение: перенос записей в дыры после удалений и обрезка файла
+    private void compactDatabase() {
+        if (!dataBase.isOpen()) return;
+        runInBackground("Уплотнение", progress -> dataBase.compact(progress), result -> {
+            refreshTable();
+            JOptionPane.showMessageDialog(this, "Уплотнение: " + result);
+        });
+    }
+
     //очистка базы данных
     private void clearDatabase() {
         if (confirm("Очистить всю базу?")) {
@@ -396,22 +586,46 @@ public class MainWindow extends JFrame {
         }
     }
 
+    //число товаров и цены по брендам и категориям (первый раз агрегаты строятся проходом по файлу)
+    private void showPriceStats() {
+        if (!dataBase.isOpen()) return;
+        runInBackground("Статистика цен", progress -> List.of(dataBase.aggregateByBrand(), dataBase.aggregateByCategory()),
+                stats -> {
+                    JTabbedPane tabs = new JTabbedPane();
+                    tabs.addTab("Бренды", new JScrollPane(statsTable("Бренд", stats.get(0))));
+                    tabs.addTab("Категории", new JScrollPane(statsTable("Категория", stats.get(1))));
+                    tabs.setPreferredSize(new Dimension(600, 400));
+                    JOptionPane.showMessageDialog(this, tabs, "Цены по брендам и категориям", JOptionPane.PLAIN_MESSAGE);
+                });
+    }
+
+    private JTable statsTable(String group, Map<Integer, PriceStats> stats) {
+        Object[][] rows = new Object[stats.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, PriceStats> e : stats.entrySet()) {
+            PriceStats s = e.getValue();
+            rows[i++] = new Object[]{e.getKey(), s.getCount(), String.format("%.2f", s.getMin()),
+                    String.format("%.2f", s.getMax()), String.format("%.2f", s.getAverage())};
+        }
+        JTable table = new JTable(rows, new Object[]{group, "Товаров", "Мин. цена", "Макс. цена", "Средняя"});
+        table.setEnabled(false);
+        return table;
+    }
+
     //экспорт в SCV
     private void exportToCSV() {
         if (!dataBase.isOpen()) return;
         JFileChooser fc = new JFileChooser();
         fc.setSelectedFile(new File("products.csv"));
         if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                String path = fc.getSelectedFile().getAbsolutePath();
-                dataBase.exportToCSV(path);
-                JOptionPane.showMessageDialog(this,
-                        "Экспорт в CSV завершён!\n\nФайл сохранён:\n" + path +
-                                "\n\nОткройте двойным кликом — откроется в Excel или Numbers",
-                        "Успешно", JOptionPane.INFORMATION_MESSAGE);
-            } catch (Exception e) {
-                showError("Ошибка экспорта: " + e.getMessage());
-            }
+            String path = fc.getSelectedFile().getAbsolutePath();
+            runInBackground("Экспорт CSV", progress -> {
+                dataBase.exportToCSV(path, progress);
+                return null;
+            }, done -> JOptionPane.showMessageDialog(this,
+                    "Экспорт в CSV завершён!\n\nФайл сохранён:\n" + path +
+                            "\n\nОткройте двойным кликом — откроется в Excel или Numbers",
+                    "Успешно", JOptionPane.INFORMATION_MESSAGE));
         }
     }
 
@@ -451,10 +665,11 @@ public class MainWindow extends JFrame {
     //загрузка выбранного товара из таблицы при двойном клике
     private void loadSelectedProduct() {
         int row = productTable.getSelectedRow();
-        if (row >= 0) {
-            int id = (int) tableModel.getValueAt(row, 0);
-            Product p = dataBase.findRecordById(id);
-            if (p != null) fillInputFields(p);
+        if (row >= 0 && !busy) {
+            Integer id = tableModel.idAt(row);
+            if (id == null) return; //строка ещё не прочитана
+            runInBackground("Чтение записи", progress -> Optional.ofNullable(dataBase.findRecordById(id)),
+                    found -> found.ifPresent(this::fillInputFields));
         }
     }
 
@@ -471,18 +686,12 @@ public class MainWindow extends JFrame {
 
     //очистка таблицы
     private void clearTable() {
-        tableModel.setRowCount(0);
+        tableModel.clear();
     }
 
     //отображение результатов поиска
     private void displaySearchResults(List<Product> results) {
-        clearTable();
-        for (Product p : results) {
-            tableModel.addRow(new Object[]{
-                    p.getId(), p.getName(), p.getPrice(), p.getBrandId(),
-                    p.getCategoryId(), p.getVolumeWeight(), p.getDescription()
-            });
-        }
+        tableModel.showResults(results);
         JOptionPane.showMessageDialog(this, "Найдено записей: " + results.size());
     }
 
@@ -506,6 +715,8 @@ public class MainWindow extends JFrame {
             case 2 -> "Неверный формат файла";
             case 3 -> "ID уже существует";
             case 4 -> "Запись не найдена";
+            case 5 -> "Операция отменена";
+            case 6 -> "Файл старого формата (v1)";
             default -> "Неизвестная ошибка";
         };
         if (showAlert) showError("Ошибка " + op + ": " + err);
@@ -0,0 +1,238 @@
+package gui;
+
+import database.FileSystem;
+import model.Product;
+
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Модель таблицы товаров без загрузки всей бд: строка - запись по порядку слотов (getRecordsPage),
+//страницы по PAGE_ROWS строк читаются в фоновом потоке по мере прокрутки и держатся в кэше
+//последних CACHED_PAGES страниц. Пока страница читается, строки пустые.
+//После добавления/изменения/удаления сбрасываются только страницы, где сдвинулись строки.
+//Результаты поиска показываются готовым списком. Все методы, кроме фонового чтения, - в потоке EDT.
+class ProductTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final int PAGE_ROWS = 256;
+    static final int CACHED_PAGES = 64;
+    static final int PENDING_PAGES = 8; //при быстрой прокрутке читаются только последние запрошенные страницы
+
+    private static final String[] COLUMNS = {"ID", "Название", "Цена", "Бренд ID", "Категория ID", "Объем", "Описание"};
+
+    private final FileSystem dataBase;
+    private final Map<Integer, Product[]> pages = new PageCache();
+    private final Set<Integer> requested = new HashSet<>(); //страницы в очереди или в чтении
+    private final ArrayDeque<PageRequest> queue = new ArrayDeque<>(); //guarded by queue
+    private boolean loaderRunning;                                    //guarded by queue
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "table-pages");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private List<Product> results; //результаты поиска; null - вся бд
+    private int rowCount;
+    private int generation;        //меняется при сбросе страниц - прочитанное до сброса отбрасывается
+
+    ProductTableModel(FileSystem dataBase) {
+        this.dataBase = dataBase;
+    }
+
+    //Все записи бд
+    void showAll() {
+        results = null;
+        rowCount = dataBase.isOpen() ? dataBase.getRecordCount() : 0;
+        dropPages(0);
+        fireTableDataChanged();
+    }
+
+    //Готовый список (результаты поиска)
+    void showResults(List<Product> list) {
+        results = list;
+        rowCount = list.size();
+        dropPages(0);
+        fireTableDataChanged();
+    }
+
+    void clear() {
+        showResults(List.of());
+    }
+
+    //Запись добавлена в строку row (getRowOf - в фоновом потоке): вставляется одна строка,
+    //страницы с ней и после неё сбрасываются
+    void recordAdded(int row) {
+        if (results != null || row < 0) {
+            showAll();
+            return;
+        }
+        rowCount++;
+        dropPages(row);
+        fireTableRowsInserted(row, row);
+    }
+
+    //Запись в строке row изменена на месте: перечитывается её страница
+    void recordUpdated(int row) {
+        if (results != null || row < 0 || row >= rowCount) {
+            showAll();
+            return;
+        }
+        pages.remove(row / PAGE_ROWS);
+        cancelLoads();
+        fireTableRowsUpdated(row, row);
+    }
+
+    //Запись удалена; row - её строка до удаления (getRowOf)
+    void recordDeleted(int row) {
+        if (results != null || row < 0 || row >= rowCount) {
+            showAll();
+            return;
+        }
+        rowCount--;
+        dropPages(row);
+        fireTableRowsDeleted(row, row);
+    }
+
+    //id записи в строке или null, если страница ещё не прочитана
+    Integer idAt(int row) {
+        Product p = productAt(row);
+        return p == null ? null : p.getId();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Product p = productAt(row);
+        if (p == null) return column == 1 ? "..." : null;
+        return switch (column) {
+            case 0 -> p.getId();
+            case 1 -> p.getName();
+            case 2 -> p.getPrice();
+            case 3 -> p.getBrandId();
+            case 4 -> p.getCategoryId();
+            case 5 -> p.getVolumeWeight();
+            default -> p.getDescription();
+        };
+    }
+
+    private Product productAt(int row) {
+        if (row < 0 || row >= rowCount) return null;
+        if (results != null) return results.get(row);
+        int page = row / PAGE_ROWS;
+        Product[] data = pages.get(page);
+        if (data == null) {
+            request(page);
+            return null;
+        }
+        return data[row % PAGE_ROWS];
+    }
+
+    //Постановка страницы в очередь; самая старая заявка сверх PENDING_PAGES отбрасывается
+    private void request(int page) {
+        if (!requested.add(page)) return;
+        int from = page * PAGE_ROWS;
+        PageRequest dropped = null;
+        synchronized (queue) {
+            queue.addLast(new PageRequest(page, generation, from, Math.min(PAGE_ROWS, rowCount - from)));
+            if (queue.size() > PENDING_PAGES) dropped = queue.pollFirst();
+            if (!loaderRunning) {
+                loaderRunning = true;
+                loader.execute(this::loadPages);
+            }
+        }
+        if (dropped != null) requested.remove(dropped.page);
+    }
+
+    //Фоновый поток: сначала последние запрошенные страницы (их сейчас видно)
+    private void loadPages() {
+        while (true) {
+            PageRequest next;
+            synchronized (queue) {
+                next = queue.pollLast();
+                if (next == null) {
+                    loaderRunning = false;
+                    return;
+                }
+            }
+            List<Product> records = dataBase.getRecordsPage(next.from, next.count);
+            SwingUtilities.invokeLater(() -> install(next, records));
+        }
+    }
+
+    private void install(PageRequest request, List<Product> records) {
+        if (request.generation != generation) return;
+        requested.remove(request.page);
+        pages.put(request.page, records.toArray(new Product[PAGE_ROWS]));
+        int last = Math.min(rowCount, request.from + request.count) - 1;
+        if (last >= request.from) fireTableRowsUpdated(request.from, last);
+    }
+
+    //Сброс страниц, начиная со страницы строки row
+    private void dropPages(int row) {
+        int first = row / PAGE_ROWS;
+        pages.keySet().removeIf(page -> page >= first);
+        cancelLoads();
+    }
+
+    //Заявки и чтения в работе отменяются - они могли прочитать строки до изменения
+    private void cancelLoads() {
+        generation++;
+        requested.clear();
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    private static final class PageRequest {
+        final int page;
+        final int generation;
+        final int from;
+        final int count;
+
+        PageRequest(int page, int generation, int from, int count) {
+            this.page = page;
+            this.generation = generation;
+            this.from = from;
+            this.count = count;
+        }
+    }
+
+    //Кэш страниц с вытеснением давно не показанных (порядок доступа LinkedHashMap)
+    private static class PageCache extends LinkedHashMap<Integer, Product[]> {
+        private static final long serialVersionUID = 1L;
+
+        PageCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Product[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    }
+}
@@ -2,12 +2,29 @@ package model;
 
 public class DBConstants {
     public static final String SIGNATURE = "PRODDB1";
-    public static final int VERSION = 1;
+    public static final int VERSION = 2; // 2 - слоты с числовыми полями и строки в куче <бд>.heap; 1 - записи по 340 байт
     public static final int HEADER_SIZE = 128;
+    // Предельная длина строк в символах; в формате v1 - размер поля в байтах UTF-8
     public static final int NAME_SIZE = 100;
     public static final int VOLUME_SIZE = 20;
     public static final int DESC_SIZE = 200;
-    public static final int RECORD_SIZE = 4 + 8 + 4 + 4 + NAME_SIZE + VOLUME_SIZE + DESC_SIZE; // 340 байт
+    public static final int RECORD_SIZE = 4 + 8 + 4 + 4 + 8 + 4; // 32 байта: id, цена, бренд, категория, смещение и длина строк в куче
+    public static final int V1_RECORD_SIZE = 4 + 8 + 4 + 4 + NAME_SIZE + VOLUME_SIZE + DESC_SIZE; // 340 байт, строки дополнены нулями
+    public static final int MAPPED_SEGMENT_SLOTS = 1 << 20; // записей в одном отображаемом сегменте (32 МБ)
+    public static final int MAPPED_HEAP_SEGMENT = 32 << 20; // байт кучи строк в одном отображаемом сегменте
+    public static final int LOCK_STRIPES = 64; // блокировок на слоты
+    public static final long WAL_CHECKPOINT_SIZE = 64L << 20; // размер журнала, после которого делается контрольная точка
+    public static final long WAL_SYNC_INTERVAL_MS = 100; // период сброса журнала для SyncPolicy.INTERVAL
+    public static final int BATCH_CHUNK = 4096; // записей в одной порции пакетного добавления (~0,5 МБ со строками)
+    public static final int CURSOR_CHUNK_SLOTS = 1024; // слотов, читаемых курсором за одно обращение (32 КБ и строки к ним)
+    public static final int SCAN_RANGE_SLOTS = 16384; // слотов в одной задаче параллельного обхода (0,5 МБ и строки к ним)
+    public static final int COALESCE_GAP_SLOTS = 128; // пропуск между слотами (4 КБ), который дешевле прочитать, чем делать отдельное чтение
+    public static final int HEAP_COALESCE_GAP = 4096; // то же для записей кучи строк, байт
+    public static final int HEAP_READ_SPAN = 256 << 10; // байт кучи в одном объединённом чтении
+    public static final int HEAP_GARBAGE_RATIO = 4; // куча уплотняется, когда мусор в ней - не меньше 1/4 её длины
+    public static final int COMPACT_STEP_MOVES = 512; // записей (слотов или строк в куче), переносимых за один шаг уплотнения
+    public static final long COPY_CHUNK_BYTES = 8L << 20; // байт, копируемых за одно обращение при восстановлении из копии
+    public static final int CSV_LINE_ESTIMATE = 160; // байт на строку CSV - начальный размер буфера диапазона при экспорте
 
     // Коды ошибок
     public static final int SUCCESS = 0;
@@ -15,4 +32,6 @@ public class DBConstants {
     public static final int ERROR_INVALID_FORMAT = 2;
     public static final int ERROR_DUPLICATE_ID = 3;
     public static final int ERROR_RECORD_NOT_FOUND = 4;
+    public static final int ERROR_CANCELLED = 5; // долгая операция отменена через Progress
+    public static final int ERROR_OLD_FORMAT = 6; // файл формата v1 - нужна миграция (FormatMigration)
 }
\ No newline at end of file
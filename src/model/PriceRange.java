@@ -0,0 +1,24 @@
+package model;
+
+//Диапазон цен [min, max] для поиска и удаления по полю price
+public class PriceRange {
+    private final double min;
+    private final double max;
+
+    public PriceRange(double min, double max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+
+    public boolean contains(double price) {
+        return price >= min && price <= max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PriceRange[%.2f..%.2f]", min, max);
+    }
+}
@@ -1,7 +1,7 @@
 package model;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Product {
     private int id;
@@ -22,6 +22,17 @@ public class Product {
         this.description = "";
     }
 
+    //Копия (строки неизменяемы и не копируются)
+    public Product(Product other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.price = other.price;
+        this.brandId = other.brandId;
+        this.categoryId = other.categoryId;
+        this.volumeWeight = other.volumeWeight;
+        this.description = other.description;
+    }
+
     //Валидация
     public boolean isValid() {
         return id > 0 && name != null && !name.trim().isEmpty() && price > 0;
@@ -51,65 +62,27 @@ public class Product {
         this.description = truncateString(description, DBConstants.DESC_SIZE);
     }
 
+    //Обрезка по числу символов: в формате v2 строка хранится целиком в UTF-8, сколько бы байт она ни заняла.
+    //Суррогатная пара не разрезается.
     private String truncateString(String str, int maxLength) {
         if (str == null) return "";
-        return str.length() > maxLength ? str.substring(0, maxLength) : str;
+        if (str.length() <= maxLength) return str;
+        int end = Character.isHighSurrogate(str.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+        return str.substring(0, end);
     }
 
-    // Сериализация
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        dos.writeInt(id);
-        dos.writeDouble(price);
-        dos.writeInt(brandId);
-        dos.writeInt(categoryId);
-
-        writeFixedLengthString(dos, name, DBConstants.NAME_SIZE);
-        writeFixedLengthString(dos, volumeWeight, DBConstants.VOLUME_SIZE);
-        writeFixedLengthString(dos, description, DBConstants.DESC_SIZE);
-
-        dos.close();
-        return baos.toByteArray();
+    // Сериализация в формат v1 (340 байт)
+    public byte[] serialize() {
+        ByteBuffer buffer = ByteBuffer.allocate(DBConstants.V1_RECORD_SIZE);
+        ProductCodec.encode(this, buffer, 0);
+        return buffer.array();
     }
 
     // Десериализация
     public void deserialize(byte[] data) throws IOException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        DataInputStream dis = new DataInputStream(bais);
-
-        id = dis.readInt();
-        price = dis.readDouble();
-        brandId = dis.readInt();
-        categoryId = dis.readInt();
-
-        name = readFixedLengthString(dis, DBConstants.NAME_SIZE);
-        volumeWeight = readFixedLengthString(dis, DBConstants.VOLUME_SIZE);
-        description = readFixedLengthString(dis, DBConstants.DESC_SIZE);
-
-        dis.close();
-    }
-
-    private void writeFixedLengthString(DataOutputStream dos, String str, int length) throws IOException {
-        byte[] bytes = (str != null ? str : "").getBytes(StandardCharsets.UTF_8);
-        byte[] fixedBytes = new byte[length];
-        int copyLength = Math.min(bytes.length, length);
-        System.arraycopy(bytes, 0, fixedBytes, 0, copyLength);
-        for (int i = copyLength; i < length; i++) {
-            fixedBytes[i] = 0;
-        }
-        dos.write(fixedBytes);
-    }
-
-    private String readFixedLengthString(DataInputStream dis, int length) throws IOException {
-        byte[] bytes = new byte[length];
-        dis.readFully(bytes);
-        int actualLength = 0;
-        while (actualLength < length && bytes[actualLength] != 0) {
-            actualLength++;
-        }
-        return new String(bytes, 0, actualLength, StandardCharsets.UTF_8);
+        if (data.length < DBConstants.V1_RECORD_SIZE)
+            throw new IOException("Неверный размер записи");
+        ProductCodec.decode(ByteBuffer.wrap(data), 0, this);
     }
 
     @Override
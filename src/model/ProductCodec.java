@@ -0,0 +1,109 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//Кодирование Product в формат v1 фиксированной длины (V1_RECORD_SIZE байт) прямо в ByteBuffer по смещению.
+//Раскладка совпадает с Product.serialize(): id, price, brandId, categoryId, затем строки UTF-8, дополненные нулями.
+//Промежуточных массивов и потоков не создаётся; строки обрезаются по границе символа.
+//Файлы бд v2 пишутся через SlotCodec, этот формат нужен для чтения файлов v1 (FormatMigration).
+public final class ProductCodec {
+    private static final int ID_OFFSET = 0;
+    private static final int PRICE_OFFSET = 4;
+    private static final int BRAND_OFFSET = 12;
+    private static final int CATEGORY_OFFSET = 16;
+    private static final int NAME_OFFSET = 20;
+    private static final int VOLUME_OFFSET = NAME_OFFSET + DBConstants.NAME_SIZE;
+    private static final int DESC_OFFSET = VOLUME_OFFSET + DBConstants.VOLUME_SIZE;
+
+    //буфер для чтения строк из direct/отображённых буферов, у которых нет массива
+    private static final ThreadLocal<byte[]> STRING_SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[DBConstants.DESC_SIZE]);
+
+    private ProductCodec() {}
+
+    //Запись товара в buffer начиная с offset (позиция буфера не меняется)
+    public static void encode(Product p, ByteBuffer buffer, int offset) {
+        buffer.putInt(offset + ID_OFFSET, p.getId());
+        buffer.putDouble(offset + PRICE_OFFSET, p.getPrice());
+        buffer.putInt(offset + BRAND_OFFSET, p.getBrandId());
+        buffer.putInt(offset + CATEGORY_OFFSET, p.getCategoryId());
+        putFixedLengthString(buffer, offset + NAME_OFFSET, p.getName(), DBConstants.NAME_SIZE);
+        putFixedLengthString(buffer, offset + VOLUME_OFFSET, p.getVolumeWeight(), DBConstants.VOLUME_SIZE);
+        putFixedLengthString(buffer, offset + DESC_OFFSET, p.getDescription(), DBConstants.DESC_SIZE);
+    }
+
+    //Чтение товара из buffer начиная с offset
+    public static Product decode(ByteBuffer buffer, int offset) {
+        Product p = new Product();
+        decode(buffer, offset, p);
+        return p;
+    }
+
+    public static void decode(ByteBuffer buffer, int offset, Product p) {
+        p.setId(buffer.getInt(offset + ID_OFFSET));
+        p.setPrice(buffer.getDouble(offset + PRICE_OFFSET));
+        p.setBrandId(buffer.getInt(offset + BRAND_OFFSET));
+        p.setCategoryId(buffer.getInt(offset + CATEGORY_OFFSET));
+        p.setName(getFixedLengthString(buffer, offset + NAME_OFFSET, DBConstants.NAME_SIZE));
+        p.setVolumeWeight(getFixedLengthString(buffer, offset + VOLUME_OFFSET, DBConstants.VOLUME_SIZE));
+        p.setDescription(getFixedLengthString(buffer, offset + DESC_OFFSET, DBConstants.DESC_SIZE));
+    }
+
+    //Только id записи (0 - пустой слот), без разбора строк
+    public static int decodeId(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + ID_OFFSET);
+    }
+
+    //UTF-8 без промежуточного массива; символ, не помещающийся целиком, не пишется
+    static void putFixedLengthString(ByteBuffer buffer, int offset, String str, int length) {
+        int pos = offset;
+        int end = offset + length;
+        if (str != null) {
+            int n = str.length();
+            for (int i = 0; i < n; i++) {
+                int c = str.charAt(i);
+                if (c < 0x80) {
+                    if (pos + 1 > end) break;
+                    buffer.put(pos++, (byte) c);
+                } else if (c < 0x800) {
+                    if (pos + 2 > end) break;
+                    buffer.put(pos++, (byte) (0xC0 | (c >> 6)));
+                    buffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate((char) c) && i + 1 < n
+                        && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    if (pos + 4 > end) break;
+                    int cp = Character.toCodePoint((char) c, str.charAt(++i));
+                    buffer.put(pos++, (byte) (0xF0 | (cp >> 18)));
+                    buffer.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put(pos++, (byte) (0x80 | (cp & 0x3F)));
+                } else if (Character.isSurrogate((char) c)) {
+                    //одиночный суррогат - как String.getBytes
+                    if (pos + 1 > end) break;
+                    buffer.put(pos++, (byte) '?');
+                } else {
+                    if (pos + 3 > end) break;
+                    buffer.put(pos++, (byte) (0xE0 | (c >> 12)));
+                    buffer.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+        while (pos < end) buffer.put(pos++, (byte) 0);
+    }
+
+    static String getFixedLengthString(ByteBuffer buffer, int offset, int length) {
+        int actualLength = 0;
+        while (actualLength < length && buffer.get(offset + actualLength) != 0) {
+            actualLength++;
+        }
+        if (actualLength == 0) return "";
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, actualLength, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = STRING_SCRATCH.get();
+        buffer.get(offset, bytes, 0, actualLength);
+        return new String(bytes, 0, actualLength, StandardCharsets.UTF_8);
+    }
+}
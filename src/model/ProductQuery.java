@@ -0,0 +1,61 @@
+package model;
+
+//Запрос из нескольких условий, соединённых по И: new ProductQuery().brandId(12).categoryId(3).price(0, 2000).
+//Незаданное условие (null) не ограничивает выборку.
+public class ProductQuery {
+    private Integer brandId;
+    private Integer categoryId;
+    private PriceRange price;
+    private String name;
+    private String volumeWeight;
+
+    public ProductQuery brandId(int brandId) {
+        this.brandId = brandId;
+        return this;
+    }
+
+    public ProductQuery categoryId(int categoryId) {
+        this.categoryId = categoryId;
+        return this;
+    }
+
+    public ProductQuery price(double min, double max) {
+        this.price = new PriceRange(min, max);
+        return this;
+    }
+
+    public ProductQuery name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public ProductQuery volumeWeight(String volumeWeight) {
+        this.volumeWeight = volumeWeight;
+        return this;
+    }
+
+    public Integer getBrandId() { return brandId; }
+    public Integer getCategoryId() { return categoryId; }
+    public PriceRange getPrice() { return price; }
+    public String getName() { return name; }
+    public String getVolumeWeight() { return volumeWeight; }
+
+    public boolean isEmpty() {
+        return brandId == null && categoryId == null && price == null && name == null && volumeWeight == null;
+    }
+
+    //Проверка записи по всем условиям
+    public boolean matches(Product p) {
+        return (brandId == null || p.getBrandId() == brandId)
+                && (categoryId == null || p.getCategoryId() == categoryId)
+                && (price == null || price.contains(p.getPrice()))
+                && (name == null || name.equals(p.getName()))
+                && (volumeWeight == null || volumeWeight.equals(p.getVolumeWeight()));
+    }
+
+    @Override
+    public String toString() {
+        return "ProductQuery[brandId=" + brandId + ", categoryId=" + categoryId + ", price=" + price
+                + ", name=" + name + ", volumeWeight=" + volumeWeight + "]";
+    }
+}
@@ -0,0 +1,149 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//Кодирование Product в формат v2: слот фиксированной длины (RECORD_SIZE байт) с числовыми полями
+//и ссылкой на запись в куче строк, сама запись кучи - строки UTF-8 без дополнения нулями.
+//Слот: [int id][double price][int brandId][int categoryId][long смещение в куче][int длина записи кучи].
+//Запись кучи: [int id][u16 длина названия][u16 длина объёма][u16 длина описания][байты строк].
+//id в записи кучи нужен уплотнению кучи: по нему находится слот, который ссылается на запись.
+//Строки не обрезаются: предел длины в символах (Product), а байт на символ в UTF-8 не больше трёх.
+public final class SlotCodec {
+    public static final int ENTRY_HEADER = 10;
+    public static final int MAX_ENTRY_LENGTH = ENTRY_HEADER + 3 * 0xFFFF;
+
+    private static final int ID_OFFSET = 0;
+    private static final int PRICE_OFFSET = 4;
+    private static final int BRAND_OFFSET = 12;
+    private static final int CATEGORY_OFFSET = 16;
+    private static final int HEAP_OFFSET = 20;
+    private static final int HEAP_LENGTH = 28;
+
+    private SlotCodec() {}
+
+    //Длина записи кучи для товара
+    public static int entryLength(Product p) {
+        return ENTRY_HEADER + utf8Length(p.getName()) + utf8Length(p.getVolumeWeight()) + utf8Length(p.getDescription());
+    }
+
+    //Запись кучи с offset, ровно entryLength(p) байт
+    public static void encodeEntry(Product p, ByteBuffer buffer, int offset) {
+        int name = utf8Length(p.getName());
+        int volume = utf8Length(p.getVolumeWeight());
+        int description = utf8Length(p.getDescription());
+        buffer.putInt(offset, p.getId());
+        buffer.putShort(offset + 4, (short) name);
+        buffer.putShort(offset + 6, (short) volume);
+        buffer.putShort(offset + 8, (short) description);
+        int pos = offset + ENTRY_HEADER;
+        ProductCodec.putFixedLengthString(buffer, pos, p.getName(), name);
+        pos += name;
+        ProductCodec.putFixedLengthString(buffer, pos, p.getVolumeWeight(), volume);
+        pos += volume;
+        ProductCodec.putFixedLengthString(buffer, pos, p.getDescription(), description);
+    }
+
+    //Слот товара со ссылкой на его запись в куче
+    public static void encodeSlot(Product p, long heapOffset, int heapLength, ByteBuffer buffer, int offset) {
+        buffer.putInt(offset + ID_OFFSET, p.getId());
+        buffer.putDouble(offset + PRICE_OFFSET, p.getPrice());
+        buffer.putInt(offset + BRAND_OFFSET, p.getBrandId());
+        buffer.putInt(offset + CATEGORY_OFFSET, p.getCategoryId());
+        buffer.putLong(offset + HEAP_OFFSET, heapOffset);
+        buffer.putInt(offset + HEAP_LENGTH, heapLength);
+    }
+
+    //Товар из слота и его записи кучи (heap с entryOffset; entryOffset < 0 - записи нет, строки пустые)
+    public static Product decode(ByteBuffer slot, int offset, byte[] heap, int entryOffset) {
+        Product p = new Product();
+        decode(slot, offset, heap, entryOffset, p);
+        return p;
+    }
+
+    public static void decode(ByteBuffer slot, int offset, byte[] heap, int entryOffset, Product p) {
+        p.setId(slot.getInt(offset + ID_OFFSET));
+        p.setPrice(slot.getDouble(offset + PRICE_OFFSET));
+        p.setBrandId(slot.getInt(offset + BRAND_OFFSET));
+        p.setCategoryId(slot.getInt(offset + CATEGORY_OFFSET));
+        if (entryOffset < 0) {
+            p.setName("");
+            p.setVolumeWeight("");
+            p.setDescription("");
+            return;
+        }
+        //длины строк не выходят за длину записи из слота, даже если запись кучи повреждена
+        int end = entryOffset + Math.max(ENTRY_HEADER, heapLength(slot, offset));
+        int pos = entryOffset + ENTRY_HEADER;
+        int name = Math.min(u16(heap, entryOffset + 4), end - pos);
+        p.setName(new String(heap, pos, name, StandardCharsets.UTF_8));
+        pos += name;
+        int volume = Math.min(u16(heap, entryOffset + 6), end - pos);
+        p.setVolumeWeight(new String(heap, pos, volume, StandardCharsets.UTF_8));
+        pos += volume;
+        int description = Math.min(u16(heap, entryOffset + 8), end - pos);
+        p.setDescription(new String(heap, pos, description, StandardCharsets.UTF_8));
+    }
+
+    //Только id записи (0 - пустой слот)
+    public static int decodeId(ByteBuffer slot, int offset) {
+        return slot.getInt(offset + ID_OFFSET);
+    }
+
+    //Числовые поля прямо из слота, без записи кучи
+    public static double price(ByteBuffer slot, int offset) {
+        return slot.getDouble(offset + PRICE_OFFSET);
+    }
+
+    public static int brandId(ByteBuffer slot, int offset) {
+        return slot.getInt(offset + BRAND_OFFSET);
+    }
+
+    public static int categoryId(ByteBuffer slot, int offset) {
+        return slot.getInt(offset + CATEGORY_OFFSET);
+    }
+
+    public static long heapOffset(ByteBuffer slot, int offset) {
+        return slot.getLong(offset + HEAP_OFFSET);
+    }
+
+    public static int heapLength(ByteBuffer slot, int offset) {
+        return slot.getInt(offset + HEAP_LENGTH);
+    }
+
+    //Перенос записи кучи: меняется только ссылка в слоте
+    public static void setHeapOffset(ByteBuffer slot, int offset, long heapOffset) {
+        slot.putLong(offset + HEAP_OFFSET, heapOffset);
+    }
+
+    public static void setHeapLength(ByteBuffer slot, int offset, int heapLength) {
+        slot.putInt(offset + HEAP_LENGTH, heapLength);
+    }
+
+    //id из записи кучи
+    public static int entryId(byte[] heap, int entryOffset) {
+        return ByteBuffer.wrap(heap).getInt(entryOffset);
+    }
+
+    //Длина строки в UTF-8 так, как её пишет ProductCodec.putFixedLengthString (одиночный суррогат - '?')
+    public static int utf8Length(String str) {
+        if (str == null) return 0;
+        int n = str.length();
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) length++;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) length++;
+            else length += 3;
+        }
+        return length;
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
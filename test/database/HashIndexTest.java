@@ -0,0 +1,219 @@
+package database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+//Хэш-таблицы индексов с открытой адресацией (IntIntHashMap, LongPostingMap): удаление сдвигом назад
+//и повторная вставка в цепочках коллизий, в том числе переходящих через конец таблицы,
+//и случайные операции против HashMap.
+//Запуск: java -ea -cp out database.HashIndexTest
+public class HashIndexTest {
+    private static final int TABLE = 16;
+
+    public static void main(String[] args) {
+        intCollisions(3);
+        intCollisions(TABLE - 2); //цепочка переходит через конец таблицы
+        intRandom();
+        longCollisions(5);
+        longCollisions(TABLE - 1);
+        longRandom();
+        System.out.println("OK");
+    }
+
+    //Ключи одной ячейки вперемешку с ключами соседних: удаление из начала, середины и конца цепочки
+    //не должно терять остальные ключи, повторная вставка - дублировать их
+    private static void intCollisions(int home) {
+        int[] same = intKeys(home, 4);
+        int[] next = intKeys((home + 1) & (TABLE - 1), 2);
+        int[] keys = {same[0], next[0], same[1], same[2], next[1], same[3]};
+        for (int[] order : orders(keys.length)) {
+            IntIntHashMap map = new IntIntHashMap(4);
+            Map<Integer, Integer> expected = new HashMap<>();
+            for (int key : keys) {
+                map.put(key, key * 7);
+                expected.put(key, key * 7);
+            }
+            for (int k : order) {
+                check(map.remove(keys[k], -1) == keys[k] * 7, "remove " + keys[k]);
+                expected.remove(keys[k]);
+                compare(map, expected, "после удаления " + keys[k] + " (ячейка " + home + ")");
+                check(map.remove(keys[k], -1) == -1, "повторное remove " + keys[k]);
+            }
+            check(map.size() == 0, "пустая таблица");
+            for (int k : order) {
+                map.put(keys[k], k);
+                expected.put(keys[k], k);
+                compare(map, expected, "повторная вставка " + keys[k]);
+            }
+            map.put(keys[0], -5);
+            expected.put(keys[0], -5);
+            compare(map, expected, "замена значения");
+        }
+    }
+
+    private static void intRandom() {
+        Random random = new Random(3);
+        IntIntHashMap map = new IntIntHashMap();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int step = 0; step < 300000; step++) {
+            //небольшой диапазон с нулём (хранится отдельно) - много удалений и повторных вставок
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                Integer old = expected.remove(key);
+                check(map.remove(key, Integer.MIN_VALUE) == (old == null ? Integer.MIN_VALUE : old), "remove " + key);
+            } else {
+                int value = random.nextInt();
+                map.put(key, value);
+                expected.put(key, value);
+            }
+            if (step % 50000 == 0) compare(map, expected, "шаг " + step);
+        }
+        compare(map, expected, "случайные операции");
+    }
+
+    //То же для LongPostingMap: ключ уходит из таблицы вместе с последним слотом
+    private static void longCollisions(int home) {
+        long[] same = longKeys(home, 4);
+        long[] next = longKeys((home + 1) & (TABLE - 1), 2);
+        long[] keys = {same[0], next[0], same[1], same[2], next[1], same[3]};
+        for (int[] order : orders(keys.length)) {
+            LongPostingMap<SlotList> map = new LongPostingMap<>(SlotList::new);
+            Map<Long, TreeSet<Integer>> expected = new HashMap<>();
+            for (int k = 0; k < keys.length; k++) {
+                add(map, expected, keys[k], k);
+                add(map, expected, keys[k], 100 + k);
+            }
+            for (int k : order) {
+                remove(map, expected, keys[k], k);
+                compare(map, expected, "удалён один слот ключа " + keys[k]);
+                remove(map, expected, keys[k], 100 + k);
+                check(map.get(keys[k]) == null, "ключ без слотов удалён " + keys[k]);
+                compare(map, expected, "после удаления " + keys[k] + " (ячейка " + home + ")");
+            }
+            check(map.size() == 0, "пустая таблица");
+            for (int k : order) {
+                add(map, expected, keys[k], 200 + k);
+                compare(map, expected, "повторная вставка " + keys[k]);
+            }
+        }
+    }
+
+    private static void longRandom() {
+        Random random = new Random(5);
+        LongPostingMap<RoaringBitmap> map = new LongPostingMap<>(RoaringBitmap::new);
+        Map<Long, TreeSet<Integer>> expected = new HashMap<>();
+        for (int step = 0; step < 200000; step++) {
+            //ключи - биты цен, как у индекса цены
+            long key = Double.doubleToLongBits(random.nextInt(300) / 4.0);
+            int slot = random.nextInt(20);
+            if (random.nextBoolean()) remove(map, expected, key, slot);
+            else add(map, expected, key, slot);
+            if (step % 40000 == 0) compare(map, expected, "шаг " + step);
+        }
+        compare(map, expected, "случайные операции");
+    }
+
+    private static <S extends SlotSet> void add(LongPostingMap<S> map, Map<Long, TreeSet<Integer>> expected,
+                                                long key, int slot) {
+        map.add(key, slot);
+        expected.computeIfAbsent(key, k -> new TreeSet<>()).add(slot);
+    }
+
+    private static <S extends SlotSet> void remove(LongPostingMap<S> map, Map<Long, TreeSet<Integer>> expected,
+                                                   long key, int slot) {
+        map.remove(key, slot);
+        TreeSet<Integer> slots = expected.get(key);
+        if (slots == null) return;
+        slots.remove(slot);
+        if (slots.isEmpty()) expected.remove(key);
+    }
+
+    private static void compare(IntIntHashMap map, Map<Integer, Integer> expected, String message) {
+        check(map.size() == expected.size(), message + ": размер " + map.size() + " вместо " + expected.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            check(map.containsKey(e.getKey()), message + ": нет ключа " + e.getKey());
+            check(map.get(e.getKey(), ~e.getValue()) == e.getValue(), message + ": значение " + e.getKey());
+        }
+        int[] visited = {0};
+        map.forEach((key, value) -> {
+            check(expected.containsKey(key) && expected.get(key) == value, message + ": лишний ключ " + key);
+            visited[0]++;
+        });
+        check(visited[0] == expected.size(), message + ": forEach");
+    }
+
+    private static <S extends SlotSet> void compare(LongPostingMap<S> map, Map<Long, TreeSet<Integer>> expected,
+                                                    String message) {
+        check(map.size() == expected.size(), message + ": размер " + map.size() + " вместо " + expected.size());
+        for (Map.Entry<Long, TreeSet<Integer>> e : expected.entrySet()) {
+            S slots = map.get(e.getKey());
+            check(slots != null, message + ": нет ключа " + e.getKey());
+            int[] wanted = e.getValue().stream().mapToInt(Integer::intValue).toArray();
+            int[] actual = slots.toArray();
+            Arrays.sort(actual);
+            check(Arrays.equals(actual, wanted), message + ": слоты ключа " + e.getKey());
+        }
+        int[] visited = {0};
+        map.forEach((key, slots) -> {
+            check(expected.containsKey(key), message + ": лишний ключ " + key);
+            visited[0]++;
+        });
+        check(visited[0] == expected.size(), message + ": forEach");
+    }
+
+    //count ненулевых ключей, попадающих в ячейку home таблицы на TABLE ячеек
+    private static int[] intKeys(int home, int count) {
+        int[] keys = new int[count];
+        int n = 0;
+        for (int key = 1; n < count; key++) {
+            if ((IntIntHashMap.mix(key) & (TABLE - 1)) == home) keys[n++] = key;
+        }
+        return keys;
+    }
+
+    private static long[] longKeys(int home, int count) {
+        long[] keys = new long[count];
+        int n = 0;
+        for (long key = 1; n < count; key++) {
+            if ((LongPostingMap.mix(key) & (TABLE - 1)) == home) keys[n++] = key;
+        }
+        return keys;
+    }
+
+    //Порядки удаления: прямой, обратный, с середины и несколько случайных
+    private static List<int[]> orders(int n) {
+        List<int[]> orders = new ArrayList<>();
+        int[] forward = new int[n];
+        int[] backward = new int[n];
+        int[] middle = new int[n];
+        for (int i = 0; i < n; i++) {
+            forward[i] = i;
+            backward[i] = n - 1 - i;
+            middle[i] = (n / 2 + i) % n;
+        }
+        orders.add(forward);
+        orders.add(backward);
+        orders.add(middle);
+        Random random = new Random(n);
+        for (int r = 0; r < 20; r++) {
+            int[] order = forward.clone();
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,111 @@
+package database;
+
+import model.DBConstants;
+import model.Product;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//Восстановление полной копии с инкрементальной, между которыми было уплотнение: записи из хвоста
+//переехали в младшие слоты, и индексы после восстановления должны совпадать с содержимым файла.
+//Запуск: java -ea -cp out database.RestoreAcrossCompactionTest
+public class RestoreAcrossCompactionTest {
+    private static final int RECORDS = 3000;
+
+    public static void main(String[] args) throws IOException {
+        for (StorageMode mode : StorageMode.values()) run(mode);
+        System.out.println("OK");
+    }
+
+    private static void run(StorageMode mode) throws IOException {
+        Path dir = Files.createTempDirectory("restore-compact");
+        String db = dir.resolve("catalog.db").toString();
+        String full = dir.resolve("full.bak").toString();
+        String inc = dir.resolve("inc.bak").toString();
+        FileSystem fs = new FileSystem();
+        check(fs.create(db, mode) == DBConstants.SUCCESS, "create");
+        List<Product> products = new ArrayList<>();
+        for (int id = 1; id <= RECORDS; id++) products.add(product(id));
+        fs.addRecords(products);
+        fs.backup(full);
+
+        for (int id = 1; id <= RECORDS / 2; id++) fs.deleteRecordById(id);
+        check(fs.compact().isFinished(), "compact");
+        fs.backupIncremental(inc);
+        Map<Integer, String> expected = contents(fs);
+
+        check(fs.restoreFromBackup(full, List.of(inc)) == DBConstants.SUCCESS, "restore");
+        check(fs.getStorageMode() == mode, "режим хранения после восстановления");
+        check(contents(fs).equals(expected), "содержимое");
+        checkIndexes(fs, expected);
+
+        //новые записи занимают освободившиеся слоты - старые копии в индексах их бы подхватили
+        for (int id = 5000; id < 5100; id++) {
+            check(fs.addRecord(product(id)) == DBConstants.SUCCESS, "add " + id);
+            expected.put(id, key(product(id)));
+        }
+        checkIndexes(fs, expected);
+        check(fs.searchText("товар 1600", 0).stream().allMatch(p -> p.getId() == 1600), "searchText");
+        fs.close();
+        for (String f : new String[]{db, full, inc}) {
+            Files.deleteIfExists(Path.of(f));
+            Files.deleteIfExists(Path.of(StringHeap.pathFor(f)));
+            Files.deleteIfExists(Path.of(WriteAheadLog.pathFor(f)));
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    //Каждый вторичный индекс находит ровно записи из файла
+    private static void checkIndexes(FileSystem fs, Map<Integer, String> expected) {
+        check(fs.getRecordCount() == expected.size(), "число записей");
+        check(fs.findCheapest(5).size() == Math.min(5, expected.size()), "findCheapest");
+        check(fs.findCheapest(expected.size() + 10).size() == expected.size(), "индекс цены");
+        int byBrand = 0;
+        for (int brand = 1; brand <= 10; brand++) byBrand += fs.findRecordsByField("brandId", brand).size();
+        check(byBrand == expected.size(), "индекс бренда");
+        int byCategory = 0;
+        for (int category = 1; category <= 7; category++)
+            byCategory += fs.findRecordsByField("categoryId", category).size();
+        check(byCategory == expected.size(), "индекс категории");
+        for (int id : expected.keySet()) {
+            Product p = fs.findRecordById(id);
+            check(p != null && key(p).equals(expected.get(id)), "id " + id);
+            check(fs.findRecordsByField("name", p.getName()).size() == 1, "индекс названия " + id);
+        }
+        int total = 0;
+        for (PriceStats stats : fs.aggregateByBrand().values()) total += stats.getCount();
+        check(total == expected.size(), "агрегаты по брендам");
+    }
+
+    private static Map<Integer, String> contents(FileSystem fs) {
+        Map<Integer, String> result = new TreeMap<>();
+        for (Product p : fs.getAllRecords()) result.put(p.getId(), key(p));
+        return result;
+    }
+
+    private static Product product(int id) {
+        Product p = new Product();
+        p.setId(id);
+        p.setName("товар " + id);
+        p.setPrice(10 + id % 997);
+        p.setBrandId(1 + id % 10);
+        p.setCategoryId(1 + id % 7);
+        p.setVolumeWeight(id % 3 + "00 мл");
+        p.setDescription("описание " + id);
+        return p;
+    }
+
+    private static String key(Product p) {
+        return p.getId() + "|" + p.getName() + "|" + p.getPrice() + "|" + p.getBrandId() + "|" + p.getCategoryId()
+                + "|" + p.getVolumeWeight() + "|" + p.getDescription();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
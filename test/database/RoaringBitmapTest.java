@@ -0,0 +1,144 @@
+package database;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+//RoaringBitmap против TreeSet: переход массив <-> битовая карта на границе 4096 значений в блоке,
+//удаление до пустого множества, пересечение блоков разных видов и порядок toArray.
+//Запуск: java -ea -cp out database.RoaringBitmapTest
+public class RoaringBitmapTest {
+    private static final int BLOCK = 65536;
+    private static final int ARRAY_MAX = 4096;
+
+    public static void main(String[] args) {
+        arrayBitmapBoundary();
+        removeToEmpty();
+        fromUnordered();
+        intersection();
+        randomOperations();
+        System.out.println("OK");
+    }
+
+    //4096 значений в блоке - массив, 4097-е переводит блок в битовую карту, удаление - обратно
+    private static void arrayBitmapBoundary() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        //через одно значение, чтобы соседи не совпадали с добавляемыми
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            check(bitmap.add(BLOCK + 2 * i), "add " + i);
+            expected.add(BLOCK + 2 * i);
+        }
+        check(!bitmap.add(BLOCK), "повторное add");
+        compare(bitmap, expected, "4096 значений");
+        check(bitmap.add(BLOCK + 1), "4097-е значение");
+        expected.add(BLOCK + 1);
+        compare(bitmap, expected, "битовая карта");
+        check(!bitmap.contains(BLOCK + 3) && !bitmap.contains(2 * BLOCK + 1), "лишние значения");
+        check(bitmap.remove(BLOCK + 2), "remove из битовой карты");
+        expected.remove(BLOCK + 2);
+        compare(bitmap, expected, "снова массив");
+        check(!bitmap.remove(BLOCK + 2), "повторное remove");
+        check(bitmap.add(BLOCK + 3), "add после перехода в массив");
+        expected.add(BLOCK + 3);
+        compare(bitmap, expected, "массив после перехода");
+    }
+
+    private static void removeToEmpty() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        int[] slots = {5, 70000, 70001, 3 * BLOCK + 7};
+        for (int slot : slots) bitmap.add(slot);
+        for (int i = 0; i < 5000; i++) bitmap.add(5 * BLOCK + i);
+        for (int slot : slots) check(bitmap.remove(slot), "remove " + slot);
+        for (int i = 4999; i >= 0; i--) check(bitmap.remove(5 * BLOCK + i), "remove " + i);
+        check(bitmap.isEmpty() && bitmap.size() == 0, "пустое множество");
+        check(bitmap.toArray().length == 0, "toArray пустого");
+        check(!bitmap.remove(5) && !bitmap.contains(5), "remove из пустого");
+        check(bitmap.add(70001) && bitmap.size() == 1 && bitmap.toArray()[0] == 70001, "add после опустошения");
+    }
+
+    //of(): слоты в любом порядке, блок ровно на 4096 значений и на 4097
+    private static void fromUnordered() {
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < ARRAY_MAX; i++) expected.add(3 * i);
+        for (int i = 0; i <= ARRAY_MAX; i++) expected.add(2 * BLOCK + 5 * i);
+        expected.add(9 * BLOCK);
+        int[] shuffled = expected.stream().mapToInt(Integer::intValue).toArray();
+        shuffle(shuffled, new Random(7));
+        RoaringBitmap bitmap = RoaringBitmap.of(shuffled);
+        compare(bitmap, expected, "of");
+        check(RoaringBitmap.of(new int[0]).isEmpty(), "of пустого");
+    }
+
+    //Пересечение массив/массив, массив/карта, карта/карта и блоки, которые есть только у одной стороны
+    private static void intersection() {
+        RoaringBitmap a = new RoaringBitmap();
+        RoaringBitmap b = new RoaringBitmap();
+        TreeSet<Integer> inA = new TreeSet<>();
+        TreeSet<Integer> inB = new TreeSet<>();
+        //блок 0: массив и массив
+        for (int i = 0; i < 1000; i++) add(a, inA, 2 * i);
+        for (int i = 0; i < 1000; i++) add(b, inB, 3 * i);
+        //блок 1: массив и карта
+        for (int i = 0; i < 500; i++) add(a, inA, BLOCK + 7 * i);
+        for (int i = 0; i < 6000; i++) add(b, inB, BLOCK + i);
+        //блок 2: карта и карта, пересечение меньше 4096 - результат снова массив
+        for (int i = 0; i < 6000; i++) add(a, inA, 2 * BLOCK + 2 * i);
+        for (int i = 0; i < 6000; i++) add(b, inB, 2 * BLOCK + 3 * i);
+        //блок 3: карта и карта с большим пересечением
+        for (int i = 0; i < 20000; i++) add(a, inA, 3 * BLOCK + i);
+        for (int i = 5000; i < 30000; i++) add(b, inB, 3 * BLOCK + i);
+        //блоки только у одной стороны
+        add(a, inA, 4 * BLOCK);
+        add(b, inB, 6 * BLOCK + 1);
+
+        TreeSet<Integer> both = new TreeSet<>(inA);
+        both.retainAll(inB);
+        compare(RoaringBitmap.and(a, b), both, "a И b");
+        compare(RoaringBitmap.and(b, a), both, "b И a");
+        compare(RoaringBitmap.and(a, new RoaringBitmap()), new TreeSet<>(), "И с пустым");
+        compare(a, inA, "a не изменилось");
+        compare(b, inB, "b не изменилось");
+    }
+
+    private static void randomOperations() {
+        Random random = new Random(42);
+        RoaringBitmap bitmap = new RoaringBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int step = 0; step < 200000; step++) {
+            //два блока: в первом значения густые (карта), во втором редкие (массив)
+            int slot = random.nextBoolean() ? random.nextInt(8000) : BLOCK + random.nextInt(BLOCK);
+            if (random.nextInt(3) == 0) check(bitmap.remove(slot) == expected.remove(slot), "remove " + slot);
+            else check(bitmap.add(slot) == expected.add(slot), "add " + slot);
+        }
+        compare(bitmap, expected, "случайные операции");
+    }
+
+    private static void add(RoaringBitmap bitmap, TreeSet<Integer> expected, int slot) {
+        bitmap.add(slot);
+        expected.add(slot);
+    }
+
+    //Размер, contains и toArray по возрастанию совпадают с эталоном
+    private static void compare(RoaringBitmap bitmap, TreeSet<Integer> expected, String message) {
+        check(bitmap.size() == expected.size(), message + ": размер " + bitmap.size() + " вместо " + expected.size());
+        check(bitmap.isEmpty() == expected.isEmpty(), message + ": isEmpty");
+        int[] actual = bitmap.toArray();
+        int[] wanted = expected.stream().mapToInt(Integer::intValue).toArray();
+        check(Arrays.equals(actual, wanted), message + ": toArray");
+        for (int slot : wanted) check(bitmap.contains(slot), message + ": contains " + slot);
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,156 @@
+package database;
+
+import java.util.BitSet;
+import java.util.Random;
+
+//Распределитель слотов против простой модели (BitSet занятых слотов и конец данных):
+//allocate/allocateFrom/free/truncate при обеих политиках, запросы по карте (rank, select, соседние слоты)
+//и длина стека LIFO, которая не должна расти, когда освобождённые слоты занимает allocateFrom.
+//Запуск: java -ea -cp out database.SlotAllocatorTest
+public class SlotAllocatorTest {
+    public static void main(String[] args) {
+        for (SlotAllocator.Policy policy : SlotAllocator.Policy.values()) randomOperations(policy);
+        lifoOrder();
+        lifoStackBounded();
+        loadAndTruncate();
+        System.out.println("OK");
+    }
+
+    private static void randomOperations(SlotAllocator.Policy policy) {
+        Random random = new Random(11);
+        SlotAllocator allocator = new SlotAllocator();
+        allocator.setPolicy(policy);
+        BitSet used = new BitSet();
+        int[] end = {0};
+        for (int step = 0; step < 100000; step++) {
+            int op = random.nextInt(10);
+            if (op < 4) {
+                int lowest = lowestHole(used, end[0], 0);
+                int slot = allocator.allocate();
+                check(!used.get(slot) && slot <= end[0], "allocate занял занятый слот " + slot);
+                if (lowest < 0) check(slot == end[0], "без дыр allocate дописывает в конец");
+                else if (policy == SlotAllocator.Policy.LOW_FIRST) check(slot == lowest, "LOW_FIRST - младшая дыра");
+                else check(slot < end[0], "LIFO берёт дыру, пока она есть");
+                take(used, end, slot);
+            } else if (op < 6) {
+                int from = random.nextInt(end[0] + 10);
+                int hole = lowestHole(used, end[0], from);
+                int slot = allocator.allocateFrom(from);
+                check(slot == (hole >= 0 ? hole : end[0]), "allocateFrom(" + from + ") = " + slot);
+                take(used, end, slot);
+            } else if (op < 9) {
+                if (end[0] == 0) continue;
+                int slot = random.nextInt(end[0] + 2);
+                allocator.free(slot);
+                used.clear(slot);
+            } else {
+                int newEnd = allocator.truncate();
+                end[0] = used.length();
+                check(newEnd == end[0], "truncate до старшего занятого слота");
+            }
+            if (step % 1000 == 0) compare(allocator, used, end[0], policy + " шаг " + step);
+            check(allocator.freedSize() <= 2 * allocator.freeCount() + 16, "стек LIFO длиннее 2 * число дыр + 16");
+        }
+        compare(allocator, used, end[0], policy + " в конце");
+        allocator.clear();
+        check(allocator.totalSlots() == 0 && allocator.freeCount() == 0 && allocator.freedSize() == 0, "clear");
+        check(allocator.allocate() == 0, "allocate после clear");
+    }
+
+    //LIFO отдаёт слоты в обратном порядке освобождения и пропускает занятые allocateFrom
+    private static void lifoOrder() {
+        SlotAllocator allocator = new SlotAllocator();
+        allocator.setPolicy(SlotAllocator.Policy.LIFO);
+        for (int i = 0; i < 100; i++) allocator.allocate();
+        allocator.free(10);
+        allocator.free(50);
+        allocator.free(30);
+        allocator.free(70);
+        check(allocator.allocate() == 70, "последний освобождённый");
+        check(allocator.allocateFrom(40) == 50, "allocateFrom - младшая дыра не меньше from");
+        check(allocator.allocate() == 30, "занятый allocateFrom слот пропущен");
+        check(allocator.allocate() == 10, "первый освобождённый - последним");
+        check(allocator.allocate() == 100, "дыр нет - конец");
+    }
+
+    //Освобождение и повторный захват одного слота через allocateFrom: раньше стек рос на каждом круге
+    private static void lifoStackBounded() {
+        SlotAllocator allocator = new SlotAllocator();
+        allocator.setPolicy(SlotAllocator.Policy.LIFO);
+        for (int i = 0; i < 1000; i++) allocator.allocate();
+        allocator.free(3);
+        allocator.free(50);
+        for (int round = 0; round < 200000; round++) {
+            int slot = 100 + round % 700;
+            allocator.free(slot);
+            check(allocator.allocateFrom(slot) == slot, "allocateFrom занимает освобождённый слот");
+            check(allocator.freedSize() <= 2 * allocator.freeCount() + 16, "стек растёт: " + allocator.freedSize());
+        }
+        check(allocator.allocate() == 50 && allocator.allocate() == 3, "живые записи стека сохранились по порядку");
+        for (int slot = 900; slot < 1000; slot++) allocator.free(slot);
+        check(allocator.truncate() == 900, "truncate");
+        check(allocator.freedSize() == 0, "отрезанные слоты ушли из стека");
+        check(allocator.allocate() == 900, "после truncate - конец");
+    }
+
+    //Загрузка карты из снимка и отрезание свободного хвоста
+    private static void loadAndTruncate() {
+        BitSet occupied = new BitSet();
+        for (int slot = 0; slot < 5000; slot += 3) occupied.set(slot);
+        occupied.set(6000);
+        SlotAllocator allocator = new SlotAllocator();
+        allocator.load(occupied, 7000);
+        compare(allocator, occupied, 7000, "load");
+        allocator.free(6000);
+        occupied.clear(6000);
+        check(allocator.truncate() == occupied.length(), "truncate после load");
+        compare(allocator, occupied, occupied.length(), "после truncate");
+        check(allocator.nextFree(0) == 1, "первая дыра");
+        for (int slot = 0; slot < 5000; slot++) {
+            if (!occupied.get(slot)) {
+                check(allocator.allocate() == slot, "дыры по возрастанию");
+                occupied.set(slot);
+            }
+        }
+        check(allocator.freeCount() == 0 && allocator.nextFree(0) == -1, "дыр не осталось");
+        compare(allocator, occupied, occupied.length(), "все дыры заняты");
+    }
+
+    private static void take(BitSet used, int[] end, int slot) {
+        used.set(slot);
+        if (slot >= end[0]) end[0] = slot + 1;
+    }
+
+    private static int lowestHole(BitSet used, int end, int from) {
+        int hole = used.nextClearBit(Math.max(0, from));
+        return hole < end ? hole : -1;
+    }
+
+    //Счётчики, занятость и запросы по карте совпадают с моделью
+    private static void compare(SlotAllocator allocator, BitSet used, int end, String message) {
+        check(allocator.totalSlots() == end, message + ": конец данных " + allocator.totalSlots() + " вместо " + end);
+        check(allocator.usedCount() == used.cardinality(), message + ": занятых " + allocator.usedCount());
+        check(allocator.freeCount() == end - used.cardinality(), message + ": дыр " + allocator.freeCount());
+        check(allocator.lastUsed() == used.length() - 1, message + ": lastUsed");
+        int rank = 0;
+        for (int slot = 0; slot < end + 2; slot++) {
+            check(allocator.isUsed(slot) == used.get(slot), message + ": isUsed " + slot);
+            check(allocator.rank(slot) == rank, message + ": rank " + slot);
+            int next = used.nextSetBit(slot);
+            check(allocator.nextUsed(slot) == (next >= 0 && next < end ? next : -1), message + ": nextUsed " + slot);
+            check(allocator.prevUsed(slot) == used.previousSetBit(slot - 1), message + ": prevUsed " + slot);
+            check(allocator.nextFree(slot) == lowestHole(used, end, slot), message + ": nextFree " + slot);
+            if (used.get(slot)) {
+                check(allocator.select(rank) == slot, message + ": select " + rank);
+                rank++;
+            }
+        }
+        check(allocator.select(rank) == -1, message + ": select за концом");
+        BitSet window = allocator.occupied(end / 3, end / 3 + 200);
+        check(window.equals(used.get(end / 3, end / 3 + 200)), message + ": occupied");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,249 @@
+package database;
+
+import model.DBConstants;
+import model.Product;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Журнал упреждающей записи: повтор всех записей, остановка на оборванном хвосте и на первой записи
+//с неверной CRC, групповая фиксация из многих потоков, обнуление после контрольной точки
+//и восстановление бд после сбоя по копии журнала.
+//Запуск: java -ea -cp out database.WriteAheadLogTest
+public class WriteAheadLogTest {
+    private static final int PAGE = 64;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("wal-test");
+        replayAll(dir);
+        tornTail(dir);
+        badChecksum(dir);
+        groupCommit(dir);
+        resetAfterCheckpoint(dir);
+        recoverDatabase(dir);
+        System.out.println("OK");
+    }
+
+    //Все записи журнала повторяются в файл и кучу, страницы кучи - по своим позициям
+    private static void replayAll(Path dir) throws IOException {
+        String path = dir.resolve("all.wal").toString();
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            wal.append(0, page(1), 0, PAGE);
+            wal.append(new WriteAheadLog.Entry()
+                    .page(WriteAheadLog.HEAP_PAGE | 16, page(2), 0, PAGE)
+                    .page(PAGE, page(3), 0, PAGE));
+            wal.append(2 * PAGE, page(4), 0, PAGE);
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(path);
+             FileStorage data = new FileStorage(dir.resolve("all.db").toString());
+             FileStorage heap = new FileStorage(dir.resolve("all.heap").toString())) {
+            check(!wal.isEmpty(), "журнал после открытия не пуст");
+            check(wal.replay(data, heap) == 3, "повторены все записи");
+            checkPage(data, 0, 1, "страница 1");
+            checkPage(data, PAGE, 3, "страница 3");
+            checkPage(data, 2 * PAGE, 4, "страница 4");
+            checkPage(heap, 16, 2, "страница кучи");
+            check(data.length() == 3 * PAGE, "страница кучи не попала в файл бд");
+        }
+    }
+
+    //Запись, оборванная посреди тела или заголовка, и всё за ней не повторяются
+    private static void tornTail(Path dir) throws IOException {
+        String path = dir.resolve("torn.wal").toString();
+        long[] ends = writeEntries(path, 4);
+        for (long cut : new long[]{ends[2] + 3, ends[2] + 8 + 5, ends[3] - 1}) {
+            Path copy = dir.resolve("torn-" + cut + ".wal");
+            Files.copy(Paths.get(path), copy, StandardCopyOption.REPLACE_EXISTING);
+            try (RandomAccessFile file = new RandomAccessFile(copy.toFile(), "rw")) {
+                file.setLength(cut);
+            }
+            Path db = dir.resolve("torn-" + cut + ".db");
+            try (WriteAheadLog wal = new WriteAheadLog(copy.toString());
+                 FileStorage data = new FileStorage(db.toString())) {
+                check(wal.replay(data) == 3, "оборванный хвост на " + cut);
+                for (int k = 0; k < 3; k++) checkPage(data, (long) k * PAGE, k + 1, "запись " + k + " до обрыва");
+                check(data.length() == 3 * PAGE, "оборванная запись не применена");
+            }
+        }
+    }
+
+    //Повтор останавливается на первой записи с неверной CRC, даже если следующие целы
+    private static void badChecksum(Path dir) throws IOException {
+        String path = dir.resolve("crc.wal").toString();
+        long[] ends = writeEntries(path, 4);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            long at = ends[0] + 8 + 12 + 10; //тело второй записи, байты страницы
+            file.seek(at);
+            int b = file.read();
+            file.seek(at);
+            file.write(b ^ 0x01);
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(path);
+             FileStorage data = new FileStorage(dir.resolve("crc.db").toString())) {
+            check(wal.replay(data) == 1, "повтор до повреждённой записи");
+            checkPage(data, 0, 1, "запись до повреждённой");
+            check(data.length() == PAGE, "записи после повреждённой не применены");
+        }
+    }
+
+    //Много потоков дописывают и фиксируют одновременно: каждая фиксация возвращается,
+    //каждая запись повторяется ровно один раз
+    private static void groupCommit(Path dir) throws Exception {
+        String path = dir.resolve("group.wal").toString();
+        int threads = 8;
+        int perThread = 200;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            wal.setPolicy(SyncPolicy.EVERY_OP, 0);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread worker = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            int n = thread * perThread + i;
+                            long lsn = wal.append((long) n * PAGE, page(n), 0, PAGE);
+                            wal.commit(lsn);
+                            check(wal.size() >= lsn, "LSN за концом журнала");
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join(60_000);
+                check(!worker.isAlive(), "фиксация зависла");
+            }
+            if (failure.get() != null) throw new AssertionError("ошибка в потоке", failure.get());
+
+            //при OS фиксация не ждёт
+            wal.setPolicy(SyncPolicy.OS, 0);
+            wal.commit(wal.append(0, page(0), 0, PAGE));
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(path);
+             FileStorage data = new FileStorage(dir.resolve("group.db").toString())) {
+            check(wal.replay(data) == threads * perThread + 1, "все записи групповой фиксации");
+            for (int n = 0; n < threads * perThread; n++) checkPage(data, (long) n * PAGE, n, "запись " + n);
+        }
+    }
+
+    //После обнуления журнал пуст и на диске, повтор ничего не делает, новые записи идут с нуля
+    private static void resetAfterCheckpoint(Path dir) throws IOException {
+        String path = dir.resolve("reset.wal").toString();
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            for (int k = 0; k < 5; k++) wal.append((long) k * PAGE, page(k), 0, PAGE);
+            wal.reset();
+            check(wal.isEmpty() && wal.size() == 0, "пустой журнал после reset");
+            check(Files.size(Paths.get(path)) == 0, "файл журнала обрезан");
+            try (FileStorage data = new FileStorage(dir.resolve("reset-empty.db").toString())) {
+                check(wal.replay(data) == 0 && data.length() == 0, "повтор пустого журнала");
+            }
+            long lsn = wal.append(7L * PAGE, page(7), 0, PAGE);
+            check(lsn == wal.size() && lsn == Files.size(Paths.get(path)), "LSN после reset");
+            wal.commit(lsn);
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(path);
+             FileStorage data = new FileStorage(dir.resolve("reset.db").toString())) {
+            check(wal.replay(data) == 1, "повтор только записей после reset");
+            checkPage(data, 7L * PAGE, 7, "запись после reset");
+            check(data.length() == 8L * PAGE, "старые записи не повторены");
+        }
+    }
+
+    //Сбой после записи в журнал: файлы бд остаются от прошлой контрольной точки, а журнал
+    //(с оборванной последней записью) - от момента сбоя. Открытие повторяет журнал и обнуляет его
+    private static void recoverDatabase(Path dir) throws IOException {
+        String db = dir.resolve("catalog.db").toString();
+        FileSystem fs = new FileSystem();
+        check(fs.create(db) == DBConstants.SUCCESS, "create");
+        List<Product> products = new ArrayList<>();
+        for (int id = 1; id <= 100; id++) products.add(product(id, "товар " + id));
+        fs.addRecords(products);
+        fs.close();
+        check(Files.size(Paths.get(WriteAheadLog.pathFor(db))) == 0, "журнал обнулён при закрытии");
+        Path saved = dir.resolve("saved.db");
+        Path savedHeap = dir.resolve("saved.db.heap");
+        Files.copy(Paths.get(db), saved);
+        Files.copy(Paths.get(StringHeap.pathFor(db)), savedHeap);
+
+        check(fs.open(db) == DBConstants.SUCCESS, "open");
+        check(fs.updateRecord(product(5, "новое название")) == DBConstants.SUCCESS, "update");
+        check(fs.addRecord(product(101, "товар 101")) == DBConstants.SUCCESS, "add");
+        check(fs.deleteRecordById(7) == DBConstants.SUCCESS, "delete");
+        Path log = dir.resolve("crash.wal");
+        Files.copy(Paths.get(WriteAheadLog.pathFor(db)), log);
+        fs.close();
+
+        Files.copy(saved, Paths.get(db), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(savedHeap, Paths.get(StringHeap.pathFor(db)), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(log, Paths.get(WriteAheadLog.pathFor(db)), StandardCopyOption.REPLACE_EXISTING);
+        //незаконченная запись журнала в момент сбоя
+        try (RandomAccessFile file = new RandomAccessFile(WriteAheadLog.pathFor(db), "rw")) {
+            file.seek(file.length());
+            file.writeInt(1000);
+            file.writeInt(0);
+            file.write(new byte[40]);
+        }
+
+        check(fs.open(db) == DBConstants.SUCCESS, "open после сбоя");
+        check(Files.size(Paths.get(WriteAheadLog.pathFor(db))) == 0, "журнал обнулён после повтора");
+        check(fs.getRecordCount() == 100, "число записей после повтора");
+        Product updated = fs.findRecordById(5);
+        check(updated != null && updated.getName().equals("новое название"), "изменение из журнала");
+        check(fs.findRecordsByField("name", "новое название").size() == 1, "индекс названия после повтора");
+        check(fs.findRecordById(101) != null, "добавление из журнала");
+        check(fs.findRecordById(7) == null, "удаление из журнала");
+        check(fs.findRecordById(6).getName().equals("товар 6"), "прежние записи");
+        fs.close();
+    }
+
+    //Журнал из count записей по странице: запись k кладёт page(k + 1) на позицию k * PAGE.
+    //Возвращает концы записей в файле
+    private static long[] writeEntries(String path, int count) throws IOException {
+        Files.deleteIfExists(Paths.get(path));
+        long[] ends = new long[count];
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            for (int k = 0; k < count; k++) ends[k] = wal.append((long) k * PAGE, page(k + 1), 0, PAGE);
+        }
+        return ends;
+    }
+
+    private static byte[] page(int n) {
+        byte[] bytes = new byte[PAGE];
+        Arrays.fill(bytes, (byte) n);
+        bytes[0] = (byte) (n >>> 8);
+        return bytes;
+    }
+
+    private static void checkPage(RecordStorage storage, long position, int n, String message) throws IOException {
+        byte[] bytes = new byte[PAGE];
+        check(storage.read(position, bytes, 0, PAGE) == PAGE && Arrays.equals(bytes, page(n)), message);
+    }
+
+    private static Product product(int id, String name) {
+        Product p = new Product();
+        p.setId(id);
+        p.setName(name);
+        p.setPrice(10 + id % 97);
+        p.setBrandId(1 + id % 10);
+        p.setCategoryId(1 + id % 7);
+        p.setVolumeWeight("100 мл");
+        p.setDescription("описание " + id);
+        return p;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}